@@ -0,0 +1,97 @@
+package com.itblueprints.sysagent.internal.step;
+
+import com.itblueprints.sysagent.internal.Bulkhead;
+import com.itblueprints.sysagent.internal.Utils;
+import lombok.val;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+/**
+ * Processes a page of items with the ItemDispatcher, and with the sleep-polling loop it replaced.
+ * Run with: mvn -Pjmh test-compile exec:exec
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ItemDispatcherBenchmark {
+
+    private static final int PAGE_SIZE = 200;
+    private static final int THREADS = 4;
+    private static final int LOT_SIZE = 40;
+
+    @Param({"0", "20", "200"})
+    public long workMicros;
+
+    private ExecutorService executor;
+    private List<Integer> items;
+    private ItemDispatcher<Integer, Integer> dispatcher;
+    private final List<Integer> results = new ArrayList<>(PAGE_SIZE);
+
+    //--------------------------------------------------------------
+    @Setup
+    public void setup(){
+        executor = Executors.newFixedThreadPool(THREADS);
+        items = IntStream.range(0, PAGE_SIZE).boxed().toList();
+        dispatcher = new ItemDispatcher<>(new Bulkhead(executor, LOT_SIZE), LOT_SIZE, this::process, null, 1, null);
+    }
+
+    //--------------------------------------------------------------
+    @TearDown
+    public void tearDown(){
+        executor.shutdownNow();
+    }
+
+    //--------------------------------------------------------------
+    @Benchmark
+    public List<Integer> itemDispatcher() throws InterruptedException {
+        dispatcher.dispatch(items, results);
+        return results;
+    }
+
+    //--------------------------------------------------------------
+    // The loop the dispatcher replaced, which submitted a future per item and polled a lot of
+    // them at a time, sleeping 20 ms for each one not done yet
+    @Benchmark
+    public List<Integer> sleepPolling() throws Exception {
+        val futures = new ArrayList<Future<Integer>>();
+        val pageResults = new ArrayList<Integer>();
+        for(val item : items){
+            futures.add(executor.submit(() -> process(item)));
+            if(futures.size() == LOT_SIZE) {
+                compileResults(futures, pageResults);
+                futures.clear();
+            }
+        }
+        compileResults(futures, pageResults);
+        return pageResults;
+    }
+
+    //--------------------------------------------------------------
+    private void compileResults(List<Future<Integer>> futures, List<Integer> results) throws Exception {
+        boolean done = false;
+        do {
+            val notDoneCount = futures.stream().filter(f -> !f.isDone()).count();
+            if(notDoneCount > 0) Utils.sleepFor(notDoneCount*20);
+            else done = true;
+        } while (!done);
+        for(val future : futures) results.add(future.get());
+    }
+
+    //--------------------------------------------------------------
+    // Busy for the given time, as an item bound by CPU would be
+    private Integer process(Integer item){
+        val end = System.nanoTime() + workMicros * 1000;
+        while(System.nanoTime() < end) Thread.onSpinWait();
+        return item;
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2023-2024 the original author or authors.
+ *
+ * Licensed under the Apache Software License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.itblueprints.sysagent.internal;
+
+import lombok.Getter;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+
+/**
+ * An executor to process batch items on, with the number of items allowed in flight on it.
+ * The limit is shared by all the batches using the bulkhead at a time, e.g. in different
+ * step slots, so together they never queue more items on the executor than it can take
+ */
+public class Bulkhead {
+
+    @Getter
+    private final ExecutorService executor;
+
+    @Getter
+    private final int maxItemsInFlight;
+
+    private final Semaphore inFlight;
+
+    //--------------------------------------------------------------
+    public Bulkhead(ExecutorService executor, int maxItemsInFlight){
+        this.executor = executor;
+        this.maxItemsInFlight = maxItemsInFlight;
+        inFlight = new Semaphore(maxItemsInFlight);
+    }
+
+    //--------------------------------------------------------------
+    /**
+     * Waits for room for one more item, or chunk of items, on the executor
+     */
+    public void acquire() throws InterruptedException {
+        inFlight.acquire();
+    }
+
+    //--------------------------------------------------------------
+    public void release(){
+        inFlight.release();
+    }
+}
@@ -16,6 +16,7 @@
 
 package com.itblueprints.sysagent.internal;
 
+import com.itblueprints.sysagent.step.ThreadType;
 import lombok.Getter;
 import lombok.Setter;
 import org.springframework.boot.context.properties.ConfigurationProperties;
@@ -28,5 +29,28 @@ public class Config {
 
     private int heartBeatSecs = 10;
     private int workerThreads = 4;
+    private int managerThreads = 2;
+    private int stepSlots = 1;
+    private int stepClaimBatchSize = 1;
+    private boolean stepWakeOnInsert = true;
+    private long stepWakeDebounceMillis = 100;
+    private int stepRecordInsertBatchSize = 1000;
+    private long stepSplitAfterSecs = 60;
+    private boolean stepSpeculativeExecution = false;
+    private long stepSpeculateAfterSecs = 60;
+    private double stepSpeculationFactor = 2.0;
+    private long stepAffinityWaitSecs = 30;
+    private ThreadType workerThreadType = ThreadType.PLATFORM;
+    private int maxItemsInFlight = 200;
     private int batchPageSize = 200;
+    private int batchPipelineDepth = 2;
+    private int batchChunkSize = 1;
+    private boolean batchAdaptivePageSize = false;
+    private int batchPageSizeMin = 20;
+    private int batchPageSizeMax = 5000;
+    private long batchTargetPageMillis = 2000;
+    private long batchMaxPageBytes = 16 * 1024 * 1024;
+    private boolean batchAdaptiveConcurrency = false;
+    private int batchConcurrencyMin = 1;
+    private double batchLatencyTolerance = 2.0;
 }       
\ No newline at end of file
@@ -16,6 +16,9 @@
 
 package com.itblueprints.sysagent.internal;
 
+import com.itblueprints.sysagent.step.ExecutorSettings;
+import com.itblueprints.sysagent.step.Step;
+import com.itblueprints.sysagent.step.ThreadType;
 import jakarta.annotation.PostConstruct;
 import lombok.Getter;
 import lombok.RequiredArgsConstructor;
@@ -23,11 +26,18 @@ import lombok.extern.slf4j.Slf4j;
 import lombok.val;
 import org.springframework.stereotype.Component;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 @Component
 @RequiredArgsConstructor
@@ -36,11 +46,41 @@ public class ThreadManager {
 
     private final Config config;
 
+    //Runs heartbeat work, apart from the batch items so it never waits behind them. Always platform threads
     @Getter
     private ExecutorService executor;
 
+    //Runs the manager's job processing, apart from the worker threads. Always platform threads
+    @Getter
+    private ExecutorService managerExecutor;
+
+    //Runs delayed work, e.g. claiming work a short while after step records were inserted
+    @Getter
+    private ScheduledExecutorService scheduler;
+
+    //Runs the processing of batch items. In PLATFORM mode a fixed pool of workerThreads on the task queue
+    @Getter
+    private ExecutorService itemExecutor;
+
+    //Runs the reader and writer stages of batch steps
+    @Getter
+    private ExecutorService pipelineExecutor;
+
     private LinkedBlockingQueue<Runnable> taskQueue;
 
+    //Runs the step records claimed by this node, one in each step slot
+    @Getter
+    private ExecutorService stepExecutor;
+
+    //The slots not running a step record, and the step record running in each slot
+    private ArrayBlockingQueue<Integer> freeStepSlots;
+    private AtomicReferenceArray<String> slotStepRecordIds;
+
+    //The executors of steps that have their own, by step name. Created when a step first runs
+    private final Map<String, Bulkhead> stepBulkheads = new ConcurrentHashMap<>();
+
+    private Bulkhead defaultBulkhead;
+
     //-----------------------------
     @Getter
     private int batchPageSize;
@@ -48,6 +88,12 @@ public class ThreadManager {
     @Getter
     private int taskQueueSize;
 
+    @Getter
+    private int batchPipelineDepth;
+
+    @Getter
+    private int batchChunkSize;
+
     //-----------------------------------------------------
     private static final int TASK_Q_CAPACITY_FACTOR = 10;
 
@@ -58,26 +104,125 @@ public class ThreadManager {
         taskQueueSize = numThreads * TASK_Q_CAPACITY_FACTOR;
         taskQueue = new LinkedBlockingQueue<>(taskQueueSize + 10);
         batchPageSize = config.getBatchPageSize();
+        batchPipelineDepth = Math.max(1, config.getBatchPipelineDepth());
+        batchChunkSize = Math.max(1, config.getBatchChunkSize());
+
+        executor = Executors.newSingleThreadExecutor();
+
+        managerExecutor = Executors.newFixedThreadPool(Math.max(1, config.getManagerThreads()));
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+
+        val numSlots = Math.max(1, config.getStepSlots());
+        stepExecutor = Executors.newFixedThreadPool(numSlots);
+        freeStepSlots = new ArrayBlockingQueue<>(numSlots);
+        for(int i=0; i < numSlots; i++) freeStepSlots.add(i);
+        slotStepRecordIds = new AtomicReferenceArray<>(numSlots);
+
+        pipelineExecutor = Executors.newCachedThreadPool();
+
+        if(config.getWorkerThreadType() == ThreadType.VIRTUAL) {
+            //The in flight limit replaces the task queue as the bound on items being processed
+            itemExecutor = newVirtualThreadExecutor();
+            taskQueueSize = config.getMaxItemsInFlight();
+        }
+        else {
+            itemExecutor = new ThreadPoolExecutor(
+                    numThreads,
+                    numThreads,
+                    1000L,
+                    TimeUnit.MILLISECONDS,
+                    taskQueue);
+        }
+        defaultBulkhead = new Bulkhead(itemExecutor, taskQueueSize);
+
+        log.debug("ThreadManager initialised. Available threads="+numThreads+", item thread type="+config.getWorkerThreadType()
+                +", step slots="+numSlots);
+
+    }
 
-        executor = new ThreadPoolExecutor(
+    //---------------------------------------
+    /**
+     * Gets the executor to process a step's items on. This is the step's own executor if it has
+     * executor settings, otherwise the node's worker threads
+     * @param step The step
+     * @return The executor and the number of items allowed in flight on it
+     */
+    public Bulkhead getBulkhead(Step step){
+        val settings = step.getExecutorSettings();
+        if(settings == null) return defaultBulkhead;
+        return stepBulkheads.computeIfAbsent(step.getName(), name -> newBulkhead(name, settings));
+    }
+
+    //---------------------------------------
+    private Bulkhead newBulkhead(String stepName, ExecutorSettings settings){
+        val numThreads = Math.max(1, settings.getThreads());
+        log.debug("Creating executor for step "+stepName+" - "+settings);
+        if(settings.getThreadType() == ThreadType.VIRTUAL) {
+            val maxInFlight = settings.getQueueDepth() > 0 ? settings.getQueueDepth() : config.getMaxItemsInFlight();
+            return new Bulkhead(newVirtualThreadExecutor(), maxInFlight);
+        }
+        val maxInFlight = settings.getQueueDepth() > 0 ? settings.getQueueDepth() : numThreads * TASK_Q_CAPACITY_FACTOR;
+        //Threads of a step that is not running are let go
+        val pool = new ThreadPoolExecutor(
                 numThreads,
                 numThreads,
-                1000L,
-                TimeUnit.MILLISECONDS,
-                taskQueue);
+                60L,
+                TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(maxInFlight + 10));
+        pool.allowCoreThreadTimeOut(true);
+        return new Bulkhead(pool, maxInFlight);
+    }
+
+    //---------------------------------------
+    // Virtual threads are only available from Java 21, while this library targets Java 17
+    static ExecutorService newVirtualThreadExecutor(){
+        try {
+            val factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return ExecutorService.class.cast(factory.invoke(null));
+        }
+        catch (ReflectiveOperationException e) {
+            log.warn("Virtual threads need Java 21 or later. Using a cached thread pool to process items");
+            return Executors.newCachedThreadPool();
+        }
+    }
 
-        log.debug("ThreadManager initialised. Available threads="+numThreads);
+    //---------------------------------------------------
+    /**
+     * Takes a free step slot, if there is one
+     * @return The slot number, or -1 if all the slots are in use
+     */
+    public int tryAcquireStepSlot(){
+        val slot = freeStepSlots.poll();
+        return slot != null ? slot : -1;
+    }
 
+    //---------------------------------------------------
+    public void setSlotStepRecordId(int slot, String stepRecordId){
+        slotStepRecordIds.set(slot, stepRecordId);
     }
 
-    //---------------------------------------
-    public void drainWorkerTaskQueue(){
-        while(taskQueue.size() > 0) Utils.sleepFor(100);
+    //---------------------------------------------------
+    public void releaseStepSlot(int slot){
+        slotStepRecordIds.set(slot, null);
+        freeStepSlots.add(slot);
     }
 
     //---------------------------------------------------
-    private AtomicBoolean isNodeBusy = new AtomicBoolean(false);
-    public boolean isNodeBusy(){return isNodeBusy.get();}
-    public void setNodeBusy(boolean busy){ isNodeBusy.set(busy);}
+    public int getFreeStepSlots(){
+        return freeStepSlots.size();
+    }
+
+    //---------------------------------------------------
+    /**
+     * @return The ids of the step records running in the slots
+     */
+    public List<String> getRunningStepRecordIds(){
+        val ids = new ArrayList<String>();
+        for(int i=0; i < slotStepRecordIds.length(); i++) {
+            val id = slotStepRecordIds.get(i);
+            if(id != null) ids.add(id);
+        }
+        return ids;
+    }
 
 }
@@ -31,7 +31,7 @@ import lombok.val;
 import org.springframework.stereotype.Component;
 
 import java.time.LocalDateTime;
-import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
@@ -115,13 +115,17 @@ public class ClusterService {
                 schedulerService.onHeartBeat(nodeInfo, now);
                 jobExecutionService.onHeartBeat(nodeInfo, now);
             }
+            if (nodeInfo.isLeaseLost) {
+                log.warn("Life lease of this node ran out. Releasing claimed steps not yet started");
+                stepExecutionService.releaseUnstartedClaims(nodeInfo.nodeId);
+            }
             threadManager.getExecutor().submit(() -> stepExecutionService.onHeartBeat(nodeInfo, now));
         }
     }
 
     public static final int LEASE_HEARTBEATS = 2;
 
-    private static final int CLEANUP_HEARTBEATS = 600;
+    private static final long CLEANUP_HEARTBEATS = 600;
 
 
     /**
@@ -138,7 +142,9 @@ public class ClusterService {
         val ns = repository.getNodeRecordById(nodeRecord.getId());
 
         //extend life lease
+        val leaseLost = nodeRecord.getLifeLeaseTill() > 0 && nodeRecord.getLifeLeaseTill() < timeNow;
         nodeRecord.setLifeLeaseTill(timeNow + hrtbt * LEASE_HEARTBEATS);
+        nodeRecord.setExpireAt(new Date(timeNow + hrtbt * CLEANUP_HEARTBEATS));
         nodeRecord = repository.save(nodeRecord);
 
         //Get the manager record from the DB. This is the NodeRecord with id='M'
@@ -180,23 +186,10 @@ public class ClusterService {
         }
 
 
-        //Handle any dead nodes
-        List deadNodeIdList = new ArrayList<String>();
+        //Handle any dead nodes. Long dead ones are cleaned up by the DB once their expireAt passes
+        List<String> deadNodeIdList = List.of();
         if(isManager()) {
-
-            val otherNodeRecs = repository.getRecordsForOtherNodes(nodeRecord.getId());
-
-            for (val nodeRec : otherNodeRecs) {
-                val nodeId = nodeRec.getId();
-                //recently dead, notify
-                if (nodeRec.getLifeLeaseTill() < timeNow - hrtbt * LEASE_HEARTBEATS){
-                    deadNodeIdList.add(nodeId);
-                }
-                //long dead, clean up
-                if (nodeRec.getLifeLeaseTill() < timeNow - hrtbt * CLEANUP_HEARTBEATS){
-                    repository.delete(nodeRec);
-                }
-            }
+            deadNodeIdList = repository.getDeadNodeIds(nodeRecord.getId(), timeNow - hrtbt * LEASE_HEARTBEATS);
         }
 
         //Finally return the result
@@ -204,7 +197,8 @@ public class ClusterService {
         ci.timeNow = Utils.toDateTime(timeNow);
         ci.nodeId = nodeRecord.getId();
         ci.isManager = isManager();
-        ci.isNodeBusy = threadManager.isNodeBusy();
+        ci.freeStepSlots = threadManager.getFreeStepSlots();
+        ci.isLeaseLost = leaseLost;
         ci.deadNodeIds = deadNodeIdList;
         return ci;
     }
@@ -43,10 +43,16 @@ public class NodeInfo {
     public boolean isManager;
 
     /**
-     * If this node is busy i.e. there is a Step that is
-     * currently being processed
+     * The number of step slots free on this node i.e. the number
+     * of additional Steps it can take on
      */
-    public boolean isNodeBusy;
+    public int freeStepSlots;
+
+    /**
+     * If this node's life lease ran out before it was extended, so
+     * the manager may have released the Steps claimed by this node
+     */
+    public boolean isLeaseLost;
 
     /**
      * The list of node ids for nodes that are dead i.e.
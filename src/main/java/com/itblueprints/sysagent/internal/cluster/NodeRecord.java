@@ -19,11 +19,13 @@ package com.itblueprints.sysagent.internal.cluster;
 import lombok.Getter;
 import lombok.Setter;
 
+import java.util.Date;
+
 /**
  * NodeRecord holding details for a running node. This record is used to check
  * if the node is still alive.When a node dies the lifeLeaseTill value is not
- * extended, thus indicating that the node is dead. The manager node then comes
- * along and clears out those NodeRecords
+ * extended, thus indicating that the node is dead. Once it has been dead for long
+ * enough, the record is removed by the DB's TTL index on expireAt
  */
 @Getter
 @Setter
@@ -40,4 +42,10 @@ public class NodeRecord extends BaseNodeRecord {
      * heartbeat a node extends the value of this field.
      */
     private long lifeLeaseTill;
+
+    /**
+     * When the DB should remove this record. Extended along with lifeLeaseTill, so
+     * it is only reached once the node has been dead for a long time
+     */
+    private Date expireAt;
 }
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2023-2024 the original author or authors.
+ *
+ * Licensed under the Apache Software License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.itblueprints.sysagent.internal.job;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.val;
+
+/**
+ * A step that a job is currently running, along with the progress of its partitions.
+ * A job has more than one of these when branches of its pipeline run side by side
+ */
+@Getter
+@Setter
+public class CurrentStep {
+
+    private String stepName;
+
+    private int partitionCount = 0;
+
+    private int partitionsCompletedCount = 0;
+
+    //The node issuing the step's records, until they have all been issued and released. If the
+    //node dies before then, the step is issued again by another node
+    private String issuingNodeId;
+
+    //------------------------------------------
+    public static CurrentStep of(String stepName, int partitionCount) {
+        val cs = new CurrentStep();
+        cs.stepName = stepName;
+        cs.partitionCount = partitionCount;
+        return cs;
+    }
+}
@@ -17,6 +17,7 @@
 package com.itblueprints.sysagent.internal.job;
 
 import com.itblueprints.sysagent.*;
+import com.itblueprints.sysagent.internal.Config;
 import com.itblueprints.sysagent.internal.cluster.NodeInfo;
 import com.itblueprints.sysagent.internal.ExecutionStatus;
 import com.itblueprints.sysagent.internal.SysAgentException;
@@ -26,7 +27,9 @@ import com.itblueprints.sysagent.job.JobArguments;
 import com.itblueprints.sysagent.internal.repository.RecordRepository;
 import com.itblueprints.sysagent.internal.step.Partitioned;
 import com.itblueprints.sysagent.step.Step;
+import com.itblueprints.sysagent.internal.step.PermitRecord;
 import com.itblueprints.sysagent.internal.step.StepRecord;
+import com.itblueprints.sysagent.internal.step.StepStatusCounts;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import lombok.val;
@@ -34,9 +37,13 @@ import org.springframework.context.ConfigurableApplicationContext;
 import org.springframework.stereotype.Component;
 
 import java.time.LocalDateTime;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
 
 @Component
 @RequiredArgsConstructor
@@ -46,10 +53,14 @@ public class JobExecutionService {
     private final ConfigurableApplicationContext appContext;
     private final RecordRepository repository;
     private final ThreadManager threadManager;
+    private final Config config;
 
     //--------------------------------------------------------------
     private Map<String, JobItem> jobsMap = new HashMap<>();
 
+    //This node's id, kept on the steps it issues
+    private String thisNodeId;
+
     public Step getStep(String jobName, String stepName){
         if(jobsMap.containsKey(jobName)) {
             val jobItem = jobsMap.get(jobName);
@@ -58,6 +69,12 @@ public class JobExecutionService {
         else throw new SysAgentException("Job "+jobName+" not found");
     }
 
+    //--------------------------------------------------------------
+    public Job getJob(String jobName){
+        val jobItem = jobsMap.get(jobName);
+        return jobItem != null ? jobItem.job : null;
+    }
+
 
     //--------------------------------------------------------
     // Starts off a Job
@@ -76,14 +93,16 @@ public class JobExecutionService {
 
         val jobStartedAt = jobArgs.getTime(SysAgentService.DataKeys.jobStartedAt);
 
+        val jobItem = jobsMap.get(jobName);
         val jRec = JobRecord.of(jobName, jobArgs, jobStartedAt);
+        jRec.setPriority(jobItem.job.getPriority());
+        jRec.setWeight(jobItem.job.getWeight());
+        addCurrentStep(jRec, jobItem.firstStep);
         var jobRec = repository.save(jRec);
 
-        val jobItem = jobsMap.get(jobName);
         jobItem.job.onStart(jobArgs);
 
-        sendStepExecutionInstruction(jobItem.firstStep.step, jobArgs, jobRec);
-        repository.save(jobRec);
+        issueSteps(List.of(jobItem.firstStep), jobRec, LocalDateTime.now());
     }
 
     //------------------------------------------------------------
@@ -93,37 +112,30 @@ public class JobExecutionService {
     }
 
     //--------------------------------------------------------------------
+    // Jobs are normally moved on by the worker that completes a step's last record. This is the
+    // safety net for when that did not happen, e.g. the worker died in between
     void processExecutingJobs(LocalDateTime now) {
         val executingJobs = repository.getRunningJobRecords();
+        val countsByStep = repository.getCurrentStepStatusCounts(executingJobs).stream()
+                .collect(Collectors.toMap(c -> c.getJobRecordId()+"/"+c.getStepName(), c -> c));
         for(val jobRec : executingJobs){
 
-            threadManager.getExecutor().submit(() -> {
+            threadManager.getManagerExecutor().submit(() -> {
                 try {
-                    val stepRecs = repository.getStepsRecordsForStepOfJob(jobRec.getId(), jobRec.getCurrentStepName());
-                    if(isCurrentStepComplete(jobRec, stepRecs)){
-                        //get next step
-                        val jobItem = jobsMap.get(jobRec.getJobName());
-                        val nextPStep = jobItem.getStep(jobRec.getCurrentStepName()).nextPipelineStep;
-                        val jobArgs = jobRec.getJobArguments();
-                        if(nextPStep != null) { //there is a next step
-                            sendStepExecutionInstruction(nextPStep.step, jobArgs, jobRec);
+                    //Each branch running side by side is checked, and all the completed ones moved on together
+                    val completedStepNames = new ArrayList<String>();
+                    var failed = false;
+                    for(val currentStep : jobRec.getCurrentSteps()){
+                        val counts = countsByStep.get(jobRec.getId()+"/"+currentStep.getStepName());
+                        if(isCurrentStepComplete(currentStep, counts)){
+                            completedStepNames.add(currentStep.getStepName());
                         }
-                        else { //No more steps, job complete
-                            jobItem.job.onComplete(jobArgs);
-                            log.debug("Job complete - "+jobRec.getJobName());
-                            jobRec.setStatus(ExecutionStatus.COMPLETE);
-                            jobRec.setCompletedAt(now);
+                        else if(hasCurrentStepFailed(currentStep, counts)){
+                            failed = true;
                         }
-                        jobRec.setLastUpdateAt(now);
-                        repository.save(jobRec);
                     }
-                    else if(hasCurrentStepFailed(jobRec, stepRecs)){
-                        //Mark job as failed
-                        jobRec.setStatus(ExecutionStatus.FAILED);
-                        jobRec.setLastUpdateAt(now);
-                        repository.save(jobRec);
-                    }
-
+                    if(failed) failJob(jobRec, now);
+                    else if(!completedStepNames.isEmpty()) advanceJob(jobRec, completedStepNames, now);
                 }
                 catch (Exception e){
                     e.printStackTrace();
@@ -133,101 +145,441 @@ public class JobExecutionService {
         }
     }
 
+    //--------------------------------------------------------------------
+    /**
+     * Called by a worker when it completes a step record. The completion is counted against the
+     * job and the worker that completes the last record of the step moves the job on
+     * @param stepRec The completed step record
+     */
+    public void onStepRecordComplete(StepRecord stepRec) {
+        val stepName = stepRec.getStepName();
+        val jobRec = repository.incrementStepCompletedCount(stepRec.getJobRecordId(), stepName);
+        if(jobRec == null) return; //The job has already moved on, or ended
+
+        //Let the partitions of steps pipelined with this one, with the same number, run
+        val pipelinedSteps = getPipelinedNextSteps(jobsMap.get(jobRec.getJobName()).getStep(stepName));
+        if(stepRec.getPartition() != null) {
+            //A partition with an affinity key is placed on the node that ran it in this step
+            val hasAffinity = stepRec.getPartition().getAffinityKey() != null;
+            val preferredNodeId = hasAffinity ? stepRec.getNodeId() : null;
+            val preferredUntil = hasAffinity ? LocalDateTime.now().plusSeconds(config.getStepAffinityWaitSecs()) : null;
+            for(val pStep : pipelinedSteps) {
+                val pipelinedStep = jobRec.getCurrentStep(pStep.step.getName());
+                if(pipelinedStep == null) continue;
+                repository.releasePipelinedStepRecord(jobRec.getId(), pStep.step.getName(), stepName,
+                        stepRec.getPartition().getPartitionNum(), pipelinedStep.getPartitionCount(),
+                        preferredNodeId, preferredUntil);
+            }
+        }
+
+        val currentStep = jobRec.getCurrentStep(stepName);
+        val expectedCount = Math.max(1, currentStep.getPartitionCount());
+        if(currentStep.getPartitionsCompletedCount() < expectedCount) return;
+
+        //A record that ran twice, e.g. after its node was wrongly taken as dead, is counted twice.
+        //So check the records themselves before moving on
+        val counts = repository.getCurrentStepStatusCounts(List.of(jobRec)).stream()
+                .filter(c -> c.getStepName().equals(stepName))
+                .findFirst().orElse(null);
+        if(isCurrentStepComplete(currentStep, counts)) advanceJob(jobRec, List.of(stepName), LocalDateTime.now());
+    }
+
+    //--------------------------------------------------------------------
+    // Moves the job on from the completed steps. Each next step whose previous steps have all completed
+    // is issued, all at once if there are several. The job completes once no steps are left running. If
+    // the manager and a worker both try, only one gets to, as the job record update is fenced by its
+    // version. A job that was changed for some other reason, e.g. a record of another branch completed,
+    // is read again and the move retried
+    void advanceJob(JobRecord jobRec, List<String> completedStepNames, LocalDateTime now) {
+        val jobItem = jobsMap.get(jobRec.getJobName());
+        val readySteps = new ArrayList<PipelineStep>();
+        val doneStepNames = new ArrayList<String>();
+        val updatedJobRec = updateJobRecord(jobRec, jr -> {
+            readySteps.clear();
+            doneStepNames.clear();
+            completedStepNames.stream().filter(n -> jr.getCurrentStep(n) != null).forEach(doneStepNames::add);
+            if(doneStepNames.isEmpty()) return false; //Already moved on from
+
+            jr.getCurrentSteps().removeIf(cs -> doneStepNames.contains(cs.getStepName()));
+            jr.getCompletedStepNames().addAll(doneStepNames);
+            for(val stepName : doneStepNames){
+                for(val nextPStep : jobItem.getStep(stepName).nextPipelineSteps){
+                    val nextStepName = nextPStep.step.getName();
+                    //A step pipelined with the one before it is already running, or may even be done
+                    if(jr.getCurrentStep(nextStepName) != null || jr.getCompletedStepNames().contains(nextStepName)) continue;
+                    val isReady = nextPStep.previousPipelineSteps.stream()
+                            .allMatch(ps -> jr.getCompletedStepNames().contains(ps.step.getName()));
+                    if(isReady && !readySteps.contains(nextPStep)) readySteps.add(nextPStep);
+                }
+            }
+            for(val pStep : readySteps){
+                log.debug("Sending step execution instruction for step - " + pStep.step.getName());
+                addCurrentStep(jr, pStep);
+            }
+            if(jr.getCurrentSteps().isEmpty()) { //No more steps, job complete
+                jr.setStatus(ExecutionStatus.COMPLETE);
+                jr.setCompletedAt(now);
+            }
+            jr.setLastUpdateAt(now);
+            return true;
+        });
+        if(updatedJobRec == null) return;
+
+        //Records of pipelined steps should have been released as the partitions before them completed.
+        //In case a worker died in between, release whatever is left now that the step before is done
+        for(val stepName : doneStepNames){
+            for(val pStep : getPipelinedNextSteps(jobItem.getStep(stepName))){
+                val pipelinedStep = updatedJobRec.getCurrentStep(pStep.step.getName());
+                if(pipelinedStep == null) continue;
+                repository.releaseIssuedStepRecords(updatedJobRec.getId(), pStep.step.getName(), pipelinedStep.getPartitionCount());
+            }
+        }
+
+        if(updatedJobRec.getStatus() == ExecutionStatus.COMPLETE) {
+            jobItem.job.onComplete(updatedJobRec.getJobArguments());
+            log.debug("Job complete - "+updatedJobRec.getJobName());
+        }
+        else issueSteps(readySteps, updatedJobRec, now);
+    }
+
+    //--------------------------------------------------------------------
+    // Adds the step to the job's current steps, along with any steps pipelined with it, as
+    // those start running while it runs
+    private void addCurrentStep(JobRecord jobRec, PipelineStep pStep){
+        val currentStep = CurrentStep.of(pStep.step.getName(), JobRecord.PARTITIONS_ISSUING);
+        currentStep.setIssuingNodeId(thisNodeId);
+        jobRec.getCurrentSteps().add(currentStep);
+        for(val next : getPipelinedNextSteps(pStep)) addCurrentStep(jobRec, next);
+    }
+
+    //--------------------------------------------------------------------
+    public boolean hasPipelinedNextSteps(String jobName, String stepName){
+        return !getPipelinedNextSteps(jobsMap.get(jobName).getStep(stepName)).isEmpty();
+    }
+
+    //--------------------------------------------------------------------
+    // Counts a record split off another while the step runs as one more partition of the step, so
+    // the step is not taken as complete before it. Steps of a single record are checked by the
+    // number of records alone, so their count stays as it is
+    public void onStepRecordSplit(StepRecord splitRec){
+        repository.incrementStepPartitionCount(splitRec.getJobRecordId(), splitRec.getStepName());
+    }
+
+    //--------------------------------------------------------------------
+    // The next steps that run partition by partition alongside this step, instead of after it
+    private List<PipelineStep> getPipelinedNextSteps(PipelineStep pStep){
+        if(!(pStep.step instanceof Partitioned)) return List.of();
+        return pStep.nextPipelineSteps.stream()
+                .filter(next -> next.previousPipelineSteps.size() == 1
+                        && next.step instanceof Partitioned
+                        && ((Partitioned) next.step).isPartitionPipelined())
+                .toList();
+    }
+
+    //--------------------------------------------------------------------
+    private void addStepNames(PipelineStep pStep, List<String> stepNames){
+        stepNames.add(pStep.step.getName());
+        for(val next : getPipelinedNextSteps(pStep)) addStepNames(next, stepNames);
+    }
+
+    //--------------------------------------------------------------------
+    private void failJob(JobRecord jobRec, LocalDateTime now){
+        updateJobRecord(jobRec, jr -> {
+            jr.setStatus(ExecutionStatus.FAILED);
+            jr.setLastUpdateAt(now);
+            return true;
+        });
+    }
+
+    //--------------------------------------------------------------------
+    // Applies the change to the running job and saves it, as long as no one else changed the job
+    // in the meantime. If they did, the job is read again and the change made again, unless the
+    // change no longer applies. Returns the saved job record, or null if nothing was saved
+    private JobRecord updateJobRecord(JobRecord jobRec, Predicate<JobRecord> change){
+        var jr = jobRec;
+        while(jr != null && jr.getStatus() == ExecutionStatus.RUNNING && change.test(jr)){
+            if(repository.tryUpdateJobRecord(jr)) return jr;
+            jr = repository.getJobRecordById(jobRec.getId());
+        }
+        return null;
+    }
+
     //-----------------------------------------------------------------------------
-    boolean isCurrentStepComplete(JobRecord jobRec, List<StepRecord> stepRecs){
-        if(stepRecs==null || stepRecs.isEmpty()){
+    // A step is complete once all its records are. Records split off others while the step ran
+    // add to the records issued, so the step must have at least as many as were issued
+    boolean isCurrentStepComplete(CurrentStep currentStep, StepStatusCounts counts){
+        if(currentStep.getPartitionCount() == JobRecord.PARTITIONS_ISSUING) return false;
+        if(counts==null || counts.getTotal() == 0){
             throw new SysAgentException("There must be one or more step records at this stage");
         }
         boolean completed = false;
-        val currentStepName = jobRec.getCurrentStepName();
-        if(jobRec.getCurrentStepPartitionCount() > 0){
-            val completedCount = stepRecs.stream()
-                    .filter(sr -> sr.getStepName().equals(currentStepName)
-                            && sr.getStatus() == ExecutionStatus.COMPLETE)
-                    .count();
-            jobRec.setCurrentStepPartitionsCompletedCount(Math.toIntExact(completedCount));
-            log.debug("partitions completed = "+completedCount+" of "+jobRec.getCurrentStepPartitionCount());
-            completed = completedCount == jobRec.getCurrentStepPartitionCount();
+        if(currentStep.getPartitionCount() > 0){
+            val completedCount = counts.getCompleted();
+            currentStep.setPartitionsCompletedCount(completedCount);
+            log.debug("partitions completed = "+completedCount+" of "+currentStep.getPartitionCount());
+            completed = completedCount == counts.getTotal() && counts.getTotal() >= currentStep.getPartitionCount();
         }
         else {
-            completed = (stepRecs.size() == 1) && (stepRecs.get(0).getStatus() == ExecutionStatus.COMPLETE);
+            completed = counts.getCompleted() == counts.getTotal();
         }
         return completed;
     }
 
     //----------------------------------------------
-    boolean hasCurrentStepFailed(JobRecord jobRec, List<StepRecord> stepRecs){
+    boolean hasCurrentStepFailed(CurrentStep currentStep, StepStatusCounts counts){
+        if(currentStep.getPartitionCount() == JobRecord.PARTITIONS_ISSUING) return false;
 
-        if(stepRecs==null || stepRecs.isEmpty()){
+        if(counts==null || counts.getTotal() == 0){
             throw new SysAgentException("There must be one or more step records at this stage");
         }
 
         boolean failed = false;
-        if(jobRec.getCurrentStepPartitionCount() > 0){
-            val completeCount = stepRecs.stream()
-                    .filter(sr -> sr.getStatus() == ExecutionStatus.COMPLETE)
-                    .count();
-
-            val failedCount = stepRecs.stream()
-                    .filter(sr -> sr.getStatus() == ExecutionStatus.FAILED )
-                    .count();
-
-            failed = (completeCount+failedCount == jobRec.getCurrentStepPartitionCount()) && failedCount > 0;
+        if(currentStep.getPartitionCount() > 0){
+            val completeCount = counts.getCompleted();
+            val failedCount = counts.getFailed();
+            failed = (completeCount+failedCount == counts.getTotal())
+                    && counts.getTotal() >= currentStep.getPartitionCount()
+                    && failedCount > 0;
         }
         else {
-            failed = stepRecs.get(0).getStatus() == ExecutionStatus.FAILED;
+            failed = counts.getFailed() > 0;
         }
         return failed;
     }
 
     //----------------------------------------------------------------------
-    void sendStepExecutionInstruction(Step step,
-                                      JobArguments jobArgs,
-                                      JobRecord jobRecord){
-
-        log.debug("Sending step execution instruction for step - " + step.getName());
-        jobRecord.setCurrentStepName(step.getName());
-
-        if(step instanceof Partitioned) {
+    // Issues the records of steps the job has just moved on to. If a step cannot be issued the
+    // job fails, as it would otherwise wait on the step forever. Once a step and the steps pipelined
+    // with it are issued, they no longer need this node to finish the issue
+    private void issueSteps(List<PipelineStep> pSteps, JobRecord jobRecord, LocalDateTime now){
+        for(val pStep : pSteps){
+            try {
+                val issued = sendStepExecutionInstruction(pStep.step, jobRecord.getJobArguments(), jobRecord,
+                        null, getPipelinedNextSteps(pStep));
+                if(issued) {
+                    val stepNames = new ArrayList<String>();
+                    addStepNames(pStep, stepNames);
+                    repository.clearStepIssuingNode(jobRecord.getId(), stepNames, thisNodeId);
+                }
+            }
+            catch (Exception e){
+                log.error("Error issuing step "+pStep.step.getName()+" of job "+jobRecord.getJobName(), e);
+                failJob(jobRecord, now);
+                throw e;
+            }
+        }
+    }
 
-            val prtned = (Partitioned) step;
-            val partitions = prtned.getPartitions(jobArgs);
+    //----------------------------------------------------------------------
+    // Issues the records of a step the job has moved on to, and sets the step's partition count once
+    // they are all issued. Until then the count is PARTITIONS_ISSUING and the records cannot be claimed.
+    // The partitions of a partitioned step are streamed and their records inserted in batches, then
+    // released together. Returns false if the job was changed by someone else in the meantime
+    boolean sendStepExecutionInstruction(Step step,
+                                         JobArguments jobArgs,
+                                         JobRecord jobRecord){
+        return sendStepExecutionInstruction(step, jobArgs, jobRecord, null, List.of());
+    }
 
+    //----------------------------------------------------------------------
+    // The records of a step pipelined with an upstream step stay held, and each is released when the
+    // upstream partition with the same number completes. Steps pipelined with this one are issued
+    // before this step's records are released, so their records are there to release by then
+    private boolean sendStepExecutionInstruction(Step step,
+                                                 JobArguments jobArgs,
+                                                 JobRecord jobRecord,
+                                                 String upstreamStepName,
+                                                 List<PipelineStep> pipelinedSteps){
+
+        if(!(step instanceof Partitioned)) return sendSingleStepRecord(step, jobArgs, jobRecord, upstreamStepName, pipelinedSteps);
+
+        try(val partitions = ((Partitioned) step).getPartitionStream(jobArgs)) {
+            val iterator = partitions.iterator();
+
+            //Peek at the first 2 partitions to find out if the step is partitioned at all
+            val first = iterator.hasNext() ? iterator.next() : null;
+            if(first == null) return sendSingleStepRecord(step, jobArgs, jobRecord, upstreamStepName, pipelinedSteps);
+            val second = iterator.hasNext() ? iterator.next() : null;
+            if(second == null) throw new SysAgentException("Minimum partitions is 2");
+
+            val batchSize = Math.max(1, config.getStepRecordInsertBatchSize());
+            val permitKeys = permitKeys(jobRecord.getJobName(), step);
+            var batch = new ArrayList<StepRecord>(batchSize);
             int prtnCount = 0;
-            if (partitions != null && !partitions.isEmpty()) {
-                if (partitions.size() < 2) throw new SysAgentException("Minimum partitions is 2");
-                prtnCount = partitions.size();
+            val peeked = List.of(first, second).iterator();
+            while(peeked.hasNext() || iterator.hasNext()) {
+                val prtn = peeked.hasNext() ? peeked.next() : iterator.next();
+                prtn.setPartitionNum(prtnCount++);
+                val stepRecord = StepRecord.of(jobRecord.getId(), jobRecord.getJobName(), step.getName(), jobArgs);
+                stepRecord.setPartition(prtn);
+                stepRecord.setPartitionKey(prtn.toKeyString());
+                stepRecord.setPriority(jobRecord.getPriority());
+                stepRecord.setWeight(jobRecord.getWeight());
+                stepRecord.setPermitKeys(permitKeys);
+                stepRecord.setUpstreamStepName(upstreamStepName);
+                stepRecord.setIssuingNodeId(thisNodeId);
+                stepRecord.setClaimed(true); //Held until all are issued
+                batch.add(stepRecord);
+                if(batch.size() == batchSize) {
+                    estimateCosts(jobRecord.getJobName(), step.getName(), batch);
+                    placeByAffinity(batch);
+                    repository.insertStepRecords(batch);
+                    batch = new ArrayList<>(batchSize);
+                }
+            }
+            if(!batch.isEmpty()) {
+                estimateCosts(jobRecord.getJobName(), step.getName(), batch);
+                placeByAffinity(batch);
+                repository.insertStepRecords(batch);
             }
-            jobRecord.setCurrentStepPartitionCount(prtnCount);
-            jobRecord.setCurrentStepPartitionsCompletedCount(0);
             log.debug("Total partitions = " + prtnCount);
 
-            for(int i=0; i < prtnCount; i++){
-                val prtn = partitions.get(i);
-                prtn.setPartitionNum(i);
-                prtn.setTotalPartitions(prtnCount);
-                val stepRecord = StepRecord.of(jobRecord.getId(), jobRecord.getJobName(), step.getName(), jobArgs);
-                stepRecord.setPartition(prtn);
-                repository.save(stepRecord);
+            if(!trySetPartitionCount(jobRecord, step, prtnCount)) return false;
+            if(upstreamStepName != null) {
+                val upstreamStep = jobRecord.getCurrentStep(upstreamStepName);
+                if(upstreamStep != null && upstreamStep.getPartitionCount() != prtnCount) {
+                    log.warn("Step "+step.getName()+" has "+prtnCount+" partitions but "+upstreamStepName+" has "
+                            +upstreamStep.getPartitionCount()+". Partitions without a match wait for the whole of "+upstreamStepName);
+                }
             }
+            sendPipelinedSteps(step, jobArgs, jobRecord, pipelinedSteps);
+            if(upstreamStepName == null) repository.releaseIssuedStepRecords(jobRecord.getId(), step.getName(), prtnCount);
+        }
+        return true;
+    }
 
+    //----------------------------------------------------------------------
+    // Sets the cost of each record, by which they are claimed largest first. Partitions without a
+    // cost estimate are taken to cost the millis they took in the last run of the job, if any
+    private void estimateCosts(String jobName, String stepName, List<StepRecord> stepRecords){
+        val unknownKeys = stepRecords.stream()
+                .filter(sr -> sr.getPartition().getCost() == null)
+                .map(StepRecord::getPartitionKey)
+                .toList();
+        val lastMillis = unknownKeys.isEmpty() ? Map.<String, Long>of() : repository.getLastPartitionMillis(jobName, stepName, unknownKeys);
+        for(val stepRecord : stepRecords) {
+            val cost = stepRecord.getPartition().getCost();
+            stepRecord.setCost(cost != null ? cost : lastMillis.getOrDefault(stepRecord.getPartitionKey(), 0L));
         }
-        else {
-            val stepRecord = StepRecord.of(jobRecord.getId(), jobRecord.getJobName(), step.getName(), jobArgs);
-            repository.save(stepRecord);
+    }
+
+    //----------------------------------------------------------------------
+    // Places the records of partitions with an affinity key on the live node that last ran the key,
+    // for stepAffinityWaitSecs. After that any node may claim them
+    private void placeByAffinity(List<StepRecord> stepRecords){
+        val affinityKeys = stepRecords.stream()
+                .map(sr -> sr.getPartition().getAffinityKey())
+                .filter(Objects::nonNull)
+                .distinct()
+                .toList();
+        if(affinityKeys.isEmpty()) return;
+
+        val nodeIds = repository.getLiveAffinityNodeIds(affinityKeys, System.currentTimeMillis());
+        val preferredUntil = LocalDateTime.now().plusSeconds(config.getStepAffinityWaitSecs());
+        for(val stepRecord : stepRecords) {
+            val affinityKey = stepRecord.getPartition().getAffinityKey();
+            val nodeId = affinityKey != null ? nodeIds.get(affinityKey) : null;
+            if(nodeId == null) continue;
+            stepRecord.setPreferredNodeId(nodeId);
+            stepRecord.setPreferredUntil(preferredUntil);
         }
+    }
 
+    //----------------------------------------------------------------------
+    // The permits a record of the step must hold to run, for the caps on the job and the step
+    private List<String> permitKeys(String jobName, Step step){
+        val permitKeys = new ArrayList<String>();
+        if(jobsMap.get(jobName).job.getMaxConcurrency() > 0) permitKeys.add(PermitRecord.jobKey(jobName));
+        if(step.getMaxConcurrency() > 0) permitKeys.add(PermitRecord.stepKey(jobName, step.getName()));
+        return permitKeys;
+    }
+
+    //----------------------------------------------------------------------
+    private boolean sendSingleStepRecord(Step step, JobArguments jobArgs, JobRecord jobRecord,
+                                         String upstreamStepName, List<PipelineStep> pipelinedSteps){
+        val stepRecord = StepRecord.of(jobRecord.getId(), jobRecord.getJobName(), step.getName(), jobArgs);
+        stepRecord.setPriority(jobRecord.getPriority());
+        stepRecord.setWeight(jobRecord.getWeight());
+        stepRecord.setPermitKeys(permitKeys(jobRecord.getJobName(), step));
+        //Without partitions there is nothing to pipeline on, so a pipelined step waits for the whole of the upstream step
+        stepRecord.setUpstreamStepName(upstreamStepName);
+        stepRecord.setIssuingNodeId(thisNodeId);
+        stepRecord.setClaimed(upstreamStepName != null || !pipelinedSteps.isEmpty());
+        repository.save(stepRecord);
+        if(!trySetPartitionCount(jobRecord, step, 0)) return false;
+        if(!pipelinedSteps.isEmpty()) {
+            sendPipelinedSteps(step, jobArgs, jobRecord, pipelinedSteps);
+            if(upstreamStepName == null) repository.releaseIssuedStepRecords(jobRecord.getId(), step.getName(), 0);
+        }
+        return true;
+    }
+
+    //----------------------------------------------------------------------
+    private void sendPipelinedSteps(Step step, JobArguments jobArgs, JobRecord jobRecord, List<PipelineStep> pipelinedSteps){
+        for(val pStep : pipelinedSteps){
+            sendStepExecutionInstruction(pStep.step, jobArgs, jobRecord, step.getName(), getPipelinedNextSteps(pStep));
+        }
+    }
+
+    //----------------------------------------------------------------------
+    // The records this node issued are removed if it cannot set the count, as the step may have been
+    // issued again by another node in the meantime
+    private boolean trySetPartitionCount(JobRecord jobRecord, Step step, int partitionCount){
+        if(!repository.trySetStepPartitionCount(jobRecord.getId(), step.getName(), partitionCount, thisNodeId)) {
+            log.debug("Job "+jobRecord.getJobName()+" was changed elsewhere. Not issuing step "+step.getName());
+            repository.deleteIssuedStepRecords(jobRecord.getId(), step.getName(), thisNodeId);
+            return false;
+        }
+        val currentStep = jobRecord.getCurrentStep(step.getName());
+        if(currentStep != null) currentStep.setPartitionCount(partitionCount);
+        return true;
     }
 
     //-------------------------------------------------------
     public void releaseDeadClaims(NodeInfo nodeInfo){
-        for(val deadNodeId : nodeInfo.deadNodeIds){
-            val unworkedStepRecs = repository.getStepRecordsClaimedByNode(deadNodeId);
-            for(val stepRec : unworkedStepRecs){
-                stepRec.setClaimed(false);
-                stepRec.setNodeId(null);
-                repository.save(stepRec);
-            }
+        val released = repository.releaseStepRecordClaimsOfNodes(nodeInfo.deadNodeIds);
+        if(released > 0) log.info("Released "+released+" step records claimed by dead nodes "+nodeInfo.deadNodeIds);
+        val releasedPermits = repository.releasePermitsOfNodes(nodeInfo.deadNodeIds)
+                + repository.releaseExpiredPermits(System.currentTimeMillis());
+        if(releasedPermits > 0) log.info("Released permits held by dead or lapsed nodes");
+        reissueStepsOfDeadNodes(nodeInfo.deadNodeIds, LocalDateTime.now());
+    }
+
+    //-------------------------------------------------------
+    // Takes over the issue of steps whose issuing node died before it finished, which would otherwise
+    // leave their records held and the job waiting forever. The records issued so far are removed, and
+    // the steps issued again by this node. Steps pipelined with another step are issued along with it
+    void reissueStepsOfDeadNodes(List<String> deadNodeIds, LocalDateTime now){
+        if(deadNodeIds.isEmpty()) return;
+        for(val jobRec : repository.getJobRecordsIssuedByNodes(deadNodeIds)){
+            val jobItem = jobsMap.get(jobRec.getJobName());
+            if(jobItem == null) continue;
+            val stepNames = new ArrayList<String>();
+            val updatedJobRec = updateJobRecord(jobRec, jr -> {
+                stepNames.clear();
+                for(val currentStep : jr.getCurrentSteps()){
+                    if(!deadNodeIds.contains(currentStep.getIssuingNodeId())) continue;
+                    currentStep.setPartitionCount(JobRecord.PARTITIONS_ISSUING);
+                    currentStep.setPartitionsCompletedCount(0);
+                    currentStep.setIssuingNodeId(thisNodeId);
+                    stepNames.add(currentStep.getStepName());
+                }
+                jr.setLastUpdateAt(now);
+                return !stepNames.isEmpty();
+            });
+            if(updatedJobRec == null) continue;
+
+            log.info("Issuing steps "+stepNames+" of job "+jobRec.getJobName()+" again, as the node issuing them died");
+            for(val stepName : stepNames) repository.deleteStepRecordsOfStep(jobRec.getId(), stepName);
+            val pipelinedNames = stepNames.stream()
+                    .flatMap(name -> getPipelinedNextSteps(jobItem.getStep(name)).stream())
+                    .map(next -> next.step.getName())
+                    .toList();
+            val firstSteps = stepNames.stream()
+                    .filter(name -> !pipelinedNames.contains(name))
+                    .map(jobItem::getStep)
+                    .toList();
+            issueSteps(firstSteps, updatedJobRec, now);
         }
     }
 
@@ -254,6 +606,7 @@ public class JobExecutionService {
     public void initialise(NodeInfo nodeInfo){
 
         log.debug("Initialising JobService");
+        thisNodeId = nodeInfo.nodeId;
         val beanFactory = appContext.getBeanFactory();
         val jobBeanNames = beanFactory.getBeanNamesForType(Job.class);
         for (val beanName : jobBeanNames) {
@@ -267,14 +620,24 @@ public class JobExecutionService {
                 throw new SysAgentException("First step is missing in pipeline for Job "+jobBean.getName());
             }
             jobItem.firstStep = firstPStep;
+            if(jobBean.getWeight() < 1){
+                throw new SysAgentException("Weight must be 1 or more for Job "+jobBean.getName());
+            }
 
             //Create a map of step name to pipeline step
-            var currPStep = firstPStep;
-            do {
-                jobItem.putStep(currPStep.step.getName(), currPStep);
-                currPStep = currPStep.nextPipelineStep;
+            for(val pStep : pipeline.getSteps()){
+                jobItem.putStep(pStep.step.getName(), pStep);
+            }
+
+            //The caps on how many records of the job, or of each step, run at once across the cluster
+            if(jobBean.getMaxConcurrency() > 0) {
+                repository.setPermitLimit(PermitRecord.jobKey(jobBean.getName()), jobBean.getMaxConcurrency());
+            }
+            for(val pStep : pipeline.getSteps()){
+                if(pStep.step.getMaxConcurrency() > 0) {
+                    repository.setPermitLimit(PermitRecord.stepKey(jobBean.getName(), pStep.step.getName()), pStep.step.getMaxConcurrency());
+                }
             }
-            while(currPStep!=null);
 
             jobsMap.put(jobBean.getName(), jobItem);
         }
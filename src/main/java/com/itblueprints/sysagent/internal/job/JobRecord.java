@@ -26,6 +26,8 @@ import org.springframework.data.mongodb.core.index.Indexed;
 import org.springframework.data.mongodb.core.mapping.Document;
 
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
 
 @Getter
 @Setter
@@ -48,14 +50,25 @@ public class JobRecord {
 
     private LocalDateTime lastUpdateAt;
 
-    private String currentStepName;
+    private int priority;
 
-    private int currentStepPartitionCount = 0;
+    private int weight = 1;
 
-    private int currentStepPartitionsCompletedCount = 0;
+    //The steps the job is running. More than one if branches of the pipeline run side by side
+    private List<CurrentStep> currentSteps = new ArrayList<>();
+
+    //A step that joins branches runs once all the steps before it are in here
+    private List<String> completedStepNames = new ArrayList<>();
 
     private int currentStepRetryCount = 0;
 
+    //Goes up each time the job's current steps change, or it completes or fails. The job is
+    //only moved on if the version is unchanged, so each step is only ever moved on from once
+    private long version = 0;
+
+    //While the records of a step are being issued, its partition count is this
+    public static final int PARTITIONS_ISSUING = -1;
+
     //------------------------------------------
     public static JobRecord of(String jobName, JobArguments jobArguments, LocalDateTime startedAt) {
         val jr = new JobRecord();
@@ -66,4 +79,12 @@ public class JobRecord {
         jr.lastUpdateAt = startedAt;
         return jr;
     }
+
+    //------------------------------------------
+    public CurrentStep getCurrentStep(String stepName) {
+        for(val cs : currentSteps){
+            if(cs.getStepName().equals(stepName)) return cs;
+        }
+        return null;
+    }
 }
@@ -18,8 +18,13 @@ package com.itblueprints.sysagent.internal.job;
 
 import com.itblueprints.sysagent.step.Step;
 
+import java.util.ArrayList;
+import java.util.List;
+
 public class PipelineStep {
     public Step step;
-    public String onOutcome;
-    public PipelineStep nextPipelineStep;
+    //The steps that run once this one completes. If there are several they run side by side
+    public List<PipelineStep> nextPipelineSteps = new ArrayList<>();
+    //The steps that must all complete before this one runs
+    public List<PipelineStep> previousPipelineSteps = new ArrayList<>();
 }
@@ -17,23 +17,47 @@
 package com.itblueprints.sysagent.internal.repository;
 
 import com.itblueprints.sysagent.internal.ExecutionStatus;
+import com.itblueprints.sysagent.internal.SysAgentException;
 import com.itblueprints.sysagent.internal.cluster.ManagerNodeRecord;
 import com.itblueprints.sysagent.internal.cluster.BaseNodeRecord;
 import com.itblueprints.sysagent.internal.cluster.NodeRecord;
 import com.itblueprints.sysagent.internal.job.JobRecord;
 import com.itblueprints.sysagent.internal.scheduling.JobScheduleRecord;
+import com.itblueprints.sysagent.internal.step.AffinityRecord;
+import com.itblueprints.sysagent.internal.step.PermitRecord;
 import com.itblueprints.sysagent.internal.step.StepRecord;
+import com.itblueprints.sysagent.internal.step.StepStatusCounts;
+import com.mongodb.MongoCommandException;
+import com.mongodb.MongoInterruptedException;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.Filters;
 import lombok.RequiredArgsConstructor;
 import lombok.val;
+import org.bson.Document;
 import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
 import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.aggregation.ArithmeticOperators;
+import org.springframework.data.mongodb.core.aggregation.ArrayOperators;
+import org.springframework.data.mongodb.core.aggregation.ComparisonOperators;
+import org.springframework.data.mongodb.core.aggregation.ConditionalOperators;
 import org.springframework.data.mongodb.core.index.Index;
 import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.Query;
 import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.stereotype.Component;
 
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 @Component
 @RequiredArgsConstructor
@@ -83,10 +107,14 @@ public class MongoRecordRepository implements RecordRepository {
 
     //--------------------------------------
     @Override
-    public List<NodeRecord> getRecordsForOtherNodes(String thisNodeId) {
-        val allNRs = mongoTemplate.findAll(NodeRecord.class);
-        return allNRs.stream()
-                .filter(nr -> ! nr.getId().equals(thisNodeId))
+    public List<String> getDeadNodeIds(String thisNodeId, long leaseExpiredBefore) {
+        val query = new Query();
+        query.addCriteria(Criteria
+                .where("lifeLeaseTill").lt(leaseExpiredBefore)
+                .and("id").ne(thisNodeId));
+        query.fields().include("id");
+        return mongoTemplate.find(query, NodeRecord.class).stream()
+                .map(NodeRecord::getId)
                 .toList();
     }
 
@@ -115,11 +143,93 @@ public class MongoRecordRepository implements RecordRepository {
     //--------------------------------------
     @Override
     public void initialise() {
-        mongoTemplate.indexOps(JobRecord.class)
+        mongoTemplate.indexOps(StepRecord.class)
                 .ensureIndex(new Index()
                         .on("jobRecordId", Sort.Direction.ASC)
                         .on("stepName", Sort.Direction.ASC)
                         .on("status", Sort.Direction.ASC));
+        //For releasing the claims of dead nodes
+        mongoTemplate.indexOps(StepRecord.class)
+                .ensureIndex(new Index()
+                        .on("nodeId", Sort.Direction.ASC)
+                        .sparse());
+        //For claiming the highest priority, then costliest, records first
+        mongoTemplate.indexOps(StepRecord.class)
+                .ensureIndex(new Index()
+                        .on("claimed", Sort.Direction.ASC)
+                        .on("priority", Sort.Direction.DESC)
+                        .on("cost", Sort.Direction.DESC));
+        //For counting the records each job has running, to share the slots between jobs
+        mongoTemplate.indexOps(StepRecord.class)
+                .ensureIndex(new Index()
+                        .on("status", Sort.Direction.ASC)
+                        .on("jobName", Sort.Direction.ASC));
+        //For finding the jobs with records waiting, to share the slots between jobs
+        mongoTemplate.indexOps(StepRecord.class)
+                .ensureIndex(new Index()
+                        .on("claimed", Sort.Direction.ASC)
+                        .on("jobName", Sort.Direction.ASC));
+        //For finding what partitions took in the last run
+        mongoTemplate.indexOps(StepRecord.class)
+                .ensureIndex(new Index()
+                        .on("jobName", Sort.Direction.ASC)
+                        .on("stepName", Sort.Direction.ASC)
+                        .on("partitionKey", Sort.Direction.ASC)
+                        .on("completedAt", Sort.Direction.DESC)
+                        .sparse());
+        //For claiming the records placed on a node
+        mongoTemplate.indexOps(StepRecord.class)
+                .ensureIndex(new Index()
+                        .on("preferredNodeId", Sort.Direction.ASC)
+                        .sparse());
+        //For finding dead nodes
+        mongoTemplate.indexOps(NodeRecord.class)
+                .ensureIndex(new Index()
+                        .on("lifeLeaseTill", Sort.Direction.ASC));
+        //Records of long dead nodes are removed by the DB
+        mongoTemplate.indexOps(NodeRecord.class)
+                .ensureIndex(new Index()
+                        .on("expireAt", Sort.Direction.ASC)
+                        .expire(0));
+
+        upgradeJobRecords();
+    }
+
+    //--------------------------------------
+    // Job records saved before a job could run steps side by side hold their one current step in
+    // currentStepName, currentStepPartitionCount, currentStepPartitionsCompletedCount and
+    // currentStepIssuingNodeId. These are moved into currentSteps, so that jobs running across the
+    // upgrade carry on where they were
+    void upgradeJobRecords() {
+        val collectionName = mongoTemplate.getCollectionName(JobRecord.class);
+        val legacyQuery = new Query(Criteria.where("currentStepName").exists(true));
+        for(val doc : mongoTemplate.find(legacyQuery, Document.class, collectionName)) {
+            val update = new Update();
+            val stepName = doc.getString("currentStepName");
+            val currentSteps = doc.getList("currentSteps", Object.class);
+            if(stepName != null && (currentSteps == null || currentSteps.isEmpty())) {
+                update.push("currentSteps", new Document()
+                        .append("stepName", stepName)
+                        .append("partitionCount", intOf(doc.get("currentStepPartitionCount")))
+                        .append("partitionsCompletedCount", intOf(doc.get("currentStepPartitionsCompletedCount")))
+                        .append("issuingNodeId", doc.getString("currentStepIssuingNodeId")));
+            }
+            update.unset("currentStepName");
+            update.unset("currentStepPartitionCount");
+            update.unset("currentStepPartitionsCompletedCount");
+            update.unset("currentStepIssuingNodeId");
+            if(!doc.containsKey("version")) update.set("version", 0L);
+            //Another node starting at the same time may have upgraded it already
+            val query = new Query(Criteria
+                    .where("_id").is(doc.get("_id"))
+                    .and("currentStepName").exists(true));
+            mongoTemplate.updateFirst(query, update, collectionName);
+        }
+    }
+
+    //--------------------------------------
+    private static int intOf(Object value) {
+        return value instanceof Number number ? number.intValue() : 0;
     }
 
     //--------------------------------------
@@ -132,6 +242,124 @@ public class MongoRecordRepository implements RecordRepository {
         return mongoTemplate.findOne(query, JobRecord.class);
     }
 
+    //--------------------------------------
+    // Saves the job's status and current steps, provided no one else has changed them since the
+    // record was read. Records saved before the version was added have none, which counts as 0
+    @Override
+    public boolean tryUpdateJobRecord(JobRecord jobRecord) {
+        val version = jobRecord.getVersion();
+        val query = new Query();
+        query.addCriteria(Criteria
+                .where("id").is(jobRecord.getId())
+                .and("status").is(ExecutionStatus.RUNNING)
+                .and("version").in(version == 0 ? Arrays.asList(0L, null) : List.of(version))
+        );
+        val update = new Update();
+        update.set("status", jobRecord.getStatus());
+        update.set("currentSteps", jobRecord.getCurrentSteps());
+        update.set("completedStepNames", jobRecord.getCompletedStepNames());
+        update.set("completedAt", jobRecord.getCompletedAt());
+        update.set("lastUpdateAt", jobRecord.getLastUpdateAt());
+        update.set("version", version + 1);
+        val result = mongoTemplate.updateFirst(query, update, JobRecord.class);
+        if(result.getModifiedCount() == 0) return false;
+        jobRecord.setVersion(version + 1);
+        return true;
+    }
+
+    //--------------------------------------
+    // Counts a completed step record against the job, if the step is still one of the job's current
+    // steps. The version goes up too, so a move made from an older copy of the job cannot undo this
+    @Override
+    public JobRecord incrementStepCompletedCount(String jobRecordId, String stepName) {
+        val query = new Query();
+        query.addCriteria(Criteria
+                .where("id").is(jobRecordId)
+                .and("status").is(ExecutionStatus.RUNNING)
+                .and("currentSteps.stepName").is(stepName)
+        );
+        val update = new Update();
+        update.inc("currentSteps.$.partitionsCompletedCount", 1);
+        update.inc("version", 1);
+        return mongoTemplate.findAndModify(query, update, FindAndModifyOptions.options().returnNew(true), JobRecord.class);
+    }
+
+    //--------------------------------------
+    // Sets the partition count of a current step of the job once its records have been issued. Only
+    // the node issuing the step can set it, so a node that was taken for dead cannot finish the issue
+    // after another node has taken it over
+    @Override
+    public boolean trySetStepPartitionCount(String jobRecordId, String stepName, int partitionCount, String issuingNodeId) {
+        val query = new Query();
+        query.addCriteria(Criteria
+                .where("id").is(jobRecordId)
+                .and("status").is(ExecutionStatus.RUNNING)
+                .and("currentSteps").elemMatch(Criteria
+                        .where("stepName").is(stepName)
+                        .and("partitionCount").is(JobRecord.PARTITIONS_ISSUING)
+                        .and("issuingNodeId").is(issuingNodeId))
+        );
+        val update = new Update();
+        update.set("currentSteps.$.partitionCount", partitionCount);
+        update.inc("version", 1);
+        return mongoTemplate.updateFirst(query, update, JobRecord.class).getModifiedCount() > 0;
+    }
+
+    //--------------------------------------
+    // Once the records of the steps have all been issued and released, the steps no longer need
+    // the node that issued them
+    @Override
+    public void clearStepIssuingNode(String jobRecordId, List<String> stepNames, String issuingNodeId) {
+        val query = new Query();
+        query.addCriteria(Criteria
+                .where("id").is(jobRecordId)
+                .and("status").is(ExecutionStatus.RUNNING));
+        val update = new Update();
+        update.unset("currentSteps.$[cs].issuingNodeId");
+        update.filterArray(Criteria.where("cs.stepName").in(stepNames).and("cs.issuingNodeId").is(issuingNodeId));
+        update.inc("version", 1);
+        mongoTemplate.updateFirst(query, update, JobRecord.class);
+    }
+
+    //--------------------------------------
+    // The running jobs with steps that the nodes started issuing but did not finish
+    @Override
+    public List<JobRecord> getJobRecordsIssuedByNodes(List<String> nodeRecordIds) {
+        if(nodeRecordIds.isEmpty()) return List.of();
+        val query = new Query();
+        query.addCriteria(Criteria
+                .where("status").is(ExecutionStatus.RUNNING)
+                .and("currentSteps.issuingNodeId").in(nodeRecordIds));
+        return mongoTemplate.find(query, JobRecord.class);
+    }
+
+    //--------------------------------------
+    @Override
+    public JobRecord getJobRecordById(String jobRecordId) {
+        val query = new Query();
+        query.addCriteria(Criteria
+                .where("id").is(jobRecordId));
+        return mongoTemplate.findOne(query, JobRecord.class);
+    }
+
+    //--------------------------------------
+    // Adds a record split off a running record to the partitions of the step
+    @Override
+    public void incrementStepPartitionCount(String jobRecordId, String stepName) {
+        val query = new Query();
+        query.addCriteria(Criteria
+                .where("id").is(jobRecordId)
+                .and("status").is(ExecutionStatus.RUNNING)
+                .and("currentSteps").elemMatch(Criteria
+                        .where("stepName").is(stepName)
+                        .and("partitionCount").gt(0))
+        );
+        val update = new Update();
+        update.inc("currentSteps.$.partitionCount", 1);
+        update.inc("version", 1);
+        mongoTemplate.updateFirst(query, update, JobRecord.class);
+    }
+
     //****************** Step Records ********************
 
     @Override
@@ -139,6 +367,130 @@ public class MongoRecordRepository implements RecordRepository {
         return mongoTemplate.save(stepRecord);
     }
 
+    //--------------------------------------
+    @Override
+    public StepRecord getStepRecordById(String id) {
+        val query = new Query();
+        query.addCriteria(Criteria
+                .where("id").is(id));
+        return mongoTemplate.findOne(query, StepRecord.class);
+    }
+
+    //--------------------------------------
+    @Override
+    public void deleteStepRecord(String id) {
+        val query = new Query();
+        query.addCriteria(Criteria
+                .where("id").is(id));
+        mongoTemplate.remove(query, StepRecord.class);
+    }
+
+    //--------------------------------------
+    @Override
+    public void insertStepRecords(List<StepRecord> stepRecords) {
+        if(stepRecords.isEmpty()) return;
+        mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, StepRecord.class)
+                .insert(stepRecords)
+                .execute();
+    }
+
+    //--------------------------------------
+    // The records of a partitioned step are issued claimed by no node, so they cannot be claimed
+    // until all have been issued and the total number of partitions is known
+    @Override
+    public void releaseIssuedStepRecords(String jobRecordId, String stepName, int totalPartitions) {
+        val query = new Query();
+        query.addCriteria(Criteria
+                .where("jobRecordId").is(jobRecordId)
+                .and("stepName").is(stepName)
+                .and("status").is(ExecutionStatus.NEW)
+                .and("claimed").is(true)
+                .and("nodeId").is(null)
+        );
+        val update = new Update();
+        update.set("claimed", false);
+        if(totalPartitions > 0) update.set("partition.totalPartitions", totalPartitions);
+        mongoTemplate.updateMulti(query, update, StepRecord.class);
+    }
+
+    //--------------------------------------
+    // Removes the records a node issued for a step that it then could not finish issuing, e.g. as
+    // another node took the issue over
+    @Override
+    public void deleteIssuedStepRecords(String jobRecordId, String stepName, String issuingNodeId) {
+        val query = new Query();
+        query.addCriteria(Criteria
+                .where("jobRecordId").is(jobRecordId)
+                .and("stepName").is(stepName)
+                .and("issuingNodeId").is(issuingNodeId)
+                .and("status").is(ExecutionStatus.NEW)
+                .and("nodeId").is(null)
+        );
+        mongoTemplate.remove(query, StepRecord.class);
+    }
+
+    //--------------------------------------
+    @Override
+    public void deleteStepRecordsOfStep(String jobRecordId, String stepName) {
+        val query = new Query();
+        query.addCriteria(Criteria
+                .where("jobRecordId").is(jobRecordId)
+                .and("stepName").is(stepName)
+        );
+        mongoTemplate.remove(query, StepRecord.class);
+    }
+
+    //--------------------------------------
+    // Releases the record of a pipelined step whose partition in the upstream step has completed.
+    // It can be placed on the node that ran the upstream partition
+    @Override
+    public void releasePipelinedStepRecord(String jobRecordId, String stepName, String upstreamStepName,
+                                           int partitionNum, int totalPartitions,
+                                           String preferredNodeId, LocalDateTime preferredUntil) {
+        val query = new Query();
+        query.addCriteria(Criteria
+                .where("jobRecordId").is(jobRecordId)
+                .and("stepName").is(stepName)
+                .and("status").is(ExecutionStatus.NEW)
+                .and("upstreamStepName").is(upstreamStepName)
+                .and("partition.partitionNum").is(partitionNum)
+                .and("claimed").is(true)
+                .and("nodeId").is(null)
+        );
+        val update = new Update();
+        update.set("claimed", false);
+        if(totalPartitions > 0) update.set("partition.totalPartitions", totalPartitions);
+        if(preferredNodeId != null) {
+            update.set("preferredNodeId", preferredNodeId);
+            update.set("preferredUntil", preferredUntil);
+        }
+        mongoTemplate.updateFirst(query, update, StepRecord.class);
+    }
+
+    //--------------------------------------
+    // The millis each partition took the last time it completed, by partition key
+    @Override
+    public Map<String, Long> getLastPartitionMillis(String jobName, String stepName, List<String> partitionKeys) {
+        val aggregation = Aggregation.newAggregation(
+                Aggregation.match(Criteria
+                        .where("jobName").is(jobName)
+                        .and("stepName").is(stepName)
+                        .and("partitionKey").in(partitionKeys)
+                        .and("status").is(ExecutionStatus.COMPLETE)
+                        .and("speculativeOf").is(null)),
+                Aggregation.sort(Sort.Direction.DESC, "completedAt"),
+                Aggregation.project("partitionKey")
+                        .and(ArithmeticOperators.Subtract.valueOf("completedAt").subtract("startedAt")).as("millis"),
+                Aggregation.group("partitionKey").first("millis").as("millis")
+        );
+        val lastMillis = new HashMap<String, Long>();
+        for(val result : mongoTemplate.aggregate(aggregation, StepRecord.class, Document.class).getMappedResults()) {
+            val millis = result.get("millis", Number.class);
+            if(millis != null) lastMillis.put(result.getString("_id"), millis.longValue());
+        }
+        return lastMillis;
+    }
+
     //--------------------------------------
     @Override
     public List<StepRecord> getStepsRecordsForStepOfJob(String jobRecordId, String stepName) {
@@ -150,15 +502,57 @@ public class MongoRecordRepository implements RecordRepository {
         return mongoTemplate.find(query, StepRecord.class);
     }
 
+    //--------------------------------------
+    // Counts the records of the current steps of each job in one aggregation. Only the counts come
+    // back, so the cost does not grow with the number of partitions
+    @Override
+    public List<StepStatusCounts> getCurrentStepStatusCounts(List<JobRecord> jobRecords) {
+        val currentSteps = jobRecords.stream()
+                .flatMap(jr -> jr.getCurrentSteps().stream()
+                        .map(cs -> Criteria
+                                .where("jobRecordId").is(jr.getId())
+                                .and("stepName").is(cs.getStepName())))
+                .toArray(Criteria[]::new);
+        if(currentSteps.length == 0) return List.of();
+
+        val aggregation = Aggregation.newAggregation(
+                Aggregation.match(Criteria.where("speculativeOf").is(null).orOperator(currentSteps)),
+                Aggregation.group("jobRecordId", "stepName")
+                        .count().as("total")
+                        .sum(countIfStatus(ExecutionStatus.COMPLETE)).as("completed")
+                        .sum(countIfStatus(ExecutionStatus.FAILED)).as("failed"),
+                Aggregation.project("jobRecordId", "stepName", "total", "completed", "failed")
+                        .andExclude("_id")
+        );
+        return mongoTemplate.aggregate(aggregation, StepRecord.class, StepStatusCounts.class).getMappedResults();
+    }
+
+    private static ConditionalOperators.Cond countIfStatus(ExecutionStatus status){
+        return ConditionalOperators
+                .when(Criteria.where("status").is(status.name()))
+                .then(1)
+                .otherwise(0);
+    }
+
     //--------------------------------------
     @Override
-    public List<StepRecord> getStepRecordsClaimedByNode(String nodeRecordId) {
+    public long releaseStepRecordClaimsOfNodes(List<String> nodeRecordIds) {
+        if(nodeRecordIds.isEmpty()) return 0;
         val query = new Query();
         query.addCriteria(Criteria
-                .where("nodeId").is(nodeRecordId)
-                .and("status").is(ExecutionStatus.RUNNING)
+                .where("nodeId").in(nodeRecordIds)
+                .and("status").in(ExecutionStatus.NEW, ExecutionStatus.RUNNING)
         );
-       return mongoTemplate.find(query, StepRecord.class);
+        //Back to how it was before it was claimed, so it is not taken for running, e.g. to be split or backed up
+        val update = new Update();
+        update.set("status", ExecutionStatus.NEW);
+        update.set("claimed", false);
+        update.set("failurePending", false);
+        update.unset("nodeId");
+        update.unset("claimToken");
+        update.unset("progressKey");
+        update.unset("startedAt");
+        return mongoTemplate.updateMulti(query, update, StepRecord.class).getModifiedCount();
     }
 
     //--------------------------------------
@@ -176,9 +570,8 @@ public class MongoRecordRepository implements RecordRepository {
     @Override
     public StepRecord tryClaimNextStepRecord(String thisNodeId) {
         val query = new Query();
-        query.addCriteria(
-                Criteria.where("claimed").is(false)
-        );
+        query.addCriteria(claimableBy(thisNodeId));
+        query.with(CLAIM_ORDER);
 
         val update = new Update();
         update.set("claimed", true);
@@ -191,12 +584,549 @@ public class MongoRecordRepository implements RecordRepository {
         return claimedStepRec;
     }
 
+    //--------------------------------------
+    // Claims in 3 round trips however many records are claimed. The candidates are found first, in
+    // CLAIM_ORDER, and then claimed together with a token, which is how the records this node won are
+    // read back. A candidate claimed by another node in between is simply left out
+    @Override
+    public List<StepRecord> tryClaimStepRecords(String thisNodeId, int maxRecords) {
+        if(maxRecords <= 1) {
+            val stepRec = tryClaimNextStepRecord(thisNodeId);
+            return stepRec == null ? List.of() : List.of(stepRec);
+        }
+
+        return claimStepRecords(claimableBy(thisNodeId), thisNodeId, maxRecords);
+    }
+
+    //--------------------------------------
+    // Claims up to the given number of records of each job, each job's in CLAIM_ORDER
+    @Override
+    public List<StepRecord> tryClaimStepRecordsOfJobs(String thisNodeId, Map<String, Integer> maxRecordsByJob) {
+        val candidates = claimableBy(thisNodeId);
+        val ids = new ArrayList<String>();
+        maxRecordsByJob.forEach((jobName, maxRecords) ->
+                ids.addAll(findCandidateIds(new Criteria().andOperator(candidates, Criteria.where("jobName").is(jobName)), maxRecords)));
+        return claimStepRecordIds(ids, thisNodeId);
+    }
+
+    //--------------------------------------
+    // The names of the jobs with records waiting to be claimed. Read off the (claimed, jobName) index, so
+    // the cost grows with the number of jobs rather than of records
+    @Override
+    public List<String> getWaitingJobNames() {
+        val query = new Query();
+        query.addCriteria(Criteria.where("claimed").is(false));
+        return mongoTemplate.findDistinct(query, "jobName", StepRecord.class, String.class);
+    }
+
+    //--------------------------------------
+    // The number of records each of the given jobs has running across the cluster. Records that are
+    // held back are claimed by no node, so are not counted
+    @Override
+    public Map<String, Integer> getRunningStepRecordCounts(List<String> jobNames) {
+        val aggregation = Aggregation.newAggregation(
+                Aggregation.match(Criteria
+                        .where("status").in(ExecutionStatus.NEW, ExecutionStatus.RUNNING)
+                        .and("jobName").in(jobNames)
+                        .and("claimed").is(true)
+                        .and("nodeId").ne(null)),
+                Aggregation.group("jobName").count().as("running")
+        );
+        val running = new HashMap<String, Integer>();
+        for(val result : mongoTemplate.aggregate(aggregation, StepRecord.class, Document.class).getMappedResults()) {
+            running.put(result.getString("_id"), result.get("running", Number.class).intValue());
+        }
+        return running;
+    }
+
+    //--------------------------------------
+    // Claims only the records placed on this node
+    @Override
+    public List<StepRecord> tryClaimPreferredStepRecords(String thisNodeId, int maxRecords) {
+        return claimStepRecords(withinPermits(Criteria
+                .where("claimed").is(false)
+                .and("preferredNodeId").is(thisNodeId)), thisNodeId, maxRecords);
+    }
+
+    //--------------------------------------
+    // The priority of the highest priority record this node could claim, or null if there are none
+    @Override
+    public Integer getHighestWaitingPriority(String thisNodeId) {
+        val query = new Query();
+        query.addCriteria(claimableBy(thisNodeId));
+        query.with(CLAIM_ORDER);
+        query.fields().include("priority");
+        val stepRec = mongoTemplate.findOne(query, StepRecord.class);
+        return stepRec == null ? null : stepRec.getPriority();
+    }
+
+    //--------------------------------------
+    private List<String> findCandidateIds(Criteria candidates, int maxRecords) {
+        val findQuery = new Query();
+        findQuery.addCriteria(candidates);
+        findQuery.with(CLAIM_ORDER);
+        findQuery.limit(maxRecords);
+        findQuery.fields().include("id");
+        return mongoTemplate.find(findQuery, StepRecord.class).stream()
+                .map(StepRecord::getId)
+                .toList();
+    }
+
+    //Records of higher priority jobs are claimed first, then those of the costliest partitions
+    private static final Sort CLAIM_ORDER = Sort.by(Sort.Order.desc("priority"), Sort.Order.desc("cost"));
+
+    //--------------------------------------
+    // Records not yet claimed, that are either placed on no node or on this node, or that have
+    // waited long enough for the node they are placed on
+    private Criteria claimableBy(String thisNodeId){
+        return withinPermits(Criteria.where("claimed").is(false).orOperator(
+                Criteria.where("preferredNodeId").is(null),
+                Criteria.where("preferredNodeId").is(thisNodeId),
+                Criteria.where("preferredUntil").lt(LocalDateTime.now())));
+    }
+
+    //--------------------------------------
+    // Leaves out the records of jobs and steps that are running as many records as they are allowed
+    private Criteria withinPermits(Criteria candidates){
+        val query = new Query();
+        query.addCriteria(Criteria.expr(ComparisonOperators.Gte
+                .valueOf(ArrayOperators.Size.lengthOfArray("holders"))
+                .greaterThanEqualTo("limit")));
+        query.fields().include("permitKey");
+        val fullKeys = mongoTemplate.find(query, PermitRecord.class).stream()
+                .map(PermitRecord::getPermitKey)
+                .toList();
+        return fullKeys.isEmpty() ? candidates : candidates.and("permitKeys").nin(fullKeys);
+    }
+
+    //--------------------------------------
+    private List<StepRecord> claimStepRecords(Criteria candidates, String thisNodeId, int maxRecords) {
+        return claimStepRecordIds(findCandidateIds(candidates, maxRecords), thisNodeId);
+    }
+
+    //--------------------------------------
+    private List<StepRecord> claimStepRecordIds(List<String> ids, String thisNodeId) {
+        if(ids.isEmpty()) return List.of();
+
+        val claimToken = UUID.randomUUID().toString();
+        val claimQuery = new Query();
+        claimQuery.addCriteria(Criteria
+                .where("id").in(ids)
+                .and("claimed").is(false)
+        );
+        val update = new Update();
+        update.set("claimed", true);
+        update.set("nodeId", thisNodeId);
+        update.set("claimToken", claimToken);
+        val result = mongoTemplate.updateMulti(claimQuery, update, StepRecord.class);
+        if(result.getModifiedCount() == 0) return List.of();
+
+        val claimedQuery = new Query();
+        claimedQuery.addCriteria(Criteria
+                .where("claimToken").is(claimToken)
+        );
+        return mongoTemplate.find(claimedQuery, StepRecord.class);
+    }
+
+    //--------------------------------------
+    // Only releases records still claimed by this node that have not been started
+    @Override
+    public void releaseStepRecordClaims(List<String> stepRecordIds, String thisNodeId) {
+        if(stepRecordIds.isEmpty()) return;
+        val query = new Query();
+        query.addCriteria(Criteria
+                .where("id").in(stepRecordIds)
+                .and("nodeId").is(thisNodeId)
+                .and("status").is(ExecutionStatus.NEW)
+        );
+        val update = new Update();
+        update.set("claimed", false);
+        update.unset("nodeId");
+        update.unset("claimToken");
+        mongoTemplate.updateMulti(query, update, StepRecord.class);
+    }
+
+    //--------------------------------------
+    // Saves the key of the last item read by a running record, and returns the record as it is
+    // now, so that the node running it sees any split made by another node
+    @Override
+    public StepRecord publishStepProgress(String stepRecordId, Object progressKey) {
+        val query = new Query();
+        query.addCriteria(Criteria
+                .where("id").is(stepRecordId));
+        val update = new Update();
+        update.set("progressKey", progressKey);
+        return mongoTemplate.findAndModify(query, update, FindAndModifyOptions.options().returnNew(true), StepRecord.class);
+    }
+
+    //--------------------------------------
+    // Records run by other nodes since before the given time, that have published their progress
+    // and so can be split. The longest running come first
+    @Override
+    public List<StepRecord> getSplittableStepRecords(String thisNodeId, LocalDateTime startedBefore, int maxRecords) {
+        val query = new Query();
+        query.addCriteria(Criteria
+                .where("status").is(ExecutionStatus.RUNNING)
+                .and("nodeId").ne(thisNodeId)
+                .and("progressKey").exists(true)
+                .and("startedAt").lt(startedBefore)
+        );
+        query.with(Sort.by(Sort.Direction.ASC, "startedAt"));
+        query.limit(maxRecords);
+        return mongoTemplate.find(query, StepRecord.class);
+    }
+
+    //--------------------------------------
+    // Ends the range of the running record at the split key, as long as it has not read past the key
+    // and its range has not been changed by another split since it was read
+    @Override
+    public boolean trySplitStepRecord(StepRecord stepRecord, Object splitKey, String splitRecordId) {
+        val query = new Query();
+        query.addCriteria(Criteria
+                .where("id").is(stepRecord.getId())
+                .and("status").is(ExecutionStatus.RUNNING)
+                .and("rangeTo").is(stepRecord.getRangeTo())
+                .and("progressKey").lt(splitKey)
+        );
+        val update = new Update();
+        update.set("rangeTo", splitKey);
+        update.push("splitIds", splitRecordId);
+        return mongoTemplate.updateFirst(query, update, StepRecord.class).getModifiedCount() > 0;
+    }
+
+    //--------------------------------------
+    // Partitions run by other nodes since before the given time that have no backup run yet. Records
+    // that publish their progress are split rather than backed up. The longest running come first
+    @Override
+    public List<StepRecord> getBackupCandidateStepRecords(String thisNodeId, LocalDateTime startedBefore, int maxRecords) {
+        val query = new Query();
+        query.addCriteria(Criteria
+                .where("status").is(ExecutionStatus.RUNNING)
+                .and("nodeId").ne(thisNodeId)
+                .and("partition").ne(null)
+                .and("speculativeOf").is(null)
+                .and("backupId").is(null)
+                .and("progressKey").is(null)
+                .and("startedAt").lt(startedBefore)
+        );
+        query.with(Sort.by(Sort.Direction.ASC, "startedAt"));
+        query.limit(maxRecords);
+        return mongoTemplate.find(query, StepRecord.class);
+    }
+
+    //--------------------------------------
+    // The average time taken by the completed records of a step, or null if none have completed
+    @Override
+    public Long getAverageStepRecordMillis(String jobRecordId, String stepName) {
+        val aggregation = Aggregation.newAggregation(
+                Aggregation.match(Criteria
+                        .where("jobRecordId").is(jobRecordId)
+                        .and("stepName").is(stepName)
+                        .and("status").is(ExecutionStatus.COMPLETE)
+                        .and("speculativeOf").is(null)),
+                Aggregation.project()
+                        .and(ArithmeticOperators.Subtract.valueOf("completedAt").subtract("startedAt")).as("millis"),
+                Aggregation.group().avg("millis").as("avgMillis")
+        );
+        val result = mongoTemplate.aggregate(aggregation, StepRecord.class, Document.class).getUniqueMappedResult();
+        if(result == null || result.get("avgMillis") == null) return null;
+        return result.get("avgMillis", Number.class).longValue();
+    }
+
+    //--------------------------------------
+    // Links a backup run to a running record, as long as no other node has backed it up already
+    @Override
+    public boolean trySetStepRecordBackup(String stepRecordId, String backupRecordId) {
+        val query = new Query();
+        query.addCriteria(Criteria
+                .where("id").is(stepRecordId)
+                .and("status").is(ExecutionStatus.RUNNING)
+                .and("backupId").is(null)
+                .and("winnerId").is(null)
+        );
+        val update = new Update();
+        update.set("backupId", backupRecordId);
+        return mongoTemplate.updateFirst(query, update, StepRecord.class).getModifiedCount() > 0;
+    }
+
+    //--------------------------------------
+    // Marks the completed record, the given record or its backup, as the winner, if neither completed before
+    // it. A winning backup's outcome is set on the record too, as only that record counts towards the step.
+    // Returns the record as it is now, or null if the other completed first. The record may have been
+    // put back to make way for higher priority work, in which case it is no longer up for claiming.
+    // A failed run never wins, see trySetStepRecordFailurePending()
+    @Override
+    public StepRecord tryWinSpeculation(String stepRecordId, StepRecord finishedRecord) {
+        if(finishedRecord.getStatus() != ExecutionStatus.COMPLETE) {
+            throw new SysAgentException("Only a complete run can win. Step record "+finishedRecord.getId()+" is "+finishedRecord.getStatus());
+        }
+        val query = new Query();
+        query.addCriteria(Criteria
+                .where("id").is(stepRecordId)
+                .and("status").in(ExecutionStatus.RUNNING, ExecutionStatus.NEW)
+                .and("winnerId").is(null)
+        );
+        val update = new Update();
+        update.set("winnerId", finishedRecord.getId());
+        if(!stepRecordId.equals(finishedRecord.getId())) {
+            update.set("claimed", true);
+            update.set("status", finishedRecord.getStatus());
+            update.set("completedAt", finishedRecord.getCompletedAt());
+            update.set("lastUpdateAt", finishedRecord.getLastUpdateAt());
+            update.set("batchItemsProcessed", finishedRecord.getBatchItemsProcessed());
+            update.set("failurePending", false);
+        }
+        return mongoTemplate.findAndModify(query, update, FindAndModifyOptions.options().returnNew(true), StepRecord.class);
+    }
+
+    //--------------------------------------
+    // Notes that the record failed, while its backup may still complete and win. Returns the record
+    // as it is now, or null if the backup has won already
+    @Override
+    public StepRecord trySetStepRecordFailurePending(String stepRecordId) {
+        return trySetSpeculationFlag(stepRecordId, "failurePending");
+    }
+
+    //--------------------------------------
+    // Notes on the record that its backup failed. Returns the record as it is now, or null if the
+    // record has won already
+    @Override
+    public StepRecord trySetStepRecordBackupFailed(String stepRecordId) {
+        return trySetSpeculationFlag(stepRecordId, "backupFailed");
+    }
+
+    private StepRecord trySetSpeculationFlag(String stepRecordId, String flag) {
+        val query = new Query();
+        query.addCriteria(Criteria
+                .where("id").is(stepRecordId)
+                .and("winnerId").is(null)
+        );
+        val update = new Update();
+        update.set(flag, true);
+        return mongoTemplate.findAndModify(query, update, FindAndModifyOptions.options().returnNew(true), StepRecord.class);
+    }
+
+    //--------------------------------------
+    // Fails a record whose failure was pending on its backup, once the backup has failed too
+    @Override
+    public boolean tryFailPendingStepRecord(String stepRecordId) {
+        val query = new Query();
+        query.addCriteria(Criteria
+                .where("id").is(stepRecordId)
+                .and("failurePending").is(true)
+                .and("winnerId").is(null)
+                .and("status").is(ExecutionStatus.RUNNING)
+        );
+        val update = new Update();
+        update.set("status", ExecutionStatus.FAILED);
+        update.set("lastUpdateAt", LocalDateTime.now());
+        return mongoTemplate.updateFirst(query, update, StepRecord.class).getModifiedCount() > 0;
+    }
+
+    //--------------------------------------
+    @Override
+    public void requestStepRecordCancel(String stepRecordId) {
+        val query = new Query();
+        query.addCriteria(Criteria
+                .where("id").is(stepRecordId));
+        val update = new Update();
+        update.set("cancelRequested", true);
+        mongoTemplate.updateFirst(query, update, StepRecord.class);
+    }
+
+    //--------------------------------------
+    @Override
+    public List<String> getCancelRequestedStepRecordIds(List<String> stepRecordIds) {
+        if(stepRecordIds.isEmpty()) return List.of();
+        val query = new Query();
+        query.addCriteria(Criteria
+                .where("id").in(stepRecordIds)
+                .and("cancelRequested").is(true)
+        );
+        query.fields().include("id");
+        return mongoTemplate.find(query, StepRecord.class).stream().map(StepRecord::getId).toList();
+    }
+
+    //--------------------------------------
+    @Override
+    public Integer getLastBatchPageSize(String jobName, String stepName) {
+        val query = new Query();
+        query.addCriteria(Criteria
+                .where("jobName").is(jobName)
+                .and("stepName").is(stepName)
+                .and("status").is(ExecutionStatus.COMPLETE)
+                .and("batchPageSize").gt(0)
+        );
+        query.with(Sort.by(Sort.Direction.DESC, "completedAt"));
+        query.fields().include("batchPageSize");
+        val stepRec = mongoTemplate.findOne(query, StepRecord.class);
+        return stepRec == null ? null : stepRec.getBatchPageSize();
+    }
+
+    //--------------------------------------
+    // Watches the step record collection with a change stream and runs onClaimable for each record
+    // inserted, saved or released for claiming. Records inserted or saved as claimed, e.g. those held
+    // while their step is issued, are left out. Blocks until the calling thread is interrupted. Change streams
+    // need a replica set or sharded cluster, so against a standalone server this returns false straight away
+    @Override
+    public boolean watchClaimableStepRecords(Runnable onClaimable) {
+        val collection = mongoTemplate.getCollection(mongoTemplate.getCollectionName(StepRecord.class));
+        //Inserts and replaces, i.e. save() of a whole record, carry the full document
+        val pipeline = List.of(Aggregates.match(Filters.or(
+                Filters.and(
+                        Filters.in("operationType", "insert", "replace"),
+                        Filters.eq("fullDocument.claimed", false)),
+                Filters.and(
+                        Filters.eq("operationType", "update"),
+                        Filters.eq("updateDescription.updatedFields.claimed", false)))));
+        try(val cursor = collection.watch(pipeline)
+                .maxAwaitTime(CHANGE_STREAM_AWAIT_MILLIS, TimeUnit.MILLISECONDS)
+                .cursor()) {
+            while(!Thread.currentThread().isInterrupted()) {
+                if(cursor.tryNext() != null) onClaimable.run();
+            }
+        }
+        catch (MongoCommandException e) {
+            if(e.getErrorCode() == CHANGE_STREAM_NOT_SUPPORTED) return false;
+            throw e;
+        }
+        catch (MongoInterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return true;
+    }
+
+    private static final long CHANGE_STREAM_AWAIT_MILLIS = 1000;
+
+    //The error given by a standalone server for $changeStream
+    private static final int CHANGE_STREAM_NOT_SUPPORTED = 40573;
+
+    //****************** Affinity Records ********************
+
+    @Override
+    public void saveAffinity(String affinityKey, String nodeId) {
+        val query = new Query();
+        query.addCriteria(Criteria
+                .where("affinityKey").is(affinityKey));
+        val update = new Update();
+        update.set("nodeId", nodeId);
+        update.set("lastRunAt", LocalDateTime.now());
+        mongoTemplate.upsert(query, update, AffinityRecord.class);
+    }
+
+    //--------------------------------------
+    // The nodes that last ran the affinity keys, by key. Keys last run by nodes that are no longer
+    // alive are left out
+    @Override
+    public Map<String, String> getLiveAffinityNodeIds(List<String> affinityKeys, long leaseValidAfter) {
+        val affinityQuery = new Query();
+        affinityQuery.addCriteria(Criteria
+                .where("affinityKey").in(affinityKeys));
+        val affinityRecs = mongoTemplate.find(affinityQuery, AffinityRecord.class);
+        if(affinityRecs.isEmpty()) return Map.of();
+
+        val nodeQuery = new Query();
+        nodeQuery.addCriteria(Criteria
+                .where("id").in(affinityRecs.stream().map(AffinityRecord::getNodeId).distinct().toList())
+                .and("lifeLeaseTill").gt(leaseValidAfter));
+        nodeQuery.fields().include("id");
+        val liveNodeIds = mongoTemplate.find(nodeQuery, NodeRecord.class).stream()
+                .map(NodeRecord::getId)
+                .collect(Collectors.toSet());
+
+        val nodeIds = new HashMap<String, String>();
+        for(val affinityRec : affinityRecs) {
+            if(liveNodeIds.contains(affinityRec.getNodeId())) nodeIds.put(affinityRec.getAffinityKey(), affinityRec.getNodeId());
+        }
+        return nodeIds;
+    }
+
+    //****************** Permit Records ********************
+
+    @Override
+    public void setPermitLimit(String permitKey, int limit) {
+        val query = new Query();
+        query.addCriteria(Criteria
+                .where("permitKey").is(permitKey));
+        val update = new Update();
+        update.set("limit", limit);
+        update.setOnInsert("holders", List.of());
+        mongoTemplate.upsert(query, update, PermitRecord.class);
+    }
+
+    //--------------------------------------
+    // Takes a permit of each key for the record, or none if any of them has no permit left
+    @Override
+    public boolean tryAcquirePermits(String stepRecordId, String thisNodeId, List<String> permitKeys, long leaseTill) {
+        for(val permitKey : permitKeys) {
+            val query = new Query();
+            query.addCriteria(Criteria
+                    .where("permitKey").is(permitKey)
+                    .andOperator(Criteria.expr(ComparisonOperators.Lt
+                            .valueOf(ArrayOperators.Size.lengthOfArray("holders"))
+                            .lessThan("limit"))));
+            val update = new Update();
+            update.push("holders", PermitRecord.Holder.of(stepRecordId, thisNodeId, leaseTill));
+            if(mongoTemplate.updateFirst(query, update, PermitRecord.class).getModifiedCount() == 0) {
+                releasePermits(List.of(stepRecordId));
+                return false;
+            }
+        }
+        return true;
+    }
+
+    //--------------------------------------
+    @Override
+    public void releasePermits(List<String> stepRecordIds) {
+        pullPermits(Criteria.where("stepRecordId").in(stepRecordIds));
+    }
+
+    //--------------------------------------
+    @Override
+    public void renewPermits(String thisNodeId, long leaseTill) {
+        val query = new Query();
+        query.addCriteria(Criteria
+                .where("holders.nodeId").is(thisNodeId));
+        val update = new Update();
+        update.set("holders.$[holder].leaseTill", leaseTill);
+        update.filterArray(Criteria.where("holder.nodeId").is(thisNodeId));
+        mongoTemplate.updateMulti(query, update, PermitRecord.class);
+    }
+
+    //--------------------------------------
+    @Override
+    public long releasePermitsOfNodes(List<String> nodeRecordIds) {
+        if(nodeRecordIds.isEmpty()) return 0;
+        return pullPermits(Criteria.where("nodeId").in(nodeRecordIds));
+    }
+
+    //--------------------------------------
+    // Gives back the permits of nodes that stopped renewing them without being found dead, e.g. a node
+    // that lost its connection to the database for a while
+    @Override
+    public long releaseExpiredPermits(long timeNow) {
+        return pullPermits(Criteria.where("leaseTill").lt(timeNow));
+    }
+
+    //--------------------------------------
+    private long pullPermits(Criteria holders){
+        val query = new Query();
+        query.addCriteria(Criteria
+                .where("holders").elemMatch(holders));
+        val update = new Update();
+        update.pull("holders", holders.getCriteriaObject());
+        return mongoTemplate.updateMulti(query, update, PermitRecord.class).getModifiedCount();
+    }
+
     //--------------------------------------
     @Override
     public void clearAll() {
         mongoTemplate.dropCollection(JobRecord.class);
         mongoTemplate.dropCollection(JobScheduleRecord.class);
         mongoTemplate.dropCollection(BaseNodeRecord.class);
+        mongoTemplate.dropCollection(NodeRecord.class);
         mongoTemplate.dropCollection(StepRecord.class);
+        mongoTemplate.dropCollection(AffinityRecord.class);
+        mongoTemplate.dropCollection(PermitRecord.class);
     }
 }
@@ -21,8 +21,11 @@ import com.itblueprints.sysagent.internal.cluster.ManagerNodeRecord;
 import com.itblueprints.sysagent.internal.cluster.NodeRecord;
 import com.itblueprints.sysagent.internal.job.JobRecord;
 import com.itblueprints.sysagent.internal.step.StepRecord;
+import com.itblueprints.sysagent.internal.step.StepStatusCounts;
 
+import java.time.LocalDateTime;
 import java.util.List;
+import java.util.Map;
 
 public interface RecordRepository {
 
@@ -31,7 +34,7 @@ public interface RecordRepository {
     ManagerNodeRecord getManagerNodeRecord();
     NodeRecord getNodeRecordById(String id);
     ManagerNodeRecord tryGetLockedManagerNodeRecord();
-    List<NodeRecord> getRecordsForOtherNodes(String thisNodeId);
+    List<String> getDeadNodeIds(String thisNodeId, long leaseExpiredBefore);
     void delete(BaseNodeRecord nodeRecord);
 
     //Job Record
@@ -39,13 +42,63 @@ public interface RecordRepository {
     List<JobRecord> getRunningJobRecords();
     void initialise();
     JobRecord getFailedJobRecordOfJob(String jobName);
+    boolean tryUpdateJobRecord(JobRecord jobRecord);
+    JobRecord incrementStepCompletedCount(String jobRecordId, String stepName);
+    boolean trySetStepPartitionCount(String jobRecordId, String stepName, int partitionCount, String issuingNodeId);
+    void clearStepIssuingNode(String jobRecordId, List<String> stepNames, String issuingNodeId);
+    List<JobRecord> getJobRecordsIssuedByNodes(List<String> nodeRecordIds);
+    JobRecord getJobRecordById(String jobRecordId);
+    void incrementStepPartitionCount(String jobRecordId, String stepName);
 
     //Step Record
     StepRecord save(StepRecord stepRecord);
+    StepRecord getStepRecordById(String id);
+    void deleteStepRecord(String id);
+    void insertStepRecords(List<StepRecord> stepRecords);
+    void releaseIssuedStepRecords(String jobRecordId, String stepName, int totalPartitions);
+    void deleteIssuedStepRecords(String jobRecordId, String stepName, String issuingNodeId);
+    void deleteStepRecordsOfStep(String jobRecordId, String stepName);
+    void releasePipelinedStepRecord(String jobRecordId, String stepName, String upstreamStepName, int partitionNum, int totalPartitions,
+                                    String preferredNodeId, LocalDateTime preferredUntil);
+    Map<String, Long> getLastPartitionMillis(String jobName, String stepName, List<String> partitionKeys);
     List<StepRecord> getStepsRecordsForStepOfJob(String jobRecordId, String stepName);
-    List<StepRecord> getStepRecordsClaimedByNode(String nodeRecordId);
+    List<StepStatusCounts> getCurrentStepStatusCounts(List<JobRecord> jobRecords);
+    long releaseStepRecordClaimsOfNodes(List<String> nodeRecordIds);
     List<StepRecord> getFailedStepRecordsForJob(String jobRecordId);
     StepRecord tryClaimNextStepRecord(String thisNodeId);
+    List<StepRecord> tryClaimStepRecords(String thisNodeId, int maxRecords);
+    List<StepRecord> tryClaimStepRecordsOfJobs(String thisNodeId, Map<String, Integer> maxRecordsByJob);
+    List<String> getWaitingJobNames();
+    Map<String, Integer> getRunningStepRecordCounts(List<String> jobNames);
+    List<StepRecord> tryClaimPreferredStepRecords(String thisNodeId, int maxRecords);
+    Integer getHighestWaitingPriority(String thisNodeId);
+    void releaseStepRecordClaims(List<String> stepRecordIds, String thisNodeId);
+    StepRecord publishStepProgress(String stepRecordId, Object progressKey);
+    List<StepRecord> getSplittableStepRecords(String thisNodeId, LocalDateTime startedBefore, int maxRecords);
+    boolean trySplitStepRecord(StepRecord stepRecord, Object splitKey, String splitRecordId);
+    List<StepRecord> getBackupCandidateStepRecords(String thisNodeId, LocalDateTime startedBefore, int maxRecords);
+    Long getAverageStepRecordMillis(String jobRecordId, String stepName);
+    boolean trySetStepRecordBackup(String stepRecordId, String backupRecordId);
+    StepRecord tryWinSpeculation(String stepRecordId, StepRecord finishedRecord);
+    StepRecord trySetStepRecordFailurePending(String stepRecordId);
+    StepRecord trySetStepRecordBackupFailed(String stepRecordId);
+    boolean tryFailPendingStepRecord(String stepRecordId);
+    void requestStepRecordCancel(String stepRecordId);
+    List<String> getCancelRequestedStepRecordIds(List<String> stepRecordIds);
+    Integer getLastBatchPageSize(String jobName, String stepName);
+    boolean watchClaimableStepRecords(Runnable onClaimable);
+
+    //Affinity Record
+    void saveAffinity(String affinityKey, String nodeId);
+    Map<String, String> getLiveAffinityNodeIds(List<String> affinityKeys, long leaseValidAfter);
+
+    //Permit Record
+    void setPermitLimit(String permitKey, int limit);
+    boolean tryAcquirePermits(String stepRecordId, String thisNodeId, List<String> permitKeys, long leaseTill);
+    void releasePermits(List<String> stepRecordIds);
+    void renewPermits(String thisNodeId, long leaseTill);
+    long releasePermitsOfNodes(List<String> nodeRecordIds);
+    long releaseExpiredPermits(long timeNow);
 
     //Clear down db
     void clearAll();
@@ -73,7 +73,7 @@ public class SchedulerService {
 
             if(doRun)
             {
-                threadManager.getExecutor().submit(() -> {
+                threadManager.getManagerExecutor().submit(() -> {
                     try {
                         Utils.sleepFor(gap < 0 ? 0 : (gap+1)*1000);
                         val args = new JobArguments();
@@ -0,0 +1,42 @@
+/*
+ * Copyright 2023-2024 the original author or authors.
+ *
+ * Licensed under the Apache Software License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.itblueprints.sysagent.internal.step;
+
+import lombok.Getter;
+import lombok.Setter;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.LocalDateTime;
+
+/**
+ * Records the node that last ran a partition with a given affinity key. Partitions with the same key,
+ * in later steps or later runs of the job, are placed on that node for a while, so that whatever it
+ * has cached for the key is used again rather than built up from scratch on another node
+ */
+@Getter
+@Setter
+@Document
+public class AffinityRecord {
+
+    @Id
+    private String affinityKey;
+
+    private String nodeId;
+
+    private LocalDateTime lastRunAt;
+}
@@ -16,19 +16,85 @@
 
 package com.itblueprints.sysagent.internal.step;
 
+import com.itblueprints.sysagent.internal.SysAgentException;
+import com.itblueprints.sysagent.step.Step;
 import com.itblueprints.sysagent.step.StepContext;
+import lombok.val;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Slice;
 
+import java.util.ArrayList;
+import java.util.List;
 
-public interface Batched<IN, OUT> {
+
+public interface Batched<IN, OUT> extends Step {
 
     default void onStart(StepContext context){}
 
-    Page<IN> readPageOfItems(Pageable pageRequest, StepContext context);
+    /*
+    Reads a page of items by page number. Either this or readSliceOfItems() must be implemented,
+    depending on isKeysetPaginated()
+     */
+    default Page<IN> readPageOfItems(Pageable pageRequest, StepContext context){
+        throw new SysAgentException("readPageOfItems() must be implemented by "+getClass().getName()+" as it is not keyset paginated");
+    }
+
+    /*
+    Reads a page of items by keyset (seek) pagination i.e. the items that come after lastKey in key
+    order, up to the page size of the page request. The page number of the request is only for
+    information and must not be used to skip items. lastKey is null for the first page and after
+    that is the getItemKey() of the last item of the previous page. No total count is needed, so a
+    Slice can be returned. Reading ends on an empty slice or one that says it has no next slice.
+    Used instead of readPageOfItems() when isKeysetPaginated() is true
+     */
+    default Slice<IN> readSliceOfItems(Object lastKey, Pageable pageRequest, StepContext context){
+        throw new SysAgentException("readSliceOfItems() must be implemented by "+getClass().getName()+" as it is keyset paginated");
+    }
+
+    /*
+    The key of an item for keyset pagination. Items must be read in the order of this key
+     */
+    default Object getItemKey(IN item){
+        throw new SysAgentException("getItemKey() must be implemented by "+getClass().getName()+" as it is keyset paginated");
+    }
+
+    /*
+    Either this or processChunk() must be implemented
+     */
+    default OUT processItem(IN item, StepContext context){
+        throw new SysAgentException("Either processItem() or processChunk() must be implemented by "+getClass().getName());
+    }
 
-    OUT processItem(IN item, StepContext context);
+    /*
+    Processes a chunk of items from a page in one call, e.g. to do one lookup for all the items
+    in the chunk rather than one per item. Chunks of a page are processed on multiple threads like
+    items are. Must return one result per item, in the same order as the items. The default just
+    calls processItem() for each item. The chunk size comes from getChunkSize()
+     */
+    default List<OUT> processChunk(List<IN> items, StepContext context){
+        val results = new ArrayList<OUT>(items.size());
+        for(val item : items) results.add(processItem(item, context));
+        return results;
+    }
 
+    /*
+    The number of items passed to processChunk() at a time. A value of 1 means items are passed
+    to processItem() one at a time instead. A value of 0 means the configured batchChunkSize is used
+     */
+    default int getChunkSize(){
+        return 0;
+    }
+
+    /*
+    The page passed in, and the list returned by its getContent(), are only valid until this method
+    returns. After that the framework clears the page and fills it with a later page of processed
+    items. So neither must be kept, or handed to another thread that uses it after the call returns,
+    e.g. an async write. Copy the content first if it is needed after the call.
+    With speculative execution on, a partition that lags behind may be run a second time on another
+    node while the first run carries on. Both runs write their pages, so writes should be idempotent,
+    e.g. upserts keyed on the item, or marks that are only set if not set already.
+     */
     void writePageOfItems(Page<OUT> page, StepContext context);
 
     default void onComplete(StepContext context){}
@@ -44,4 +110,45 @@ public interface Batched<IN, OUT> {
     default boolean isSelectionFixed(){
         return false;
     }
+
+    /*
+    This field indicates if items are read by keyset pagination using readSliceOfItems(), rather than by
+    page number using readPageOfItems(). Paging by number has to skip all the items before the page and
+    count the items on each read, which slows down as the page number gets larger. Keyset pagination
+    does neither. As each read starts after the last key, isSelectionFixed() does not change how the
+    pages are read in this mode.
+     */
+    default boolean isKeysetPaginated(){
+        return false;
+    }
+
+    /*
+    This field indicates if a running record of the step can be split, so that an idle node can take on
+    the rest of its key range as a new record. Only keyset paginated steps whose item keys are Comparable
+    can be split. The key range of a record is in the context as rangeFrom (exclusive) and rangeTo
+    (inclusive), and readSliceOfItems() may use rangeTo to stop early. Items after rangeTo are dropped
+    in any case, as rangeTo can be lowered by a split while the record is running. As the rest of the
+    range is taken on by another node, writePageOfItems() must be safe to run side by side with itself
+     */
+    default boolean isSplittable(){
+        return false;
+    }
+
+    /*
+    A key to split the rest of a running record at, from the key of the last item it has read, to the
+    end of its range. rangeTo is null if the range is open ended. The record keeps the items up to and
+    including the split key, and a new record takes on the items after it. Returns null if the range
+    is too small to be worth splitting. Only used when isSplittable() is true
+     */
+    default Object getSplitKey(Object fromKey, Object rangeTo, StepContext context){
+        return null;
+    }
+
+    /*
+    The approximate size of an item in bytes. This is only used when the page size is adaptive, to
+    keep pages under the configured batchMaxPageBytes. A value of 0 means the size is not known
+     */
+    default long getItemBytes(IN item){
+        return 0;
+    }
 }
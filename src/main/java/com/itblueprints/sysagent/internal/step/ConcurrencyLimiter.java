@@ -0,0 +1,149 @@
+/*
+ * Copyright 2023-2024 the original author or authors.
+ *
+ * Licensed under the Apache Software License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.itblueprints.sysagent.internal.step;
+
+import com.itblueprints.sysagent.internal.Config;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits the number of items of a batch step processed at a time, adjusting the limit with
+ * additive increase and multiplicative decrease (AIMD). The time per item is measured as items
+ * complete. Once a window of as many items as the limit has completed, the limit is cut by a
+ * quarter if the latency rose more than batchLatencyTolerance times over its baseline or an item
+ * failed. Otherwise, if the limit was reached during the window, it goes up by 1. Until the first
+ * cut the limit doubles instead, so that it quickly reaches a useful level from batchConcurrencyMin.
+ * The baseline is the lowest latency seen, let to drift slowly up so that a dependency that is
+ * permanently slower does not hold the limit down forever
+ */
+@Slf4j
+class ConcurrencyLimiter {
+
+    //Weight given to the latest measurement in the latency moving average
+    private static final double SMOOTHING = 0.2;
+    //How much the baseline latency may rise with each item
+    private static final double BASELINE_DRIFT = 1.001;
+    private static final double BACKOFF_RATIO = 0.75;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final double latencyTolerance;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition belowLimit = lock.newCondition();
+
+    private volatile int limit;
+    private int inFlight = 0;
+    private boolean slowStart = true;
+
+    private double nanosPerItem = 0;
+    private double baselineNanosPerItem = 0;
+
+    //State of the current window
+    private int windowCompleted = 0;
+    private boolean windowDegraded = false;
+    private boolean windowSaturated = false;
+
+    //--------------------------------------------------------------
+    ConcurrencyLimiter(Config config, int maxLimit){
+        this.maxLimit = Math.max(1, maxLimit);
+        minLimit = Math.max(1, Math.min(this.maxLimit, config.getBatchConcurrencyMin()));
+        latencyTolerance = Math.max(1, config.getBatchLatencyTolerance());
+        limit = minLimit;
+    }
+
+    //--------------------------------------------------------------
+    int getLimit(){
+        return limit;
+    }
+
+    //--------------------------------------------------------------
+    // Waits until there is room for one more item or chunk under the limit
+    void acquire() throws InterruptedException {
+        lock.lock();
+        try {
+            while(inFlight >= limit) belowLimit.await();
+            inFlight++;
+            if(inFlight >= limit) windowSaturated = true;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    //--------------------------------------------------------------
+    // Gives back room that was acquired but not used
+    void cancel(){
+        lock.lock();
+        try {
+            inFlight--;
+            belowLimit.signal();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    //--------------------------------------------------------------
+    /**
+     * Gives back the room taken by processed items and records how they went
+     * @param items The number of items processed
+     * @param nanos How long they took
+     * @param succeeded Whether they were processed without an error
+     */
+    void release(int items, long nanos, boolean succeeded){
+        lock.lock();
+        try {
+            inFlight--;
+            record(items, nanos, succeeded);
+            belowLimit.signalAll();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    //--------------------------------------------------------------
+    private void record(int items, long nanos, boolean succeeded){
+        if(items > 0) {
+            double latest = (double) nanos / items;
+            nanosPerItem = nanosPerItem == 0 ? latest : nanosPerItem + SMOOTHING * (latest - nanosPerItem);
+            baselineNanosPerItem = baselineNanosPerItem == 0 ? nanosPerItem
+                    : Math.min(nanosPerItem, baselineNanosPerItem * BASELINE_DRIFT);
+        }
+        if(!succeeded || nanosPerItem > baselineNanosPerItem * latencyTolerance) windowDegraded = true;
+
+        if(++windowCompleted < limit) return;
+
+        int next = limit;
+        if(windowDegraded) {
+            next = Math.max(minLimit, (int) (limit * BACKOFF_RATIO));
+            slowStart = false;
+        }
+        else if(windowSaturated) next = Math.min(maxLimit, slowStart ? limit * 2 : limit + 1);
+
+        if(next != limit) {
+            log.debug("Batch concurrency limit changed from "+limit+" to "+next);
+            limit = next;
+        }
+        windowCompleted = 0;
+        windowDegraded = false;
+        windowSaturated = inFlight >= limit;
+    }
+}
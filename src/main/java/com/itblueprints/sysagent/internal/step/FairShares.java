@@ -0,0 +1,86 @@
+/*
+ * Copyright 2023-2024 the original author or authors.
+ *
+ * Licensed under the Apache Software License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.itblueprints.sysagent.internal.step;
+
+import lombok.val;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Shares the records to claim between the jobs waiting, so that a job with many records does not
+ * crowd out the rest. Made once a heartbeat from the records each job has running across the cluster,
+ * and added to as this node claims records until the next heartbeat. The records go one at a time to
+ * the highest priority job with the fewest records running for its weight, counting those already
+ * handed out
+ */
+class FairShares {
+
+    private final List<JobShare> jobs = new ArrayList<>();
+    private final Map<String, JobShare> jobsByName = new HashMap<>();
+
+    //--------------------------------------------------------------
+    void addJob(String jobName, int priority, int weight, int running){
+        val job = new JobShare(jobName, priority, Math.max(1, weight), running);
+        jobs.add(job);
+        jobsByName.put(jobName, job);
+    }
+
+    //--------------------------------------------------------------
+    /**
+     * @param maxRecords The number of records to claim
+     * @return The number of records to claim for each job
+     */
+    synchronized Map<String, Integer> allocate(int maxRecords){
+        val shares = new HashMap<String, Integer>();
+        if(jobs.isEmpty()) return shares;
+        val order = Comparator
+                .comparingInt((JobShare j) -> -j.priority)
+                .thenComparingDouble(j -> (j.running + shares.getOrDefault(j.jobName, 0)) / j.weight);
+        for(int i=0; i < maxRecords; i++) {
+            val next = jobs.stream().min(order).get();
+            shares.merge(next.jobName, 1, Integer::sum);
+        }
+        return shares;
+    }
+
+    //--------------------------------------------------------------
+    // Counts the records this node claimed as running, until the shares are made again
+    synchronized void onClaimed(List<StepRecord> stepRecs){
+        for(val stepRec : stepRecs) {
+            val job = jobsByName.get(stepRec.getJobName());
+            if(job != null) job.running++;
+        }
+    }
+
+    //==============================================================
+    private static class JobShare {
+        private final String jobName;
+        private final int priority;
+        private final double weight;
+        private int running;
+
+        JobShare(String jobName, int priority, int weight, int running){
+            this.jobName = jobName;
+            this.priority = priority;
+            this.weight = weight;
+            this.running = running;
+        }
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2023-2024 the original author or authors.
+ *
+ * Licensed under the Apache Software License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.itblueprints.sysagent.internal.step;
+
+import com.itblueprints.sysagent.internal.Bulkhead;
+import com.itblueprints.sysagent.internal.SysAgentException;
+import lombok.val;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+/**
+ * Hands out the items of a page to the worker threads and collects the results in item order.
+ * Items are handed out one at a time, or in chunks when the chunk size is more than 1. Work is
+ * passed to the threads in a fixed ring of slots, one for each item or chunk allowed in flight.
+ * A slot puts itself back on the free queue as soon as its work is processed, so the free queue
+ * both limits the work in flight and signals completion. Nothing is allocated per page or per item.
+ * If there is a concurrency limiter, it can hold the work in flight below the number of slots.
+ * Each piece of work in flight also holds a permit of the bulkhead, as other batches may be
+ * handing out work to the same executor at the same time
+ */
+class ItemDispatcher<IN, OUT> {
+
+    private final Bulkhead bulkhead;
+    private final Function<IN, OUT> itemProcessor;
+    private final Function<List<IN>, List<OUT>> chunkProcessor;
+    private final int chunkSize;
+    private final ConcurrencyLimiter limiter;
+
+    private final int slotCount;
+    private final ArrayBlockingQueue<Slot> freeSlots;
+    private final List<Slot> returnedSlots;
+
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    //--------------------------------------------------------------
+    ItemDispatcher(Bulkhead bulkhead, int slotCount,
+                   Function<IN, OUT> itemProcessor,
+                   Function<List<IN>, List<OUT>> chunkProcessor,
+                   int chunkSize,
+                   ConcurrencyLimiter limiter){
+        this.bulkhead = bulkhead;
+        this.limiter = limiter;
+        this.itemProcessor = itemProcessor;
+        this.chunkProcessor = chunkProcessor;
+        this.chunkSize = chunkProcessor == null ? 1 : Math.max(1, chunkSize);
+        this.slotCount = slotCount;
+        freeSlots = new ArrayBlockingQueue<>(slotCount);
+        returnedSlots = new ArrayList<>(slotCount);
+        for(int i=0; i < slotCount; i++) freeSlots.add(new Slot());
+    }
+
+    //--------------------------------------------------------------
+    int getConcurrencyLimit(){
+        return limiter != null ? limiter.getLimit() : slotCount;
+    }
+
+    //--------------------------------------------------------------
+    /**
+     * Processes the items and puts the results in the same positions in the results list
+     * @param items The items to process
+     * @param results The list to hold the results. It is cleared first
+     */
+    void dispatch(List<IN> items, List<OUT> results) throws InterruptedException {
+        //Size the results up front, as the slots set their results at the items' indexes
+        results.clear();
+        for(int i=0; i < items.size(); i++) results.add(null);
+
+        for(int from = 0; from < items.size(); from += chunkSize){
+            if(limiter != null) limiter.acquire();
+            val slot = freeSlots.take();
+            if(failure.get() != null) {
+                freeSlots.add(slot);
+                if(limiter != null) limiter.cancel();
+                break;
+            }
+            try {
+                bulkhead.acquire();
+            }
+            catch (InterruptedException e){
+                freeSlots.add(slot);
+                if(limiter != null) limiter.cancel();
+                throw e;
+            }
+            slot.assign(items, from, Math.min(from + chunkSize, items.size()), results);
+            try {
+                bulkhead.getExecutor().execute(slot);
+            }
+            catch (RejectedExecutionException e){
+                slot.clear();
+                bulkhead.release();
+                freeSlots.add(slot);
+                if(limiter != null) limiter.cancel();
+                awaitAll();
+                throw e;
+            }
+        }
+        awaitAll();
+
+        val error = failure.getAndSet(null);
+        if(error != null) throw new SysAgentException("Error processing item", error);
+    }
+
+    //--------------------------------------------------------------
+    // All slots are back on the free queue once every item handed out has been processed
+    private void awaitAll() throws InterruptedException {
+        for(int i=0; i < slotCount; i++) returnedSlots.add(freeSlots.take());
+        freeSlots.addAll(returnedSlots);
+        returnedSlots.clear();
+    }
+
+    //==============================================================
+    private class Slot implements Runnable {
+        private List<IN> items;
+        private int from;
+        private int to;
+        private List<OUT> results;
+
+        void assign(List<IN> items, int from, int to, List<OUT> results){
+            this.items = items;
+            this.from = from;
+            this.to = to;
+            this.results = results;
+        }
+
+        void clear(){
+            items = null;
+            results = null;
+        }
+
+        @Override
+        public void run() {
+            val startedAt = System.nanoTime();
+            var succeeded = false;
+            try {
+                if(chunkSize == 1) results.set(from, itemProcessor.apply(items.get(from)));
+                else {
+                    val chunkResults = chunkProcessor.apply(items.subList(from, to));
+                    if(chunkResults == null || chunkResults.size() != to - from) {
+                        throw new SysAgentException("processChunk() must return one result per item. Expected "
+                                + (to - from) + " but got " + (chunkResults == null ? null : chunkResults.size()));
+                    }
+                    for(int i = from; i < to; i++) results.set(i, chunkResults.get(i - from));
+                }
+                succeeded = true;
+            }
+            catch (Throwable t){
+                failure.compareAndSet(null, t);
+            }
+            finally {
+                if(limiter != null) limiter.release(to - from, System.nanoTime() - startedAt, succeeded);
+                bulkhead.release();
+                clear();
+                freeSlots.add(this);
+            }
+        }
+    }
+}
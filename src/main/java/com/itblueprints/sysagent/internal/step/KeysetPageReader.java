@@ -0,0 +1,106 @@
+/*
+ * Copyright 2023-2024 the original author or authors.
+ *
+ * Licensed under the Apache Software License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.itblueprints.sysagent.internal.step;
+
+import com.itblueprints.sysagent.internal.SysAgentException;
+import com.itblueprints.sysagent.step.StepContext;
+import lombok.val;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Slice;
+import org.springframework.data.domain.SliceImpl;
+
+import java.util.function.IntSupplier;
+import java.util.function.UnaryOperator;
+
+/**
+ * Reads pages by keyset (seek) pagination using readSliceOfItems(). Each read starts after the
+ * key of the last item read, so there is no offset to skip and no count to run. As the key moves
+ * forward with each read, pages can be read ahead whether or not the selection is fixed.
+ * Reading starts after the rangeFrom of the context, and stops at its rangeTo if there is one.
+ * If there is a progress publisher, the key of the last item read is passed to it after each read,
+ * and the rangeTo it gives back replaces that of the context, so that a split of the record
+ * while it runs shortens the range still to be read
+ */
+class KeysetPageReader<IN> implements PageReader<IN> {
+
+    private final Batched<IN, ?> batchStep;
+    private final StepContext context;
+    private final IntSupplier pageSize;
+    private final UnaryOperator<Object> progress;
+
+    private Object lastKey;
+    private int pgNum = 0;
+    private boolean done = false;
+
+    //--------------------------------------------------------------
+    KeysetPageReader(Batched<IN, ?> batchStep, StepContext context, IntSupplier pageSize){
+        this(batchStep, context, pageSize, null);
+    }
+
+    //--------------------------------------------------------------
+    KeysetPageReader(Batched<IN, ?> batchStep, StepContext context, IntSupplier pageSize, UnaryOperator<Object> progress){
+        this.batchStep = batchStep;
+        this.context = context;
+        this.pageSize = pageSize;
+        this.progress = progress;
+        this.lastKey = context.getRangeFrom();
+    }
+
+    //--------------------------------------------------------------
+    @Override
+    public Slice<IN> readNextPage() {
+        if(done) return null;
+
+        val slice = batchStep.readSliceOfItems(lastKey, PageRequest.of(pgNum++, pageSize.getAsInt()), context);
+
+        //End if no more items to process
+        if(slice == null || !slice.hasContent()) {
+            done = true;
+            return null;
+        }
+
+        val items = slice.getContent();
+        val key = batchStep.getItemKey(items.get(items.size() - 1));
+        if(key == null) throw new SysAgentException("getItemKey() returned null for the last item of page "+(pgNum-1));
+        lastKey = key;
+        if(progress != null) context.setRangeTo(progress.apply(key));
+
+        if(!slice.hasNext()) done = true;
+
+        //End at the end of the range, dropping any items read beyond it
+        val rangeTo = context.getRangeTo();
+        if(rangeTo == null || compare(key, rangeTo) < 0) return slice;
+        done = true;
+        if(compare(key, rangeTo) == 0) return slice;
+        int inRange = 0;
+        while(inRange < items.size() && compare(batchStep.getItemKey(items.get(inRange)), rangeTo) <= 0) inRange++;
+        if(inRange == 0) return null;
+        return new SliceImpl<>(items.subList(0, inRange), slice.getPageable(), false);
+    }
+
+    //--------------------------------------------------------------
+    @Override
+    public Object getLastKey() {
+        return lastKey;
+    }
+
+    //--------------------------------------------------------------
+    @SuppressWarnings("unchecked")
+    private static int compare(Object key, Object otherKey){
+        if(!(key instanceof Comparable)) throw new SysAgentException("Item keys must be Comparable for a key range. Got "+key.getClass().getName());
+        return ((Comparable<Object>) key).compareTo(otherKey);
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2023-2024 the original author or authors.
+ *
+ * Licensed under the Apache Software License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.itblueprints.sysagent.internal.step;
+
+import com.itblueprints.sysagent.step.StepContext;
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Slice;
+
+import java.util.concurrent.Semaphore;
+import java.util.function.IntSupplier;
+
+/**
+ * Reads pages by page number using readPageOfItems(). With a fixed selection the page number
+ * advances with each read. With a dynamic selection it stays at 0, as the items written drop out
+ * of the selection, so each page must be written out before the next one can be read
+ */
+@Slf4j
+class OffsetPageReader<IN> implements PageReader<IN> {
+
+    private final Batched<IN, ?> batchStep;
+    private final StepContext context;
+    private final IntSupplier pageSize;
+    private final Semaphore pagesWritten;
+
+    private int pgNum = 0;
+    private int pagesRead = 0;
+    private int totalPages = -1;
+    private int fixedPageSize = 0;
+    private boolean done = false;
+
+    //--------------------------------------------------------------
+    OffsetPageReader(Batched<IN, ?> batchStep, StepContext context, IntSupplier pageSize, Semaphore pagesWritten){
+        this.batchStep = batchStep;
+        this.context = context;
+        this.pageSize = pageSize;
+        this.pagesWritten = pagesWritten;
+    }
+
+    //--------------------------------------------------------------
+    @Override
+    public Slice<IN> readNextPage() throws InterruptedException {
+        if(done) return null;
+
+        //In case of dynamic selection wait for the last page read to be written
+        if(!batchStep.isSelectionFixed() && pagesRead > 0) pagesWritten.acquire();
+
+        val size = nextPageSize();
+        val pgIn = batchStep.readPageOfItems(PageRequest.of(pgNum, size), context);
+        pagesRead++;
+
+        //End if no more items to process
+        if(pgIn.getTotalElements() == 0) {
+            done = true;
+            return null;
+        }
+
+        //If total pages not initialised, get the value from the first page response
+        if(totalPages == -1) {
+            totalPages = pgIn.getTotalPages();
+            log.debug("Total pages = "+totalPages+", pageSize = "+size);
+        }
+
+        //If this a fixed selection, then advance the page num
+        if(batchStep.isSelectionFixed()){
+            pgNum++;
+            //End if this was the last page
+            if(pgNum == totalPages) done = true;
+        }
+        return pgIn;
+    }
+
+    //--------------------------------------------------------------
+    // With a fixed selection, pages are found by page number, so the page size
+    // cannot change once reading has started
+    private int nextPageSize(){
+        if(!batchStep.isSelectionFixed()) return pageSize.getAsInt();
+        if(fixedPageSize == 0) fixedPageSize = pageSize.getAsInt();
+        return fixedPageSize;
+    }
+}
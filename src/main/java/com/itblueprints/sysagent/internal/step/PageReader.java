@@ -0,0 +1,41 @@
+/*
+ * Copyright 2023-2024 the original author or authors.
+ *
+ * Licensed under the Apache Software License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.itblueprints.sysagent.internal.step;
+
+import org.springframework.data.domain.Slice;
+
+/**
+ * Reads the items of a batch step, one page at a time, for the reader stage of the batch
+ */
+interface PageReader<IN> extends AutoCloseable {
+
+    /**
+     * Reads the next page of items
+     * @return The next page or null if there are no more items to process
+     */
+    Slice<IN> readNextPage() throws InterruptedException;
+
+    /**
+     * The key of the last item read, for reading to carry on after it later
+     * @return The key, or null if reading can only carry on from the start
+     */
+    default Object getLastKey(){
+        return null;
+    }
+
+    @Override
+    default void close(){}
+}
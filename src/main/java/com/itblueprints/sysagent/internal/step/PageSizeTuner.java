@@ -0,0 +1,100 @@
+/*
+ * Copyright 2023-2024 the original author or authors.
+ *
+ * Licensed under the Apache Software License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.itblueprints.sysagent.internal.step;
+
+import com.itblueprints.sysagent.internal.Config;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Tunes the page size of a batch step while it runs. The time per item of the read, process and
+ * write stages is measured and the page size is set so that the slowest stage takes about
+ * batchTargetPageMillis per page. If the step gives the size of its items, a page is also kept
+ * under batchMaxPageBytes. The size always stays within batchPageSizeMin and batchPageSizeMax,
+ * and moves half way to the new size each time to damp out noisy measurements
+ */
+@Slf4j
+class PageSizeTuner {
+
+    enum Stage { READ, PROCESS, WRITE }
+
+    //Weight given to the latest measurement in the moving averages
+    private static final double SMOOTHING = 0.3;
+
+    private final boolean adaptive;
+    private final int minPageSize;
+    private final int maxPageSize;
+    private final double targetPageNanos;
+    private final long maxPageBytes;
+
+    private final double[] nanosPerItem = new double[Stage.values().length];
+    private double bytesPerItem = 0;
+
+    private volatile int pageSize;
+
+    //--------------------------------------------------------------
+    PageSizeTuner(Config config, int initialPageSize){
+        adaptive = config.isBatchAdaptivePageSize();
+        minPageSize = Math.max(1, config.getBatchPageSizeMin());
+        maxPageSize = Math.max(minPageSize, config.getBatchPageSizeMax());
+        targetPageNanos = config.getBatchTargetPageMillis() * 1_000_000d;
+        maxPageBytes = config.getBatchMaxPageBytes();
+        pageSize = adaptive ? clamp(initialPageSize) : initialPageSize;
+    }
+
+    //--------------------------------------------------------------
+    int getPageSize(){
+        return pageSize;
+    }
+
+    //--------------------------------------------------------------
+    synchronized void record(Stage stage, int items, long nanos){
+        if(!adaptive || items <= 0) return;
+        nanosPerItem[stage.ordinal()] = average(nanosPerItem[stage.ordinal()], (double) nanos / items);
+        retune();
+    }
+
+    //--------------------------------------------------------------
+    synchronized void recordItemBytes(long bytes){
+        if(!adaptive || bytes <= 0) return;
+        bytesPerItem = average(bytesPerItem, bytes);
+        retune();
+    }
+
+    //--------------------------------------------------------------
+    private void retune(){
+        double slowest = 0;
+        for(double n : nanosPerItem) slowest = Math.max(slowest, n);
+        if(slowest <= 0) return;
+
+        double target = targetPageNanos / slowest;
+        if(bytesPerItem > 0 && maxPageBytes > 0) target = Math.min(target, maxPageBytes / bytesPerItem);
+
+        int next = clamp((long) ((pageSize + target) / 2));
+        if(next != pageSize) {
+            log.debug("Batch page size changed from "+pageSize+" to "+next);
+            pageSize = next;
+        }
+    }
+
+    //--------------------------------------------------------------
+    private int clamp(long size){
+        return (int) Math.max(minPageSize, Math.min(maxPageSize, size));
+    }
+
+    private static double average(double current, double latest){
+        return current == 0 ? latest : current + SMOOTHING * (latest - current);
+    }
+}
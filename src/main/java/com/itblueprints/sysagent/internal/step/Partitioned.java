@@ -16,13 +16,40 @@
 
 package com.itblueprints.sysagent.internal.step;
 
+import com.itblueprints.sysagent.internal.SysAgentException;
 import com.itblueprints.sysagent.job.JobArguments;
 import com.itblueprints.sysagent.step.Partition;
 
 import java.util.List;
+import java.util.stream.Stream;
 
 public interface Partitioned {
 
-    List<Partition> getPartitions(JobArguments jobArguments);
+    /*
+    The partitions to run the step in. Either this or getPartitionStream() must be implemented
+     */
+    default List<Partition> getPartitions(JobArguments jobArguments){
+        throw new SysAgentException("getPartitions() or getPartitionStream() must be implemented by "+getClass().getName());
+    }
+
+    /*
+    The partitions as a stream, for when there are too many to hold in a list. The stream is read once,
+    and its step records are inserted in batches as it is read, so only a batch is held in memory at a
+    time. It is closed once read. By default this streams the list from getPartitions()
+     */
+    default Stream<Partition> getPartitionStream(JobArguments jobArguments){
+        List<Partition> partitions = getPartitions(jobArguments);
+        return partitions == null ? Stream.empty() : partitions.stream();
+    }
+
+    /*
+    If true, and the step comes straight after another partitioned step and only that step, then each
+    partition of this step runs as soon as the partition of the previous step with the same number
+    completes, instead of waiting for the whole of the previous step. Only use this when both steps
+    partition the data the same way, in the same order
+     */
+    default boolean isPartitionPipelined(){
+        return false;
+    }
 
 }
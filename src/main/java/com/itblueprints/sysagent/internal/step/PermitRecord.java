@@ -0,0 +1,75 @@
+/*
+ * Copyright 2023-2024 the original author or authors.
+ *
+ * Licensed under the Apache Software License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.itblueprints.sysagent.internal.step;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.val;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A semaphore shared by the cluster, that caps how many records of a job, or of a step of a job, run
+ * at once. Each running record holds a permit, leased to the node running it. Permits are given back
+ * when the record is done, or when the node dies or stops renewing its lease
+ */
+@Getter
+@Setter
+@Document
+public class PermitRecord {
+
+    @Id
+    private String permitKey;
+
+    private int limit;
+
+    private List<Holder> holders = new ArrayList<>();
+
+    //------------------------------------------
+    public static String jobKey(String jobName){
+        return "job:"+jobName;
+    }
+
+    //------------------------------------------
+    public static String stepKey(String jobName, String stepName){
+        return "step:"+jobName+"/"+stepName;
+    }
+
+    //==========================================
+    @Getter
+    @Setter
+    public static class Holder {
+
+        private String stepRecordId;
+
+        private String nodeId;
+
+        private long leaseTill;
+
+        //------------------------------------------
+        public static Holder of(String stepRecordId, String nodeId, long leaseTill) {
+            val holder = new Holder();
+            holder.stepRecordId = stepRecordId;
+            holder.nodeId = nodeId;
+            holder.leaseTill = leaseTill;
+            return holder;
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2023-2024 the original author or authors.
+ *
+ * Licensed under the Apache Software License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.itblueprints.sysagent.internal.step;
+
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageImpl;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * A page of processed items that is reused from one page of the batch to the next, so its
+ * content is only valid until writePageOfItems() returns. Totals are worked out the same way as
+ * PageImpl does when given the number of items in the page as the total
+ */
+class ResultPage<T> implements Page<T> {
+
+    private final ArrayList<T> content = new ArrayList<>();
+    private Pageable pageable = Pageable.unpaged();
+
+    //--------------------------------------------------------------
+    ResultPage<T> reset(Pageable pageable){
+        this.pageable = pageable;
+        content.clear();
+        return this;
+    }
+
+    List<T> content(){
+        return content;
+    }
+
+    //--------------------------------------------------------------
+    @Override
+    public int getTotalPages() {
+        return getSize() == 0 ? 1 : (int) Math.ceil((double) getTotalElements() / (double) getSize());
+    }
+
+    @Override
+    public long getTotalElements() {
+        return pageable.isPaged() && !content.isEmpty() ? pageable.getOffset() + content.size() : content.size();
+    }
+
+    @Override
+    public <U> Page<U> map(Function<? super T, ? extends U> converter) {
+        return new PageImpl<>(content.stream().<U>map(converter).toList(), pageable, getTotalElements());
+    }
+
+    @Override
+    public int getNumber() {
+        return pageable.isPaged() ? pageable.getPageNumber() : 0;
+    }
+
+    @Override
+    public int getSize() {
+        return pageable.isPaged() ? pageable.getPageSize() : content.size();
+    }
+
+    @Override
+    public int getNumberOfElements() {
+        return content.size();
+    }
+
+    @Override
+    public boolean hasContent() {
+        return !content.isEmpty();
+    }
+
+    @Override
+    public List<T> getContent() {
+        return Collections.unmodifiableList(content);
+    }
+
+    @Override
+    public Sort getSort() {
+        return pageable.getSort();
+    }
+
+    @Override
+    public boolean isFirst() {
+        return !hasPrevious();
+    }
+
+    @Override
+    public boolean isLast() {
+        return !hasNext();
+    }
+
+    @Override
+    public boolean hasNext() {
+        return getNumber() + 1 < getTotalPages();
+    }
+
+    @Override
+    public boolean hasPrevious() {
+        return getNumber() > 0;
+    }
+
+    @Override
+    public Pageable getPageable() {
+        return pageable;
+    }
+
+    @Override
+    public Pageable nextPageable() {
+        return hasNext() ? pageable.next() : Pageable.unpaged();
+    }
+
+    @Override
+    public Pageable previousPageable() {
+        return hasPrevious() ? pageable.previousOrFirst() : Pageable.unpaged();
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+        return getContent().iterator();
+    }
+
+    @Override
+    public String toString() {
+        return "ResultPage " + (getNumber() + 1) + " of " + getTotalPages() + " containing " + content.size() + " items";
+    }
+}
@@ -16,25 +16,42 @@
 
 package com.itblueprints.sysagent.internal.step;
 
+import com.itblueprints.sysagent.internal.Config;
 import com.itblueprints.sysagent.internal.ExecutionStatus;
 import com.itblueprints.sysagent.internal.SysAgentException;
 import com.itblueprints.sysagent.internal.ThreadManager;
-import com.itblueprints.sysagent.internal.Utils;
+import com.itblueprints.sysagent.internal.cluster.ClusterService;
 import com.itblueprints.sysagent.internal.cluster.NodeInfo;
 import com.itblueprints.sysagent.internal.job.JobExecutionService;
 import com.itblueprints.sysagent.internal.repository.RecordRepository;
 import com.itblueprints.sysagent.step.*;
+import jakarta.annotation.PreDestroy;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import lombok.val;
-import org.springframework.data.domain.PageImpl;
-import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Slice;
+import org.springframework.data.domain.SliceImpl;
 import org.springframework.stereotype.Component;
 
+import java.time.Duration;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.IntSupplier;
+import java.util.function.UnaryOperator;
 
 @Component
 @RequiredArgsConstructor
@@ -43,63 +60,360 @@ public class StepExecutionService {
     private final JobExecutionService jobExecutionService;
     private final ThreadManager threadManager;
     private final RecordRepository repository;
+    private final Config config;
+
+    //Step records claimed by this node that are yet to be started
+    private final ConcurrentLinkedQueue<StepRecord> claimedStepRecs = new ConcurrentLinkedQueue<>();
+
+    //The node id from the last heartbeat, so that work can be claimed between heartbeats
+    private volatile String lastNodeId;
+    private final AtomicBoolean wakePending = new AtomicBoolean(false);
+
+    //Set once this node has run a partition with an affinity key, as only then are records placed on it
+    private volatile boolean ranAffinityPartitions = false;
+
+    //The step records running on this node and their contexts, so that they can be cancelled or asked to yield
+    private final Map<StepRecord, StepContext> runningSteps = new ConcurrentHashMap<>();
+
+    //The shares of the jobs waiting, made each heartbeat. Null if at most one job is waiting
+    private volatile FairShares fairShares;
 
     //-------------------------------------------------------------
     public void onHeartBeat(NodeInfo nodeInfo, LocalDateTime now) {
+        lastNodeId = nodeInfo.nodeId;
+        renewPermits(nodeInfo.nodeId);
+        cancelLostRuns();
+        yieldToHigherPriority(nodeInfo.nodeId, nodeInfo.freeStepSlots);
+        refreshFairShares();
+        claimWork(nodeInfo.nodeId, nodeInfo.freeStepSlots, now);
+    }
 
-        if(nodeInfo.isNodeBusy) {
-            log.debug("Node busy. Not taking on additional work");
+    //-------------------------------------------------------------
+    // Shares the slots between the jobs waiting by their priority and weight. This only needs the
+    // records each job has running, and only if more than one job is waiting
+    void refreshFairShares(){
+        val jobNames = repository.getWaitingJobNames();
+        if(jobNames.size() <= 1) {
+            fairShares = null;
             return;
         }
+        val running = repository.getRunningStepRecordCounts(jobNames);
+        val shares = new FairShares();
+        for(val jobName : jobNames) {
+            val job = jobExecutionService.getJob(jobName);
+            if(job == null) continue;
+            shares.addJob(jobName, job.getPriority(), job.getWeight(), running.getOrDefault(jobName, 0));
+        }
+        fairShares = shares;
+    }
 
-        var stepProcessed = false;
-        do {
-            stepProcessed = processStepIfAvailable(nodeInfo, now);
-        } while(stepProcessed);
+    //-------------------------------------------------------------
+    // Called as step records become claimable. Claims them without waiting for the next heartbeat.
+    // A burst of them, e.g. the partitions of a step, is taken as one wake up
+    public void onStepRecordsClaimable() {
+        val nodeId = lastNodeId;
+        if(nodeId == null || !wakePending.compareAndSet(false, true)) return;
+        try {
+            threadManager.getScheduler().schedule(() -> {
+                wakePending.set(false);
+                claimWork(nodeId, threadManager.getFreeStepSlots(), LocalDateTime.now());
+            }, config.getStepWakeDebounceMillis(), TimeUnit.MILLISECONDS);
+        }
+        catch (RejectedExecutionException e) {
+            //Shutting down
+            wakePending.set(false);
+        }
     }
 
     //-------------------------------------------------------------
-    boolean processStepIfAvailable(NodeInfo nodeInfo, LocalDateTime now){
-        val stepRec = repository.tryClaimNextStepRecord(nodeInfo.nodeId);
-        if (stepRec != null) {
-            processStep(stepRec, now);
-            threadManager.drainWorkerTaskQueue();
-            return true;
+    // Claims a step record for each free step slot and runs it in the slot
+    void claimWork(String nodeId, int freeStepSlots, LocalDateTime now) {
+
+        if(freeStepSlots == 0) {
+            log.debug("No free step slots. Not taking on additional work");
+            return;
+        }
+
+        int slot;
+        var helpTried = false;
+        while((slot = threadManager.tryAcquireStepSlot()) >= 0) {
+            var stepRec = nextStepRecord(nodeId, freeStepSlots);
+            //Nothing left to claim, so help with a record another node has been running a while,
+            //either by taking on part of it or by running it a second time
+            if(stepRec == null && !helpTried) {
+                helpTried = true;
+                stepRec = trySplitStepRecord(nodeId, now);
+                if(stepRec == null) stepRec = tryBackUpStepRecord(nodeId, now);
+            }
+            if(stepRec == null) {
+                threadManager.releaseStepSlot(slot);
+                break;
+            }
+            runInSlot(slot, stepRec, nodeId, now);
+        }
+    }
+
+    //-------------------------------------------------------------
+    // Runs step records in a slot, one after the other. Once a step record is done the slot
+    // claims the next one straight away, and is freed when there are none left
+    void runInSlot(int slot, StepRecord firstStepRec, String nodeId, LocalDateTime now){
+        threadManager.getStepExecutor().submit(() -> {
+            try {
+                var stepRec = firstStepRec;
+                var startedAt = now;
+                while (stepRec != null) {
+                    threadManager.setSlotStepRecordId(slot, stepRec.getId());
+                    try {
+                        processStep(stepRec, startedAt);
+                    }
+                    catch (Exception e) {
+                        log.error("Error processing step record "+stepRec.getId()+" in slot "+slot, e);
+                    }
+                    stepRec = nextStepRecord(nodeId, 1);
+                    startedAt = LocalDateTime.now();
+                }
+            }
+            finally {
+                threadManager.releaseStepSlot(slot);
+            }
+        });
+    }
+
+    //-------------------------------------------------------------
+    // Takes the next step record claimed by this node. When none are left, claims a batch of
+    // records in one go, of at least as many as are wanted now, and keeps the rest for later
+    StepRecord nextStepRecord(String nodeId, int wanted){
+        val stepRec = pollClaimed(nodeId);
+        if(stepRec != null) return stepRec;
+        val claimSize = Math.max(wanted, config.getStepClaimBatchSize());
+        //Records placed on this node come first, so they are run while it still has the partitions' data
+        if(ranAffinityPartitions) claimedStepRecs.addAll(repository.tryClaimPreferredStepRecords(nodeId, claimSize));
+        if(claimedStepRecs.isEmpty()) claimedStepRecs.addAll(claimStepRecords(nodeId, claimSize));
+        return pollClaimed(nodeId);
+    }
+
+    //-------------------------------------------------------------
+    // Claims each waiting job's share of the records. Whatever the shares leave unclaimed, e.g. as a
+    // job has fewer records waiting than its share, is claimed in the usual order
+    private List<StepRecord> claimStepRecords(String nodeId, int claimSize){
+        val shares = fairShares;
+        if(shares == null) return repository.tryClaimStepRecords(nodeId, claimSize);
+        val claimed = new ArrayList<>(repository.tryClaimStepRecordsOfJobs(nodeId, shares.allocate(claimSize)));
+        if(claimed.size() < claimSize) claimed.addAll(repository.tryClaimStepRecords(nodeId, claimSize - claimed.size()));
+        shares.onClaimed(claimed);
+        return claimed;
+    }
+
+    //-------------------------------------------------------------
+    // Takes the next claimed record this node can get the permits for, if its job or step is capped.
+    // The permits are taken just before the record runs, so records waiting on this node hold none.
+    // A record whose job or step reached its cap in the meantime is given up for claiming again later
+    private StepRecord pollClaimed(String nodeId){
+        StepRecord stepRec;
+        while((stepRec = claimedStepRecs.poll()) != null) {
+            if(stepRec.getPermitKeys().isEmpty()) return stepRec;
+            if(repository.tryAcquirePermits(stepRec.getId(), nodeId, stepRec.getPermitKeys(), permitLeaseTill())) return stepRec;
+            log.debug("No permit left for step record "+stepRec.getId()+" of "+stepRec.getPermitKeys()+". Releasing it");
+            repository.releaseStepRecordClaims(List.of(stepRec.getId()), nodeId);
+        }
+        return null;
+    }
+
+    //-------------------------------------------------------------
+    // Permits are leased for as long as the node's life lease, and renewed along with it
+    private long permitLeaseTill(){
+        return System.currentTimeMillis() + config.getHeartBeatSecs() * 1000L * ClusterService.LEASE_HEARTBEATS;
+    }
+
+    //-------------------------------------------------------------
+    void renewPermits(String nodeId){
+        val holdsPermits = runningSteps.keySet().stream().anyMatch(sr -> !sr.getPermitKeys().isEmpty());
+        if(holdsPermits) repository.renewPermits(nodeId, permitLeaseTill());
+    }
+
+    //-------------------------------------------------------------
+    // Splits the rest of the key range off a record another node has been running for a while, as a
+    // new record claimed by this node. The split only takes effect if the record has not moved past the
+    // split key or been split by another node in the meantime, else the new record is deleted again
+    StepRecord trySplitStepRecord(String nodeId, LocalDateTime now){
+        val runningRecs = repository.getSplittableStepRecords(nodeId,
+                now.minusSeconds(config.getStepSplitAfterSecs()), SPLIT_CANDIDATES);
+        for(val stepRec : runningRecs) {
+            val step = jobExecutionService.getStep(stepRec.getJobName(), stepRec.getStepName());
+            if(!(step instanceof Batched<?, ?> batchStep) || !batchStep.isSplittable()) continue;
+
+            //Records of a step pipelined to the next step are matched to that step's by partition
+            if(jobExecutionService.hasPipelinedNextSteps(stepRec.getJobName(), stepRec.getStepName())) continue;
+            //A split would run one more record than the cap allows
+            if(!stepRec.getPermitKeys().isEmpty()) continue;
+
+            val splitKey = batchStep.getSplitKey(stepRec.getProgressKey(), stepRec.getRangeTo(), createContext(stepRec));
+            if(splitKey == null) continue;
+
+            val splitRec = StepRecord.of(stepRec.getJobRecordId(), stepRec.getJobName(), stepRec.getStepName(), stepRec.getJobArguments());
+            splitRec.setPartition(stepRec.getPartition());
+            splitRec.setRangeFrom(splitKey);
+            splitRec.setRangeTo(stepRec.getRangeTo());
+            splitRec.setSplitFromId(stepRec.getId());
+            splitRec.setPriority(stepRec.getPriority());
+            splitRec.setWeight(stepRec.getWeight());
+            splitRec.setClaimed(true);
+            splitRec.setNodeId(nodeId);
+            repository.save(splitRec);
+
+            if(repository.trySplitStepRecord(stepRec, splitKey, splitRec.getId())) {
+                log.info("Split step record "+stepRec.getId()+" of step '"+stepRec.getStepName()+"' at key "+splitKey);
+                jobExecutionService.onStepRecordSplit(splitRec);
+                return splitRec;
+            }
+            repository.deleteStepRecord(splitRec.getId());
         }
-        else return false;
+        return null;
+    }
+
+    private static final int SPLIT_CANDIDATES = 10;
+
+    //-------------------------------------------------------------
+    // Runs a second time a partition another node has been running for much longer than the step's
+    // partitions take on average, e.g. as that node is slowed down by others on the same host. The
+    // backup run only takes effect if no other node backed up the partition in the meantime
+    StepRecord tryBackUpStepRecord(String nodeId, LocalDateTime now){
+        if(!config.isStepSpeculativeExecution()) return null;
+        val runningRecs = repository.getBackupCandidateStepRecords(nodeId,
+                now.minusSeconds(config.getStepSpeculateAfterSecs()), SPLIT_CANDIDATES);
+        for(val stepRec : runningRecs) {
+            //A backup would run one more record than the cap allows
+            if(!stepRec.getPermitKeys().isEmpty()) continue;
+            val avgMillis = repository.getAverageStepRecordMillis(stepRec.getJobRecordId(), stepRec.getStepName());
+            if(avgMillis == null) continue;
+            val runningMillis = Duration.between(stepRec.getStartedAt(), now).toMillis();
+            if(runningMillis < avgMillis * config.getStepSpeculationFactor()) continue;
+
+            val backupRec = StepRecord.of(stepRec.getJobRecordId(), stepRec.getJobName(), stepRec.getStepName(), stepRec.getJobArguments());
+            backupRec.setPartition(stepRec.getPartition());
+            backupRec.setRangeFrom(stepRec.getRangeFrom());
+            backupRec.setRangeTo(stepRec.getRangeTo());
+            backupRec.setSpeculativeOf(stepRec.getId());
+            backupRec.setPriority(stepRec.getPriority());
+            backupRec.setWeight(stepRec.getWeight());
+            backupRec.setClaimed(true);
+            backupRec.setNodeId(nodeId);
+            repository.save(backupRec);
+
+            if(repository.trySetStepRecordBackup(stepRec.getId(), backupRec.getId())) {
+                log.info("Backing up step record "+stepRec.getId()+" of step '"+stepRec.getStepName()+"', running for "
+                        +runningMillis+"ms against "+avgMillis+"ms on average");
+                return backupRec;
+            }
+            repository.deleteStepRecord(backupRec.getId());
+        }
+        return null;
+    }
+
+    //-------------------------------------------------------------
+    // Cancels the records running on this node that were beaten by another run of the same partition
+    void cancelLostRuns(){
+        if(!config.isStepSpeculativeExecution() || runningSteps.isEmpty()) return;
+        val ids = runningSteps.keySet().stream().map(StepRecord::getId).toList();
+        val cancelIds = new HashSet<>(repository.getCancelRequestedStepRecordIds(ids));
+        runningSteps.forEach((stepRec, ctx) -> {
+            if(cancelIds.contains(stepRec.getId())) ctx.setCancelRequested(true);
+        });
+    }
+
+    //-------------------------------------------------------------
+    // Asks the lowest priority batch running on this node to make way, if records of a higher priority
+    // job are waiting and this node has no free slot for them. It stops at its next page and the rest
+    // of its record is put back to be claimed again
+    void yieldToHigherPriority(String nodeId, int freeStepSlots){
+        if(freeStepSlots > 0 || runningSteps.isEmpty()) return;
+        val lowest = runningSteps.entrySet().stream()
+                .filter(e -> !e.getValue().isYieldRequested() && !e.getValue().isReadingEnded())
+                .filter(e -> canYield(jobExecutionService.getStep(e.getKey().getJobName(), e.getKey().getStepName())))
+                .min(Comparator.comparingInt(e -> e.getKey().getPriority()))
+                .orElse(null);
+        if(lowest == null) return;
+
+        val waitingPriority = repository.getHighestWaitingPriority(nodeId);
+        if(waitingPriority == null || waitingPriority <= lowest.getKey().getPriority()) return;
+        log.info("Step record "+lowest.getKey().getId()+" of priority "+lowest.getKey().getPriority()
+                +" making way for records of priority "+waitingPriority);
+        lowest.getValue().setYieldRequested(true);
+    }
+
+    //-------------------------------------------------------------
+    // A batch can stop part way and carry on later if it can be read again from where it stopped, i.e.
+    // by key, or if the items it has written drop out of its selection
+    static boolean canYield(Step step){
+        if(!(step instanceof Batched) || step instanceof Streamed) return false;
+        val batchStep = (Batched<?, ?>) step;
+        return batchStep.isKeysetPaginated() || !batchStep.isSelectionFixed();
+    }
+
+    //-------------------------------------------------------------
+    // Gives up the records claimed by this node that have not been started, so other nodes can
+    // claim them. Called on shutdown and when this node's life lease ran out
+    public void releaseUnstartedClaims(String nodeId){
+        val ids = new ArrayList<String>();
+        StepRecord stepRec;
+        while((stepRec = claimedStepRecs.poll()) != null) ids.add(stepRec.getId());
+        if(ids.isEmpty()) return;
+        log.debug("Releasing "+ids.size()+" claimed step records not yet started");
+        repository.releaseStepRecordClaims(ids, nodeId);
+    }
+
+    //-------------------------------------------------------------
+    @PreDestroy
+    void shutdown(){
+        val stepRec = claimedStepRecs.peek();
+        if(stepRec != null) releaseUnstartedClaims(stepRec.getNodeId());
     }
 
     //-------------------------------------------------------------
     void processStep(StepRecord stepRec, LocalDateTime now){
-        threadManager.setNodeBusy(true);
         stepRec.setStatus(ExecutionStatus.RUNNING);
         stepRec.setStartedAt(now);
         repository.save(stepRec);
 
-        val step = jobExecutionService.getStep(stepRec.getJobName(), stepRec.getStepName());
-
-        //Prepare step contextss
-        StepContext ctx = new StepContext();
-        ctx.loadFrom(stepRec.getJobArguments());
-        if(stepRec.getPartition() != null) {
-            val prtn = stepRec.getPartition();
-            ctx.loadFrom(prtn);
-            ctx.setPartitionNum(prtn.getPartitionNum());
-            ctx.setTotalPartitions(prtn.getTotalPartitions());
+        //Partitions with the same affinity key are placed on this node from now on
+        val prtn = stepRec.getPartition();
+        if(prtn != null && prtn.getAffinityKey() != null) {
+            repository.saveAffinity(prtn.getAffinityKey(), stepRec.getNodeId());
+            ranAffinityPartitions = true;
         }
 
+        val step = jobExecutionService.getStep(stepRec.getJobName(), stepRec.getStepName());
+        val ctx = createContext(stepRec);
+        runningSteps.put(stepRec, ctx);
+
         log.debug("Executing step '"+stepRec.getStepName() + "' with arguments="+ctx);
 
+        boolean isWinner;
         try {
-            if(step instanceof Batched){
-                runBatched((Batched) step, ctx);
+            if(step instanceof Batched && !isSplitOff(stepRec)) {
+                //Only a split that took effect leaves any items for the record
+                log.info("Split of step record "+stepRec.getSplitFromId()+" did not take effect. Nothing to do");
+                stepRec.setBatchItemsProcessed(0);
+            }
+            else if(step instanceof Batched<?, ?> batchStep){
+                //Start from the page size learned by the last run of the step
+                if(config.isBatchAdaptivePageSize()) {
+                    ctx.setBatchPageSize(repository.getLastBatchPageSize(stepRec.getJobName(), stepRec.getStepName()));
+                }
+                if(batchStep.isSplittable()) runBatched(batchStep, ctx, key -> publishProgress(stepRec, key));
+                else runBatched(batchStep, ctx);
                 stepRec.setBatchItemsProcessed(ctx.getBatchItemsProcessed());
+                stepRec.setBatchPageSize(ctx.getBatchPageSize());
+                stepRec.setBatchConcurrencyLimit(ctx.getBatchConcurrencyLimit());
             }
-            else if(step instanceof SimpleStep){
-                ((SimpleStep) step).run(ctx);
+            else if(step instanceof SimpleStep simpleStep){
+                simpleStep.run(ctx);
+            }
+            if(ctx.isYielded()) putBack(stepRec, ctx);
+            else {
+                stepRec.setStatus(ExecutionStatus.COMPLETE);
+                stepRec.setCompletedAt(LocalDateTime.now());
             }
-            stepRec.setStatus(ExecutionStatus.COMPLETE);
-            stepRec.setCompletedAt(LocalDateTime.now());
         }
         catch (Exception e){
             stepRec.setStatus(ExecutionStatus.FAILED);
@@ -107,97 +421,331 @@ public class StepExecutionService {
             throw new SysAgentException("Batch step failed - "+step.getName(), e);
         }
         finally {
+            runningSteps.remove(stepRec);
+            if(!stepRec.getPermitKeys().isEmpty()) repository.releasePermits(List.of(stepRec.getId()));
+            isWinner = saveOutcome(stepRec);
+        }
+        if(!isWinner) return;
+
+        //Move the job on straight away if this was the step's last record
+        try {
+            jobExecutionService.onStepRecordComplete(stepRec);
+        }
+        catch (Exception e) {
+            log.error("Error moving on job after step record "+stepRec.getId()+". The manager will retry", e);
+        }
+    }
+
+    //-------------------------------------------------------------
+    // Saves the finished record. With speculative execution, a partition may have a backup run going
+    // alongside. The first of the two to complete wins, and only it moves the job on. The other is
+    // cancelled. A failed run never wins. Returns false if this record did not win
+    private boolean saveOutcome(StepRecord stepRec){
+        //A record put back to be claimed again has not finished
+        if(stepRec.getStatus() == ExecutionStatus.NEW) {
+            repository.save(stepRec);
+            return false;
+        }
+        if(!config.isStepSpeculativeExecution() || stepRec.getPartition() == null) {
             repository.save(stepRec);
-            threadManager.setNodeBusy(false);
+            return true;
+        }
+        if(stepRec.getStatus() == ExecutionStatus.FAILED) {
+            saveFailure(stepRec);
+            return false;
+        }
+        val isBackup = stepRec.getSpeculativeOf() != null;
+        val originalId = isBackup ? stepRec.getSpeculativeOf() : stepRec.getId();
+        val original = repository.tryWinSpeculation(originalId, stepRec);
+        if(original == null) {
+            log.info("Another run of the partition of step record "+stepRec.getId()+" finished first");
+            //The original record was given the winner's outcome, so is left as it is
+            if(isBackup) repository.save(stepRec);
+            return false;
+        }
+        val otherId = isBackup ? originalId : original.getBackupId();
+        if(otherId != null) repository.requestStepRecordCancel(otherId);
+        if(!isBackup) {
+            stepRec.setBackupId(original.getBackupId());
+            stepRec.setWinnerId(original.getWinnerId());
+        }
+        repository.save(stepRec);
+        return true;
+    }
+
+    //-------------------------------------------------------------
+    // A failed backup is saved and dropped, as it does not count towards the step. A failed record
+    // only fails, and so is retried, if it has no backup or once its backup has failed too. While
+    // the backup runs on, it may still complete and win. Whichever of the two fails last fails the record
+    private void saveFailure(StepRecord stepRec){
+        if(stepRec.getSpeculativeOf() != null) {
+            repository.save(stepRec);
+            val original = repository.trySetStepRecordBackupFailed(stepRec.getSpeculativeOf());
+            if(original != null && original.isFailurePending()) repository.tryFailPendingStepRecord(original.getId());
+            return;
+        }
+        val latest = repository.trySetStepRecordFailurePending(stepRec.getId());
+        if(latest == null) {
+            log.info("Step record "+stepRec.getId()+" failed, but its backup run completed first");
+            return;
+        }
+        if(latest.getBackupId() != null && !latest.isBackupFailed()) {
+            log.info("Step record "+stepRec.getId()+" failed. Waiting for its backup run "+latest.getBackupId());
+            return;
+        }
+        stepRec.setBackupId(latest.getBackupId());
+        stepRec.setBackupFailed(latest.isBackupFailed());
+        stepRec.setFailurePending(true);
+        repository.save(stepRec);
+    }
+
+    //-------------------------------------------------------------
+    // Puts the rest of a record that made way for higher priority work back to be claimed again.
+    // A keyset paginated batch carries on after the last key it read
+    private void putBack(StepRecord stepRec, StepContext ctx){
+        log.info("Putting back step record "+stepRec.getId()+" after "+ctx.getBatchItemsProcessed()+" items");
+        stepRec.setStatus(ExecutionStatus.NEW);
+        stepRec.setClaimed(false);
+        stepRec.setNodeId(null);
+        stepRec.setClaimToken(null);
+        stepRec.setStartedAt(null);
+        if(ctx.getYieldedAfterKey() != null) stepRec.setRangeFrom(ctx.getYieldedAfterKey());
+    }
+
+    //-------------------------------------------------------------
+    private StepContext createContext(StepRecord stepRec){
+        val ctx = new StepContext();
+        ctx.loadFrom(stepRec.getJobArguments());
+        if(stepRec.getPartition() != null) {
+            val prtn = stepRec.getPartition();
+            ctx.loadFrom(prtn);
+            ctx.setPartitionNum(prtn.getPartitionNum());
+            ctx.setTotalPartitions(prtn.getTotalPartitions());
         }
+        ctx.setRangeFrom(stepRec.getRangeFrom());
+        ctx.setRangeTo(stepRec.getRangeTo());
+        return ctx;
+    }
+
+    //-------------------------------------------------------------
+    // A record split off another is only valid if the other record took on the split
+    private boolean isSplitOff(StepRecord stepRec){
+        if(stepRec.getSplitFromId() == null) return true;
+        val fromRec = repository.getStepRecordById(stepRec.getSplitFromId());
+        return fromRec != null && fromRec.getSplitIds().contains(stepRec.getId());
+    }
+
+    //-------------------------------------------------------------
+    // Publishes the key of the last item read, and returns the end of the range, which is lower
+    // if another node has split the record since the last read
+    private Object publishProgress(StepRecord stepRec, Object key){
+        val latest = repository.publishStepProgress(stepRec.getId(), key);
+        stepRec.setProgressKey(key);
+        if(latest == null) return stepRec.getRangeTo();
+        stepRec.setRangeTo(latest.getRangeTo());
+        stepRec.setSplitIds(latest.getSplitIds());
+        return latest.getRangeTo();
     }
 
     //----------------------------------------------------------------------
     <IN, OUT> void runBatched(Batched<IN, OUT> batchStep, StepContext context){
-        //This is the number future submissions allowed at a time
-        int lotSize = threadManager.getTaskQueueSize();
+        runBatched(batchStep, context, null);
+    }
+
+    //----------------------------------------------------------------------
+    // Runs the batch as a pipeline of 3 stages. A reader thread prefetches pages of items, this
+    // thread processes them and a writer thread writes out the processed pages. The stages are
+    // joined by bounded queues, so a stage can only run ahead of the next by batchPipelineDepth pages
+    // If there is a progress publisher, the keyset reader publishes its progress to it after each read
+    <IN, OUT> void runBatched(Batched<IN, OUT> batchStep, StepContext context, UnaryOperator<Object> progress){
+        //The step's executor, and the number of items allowed in flight on it at a time
+        val bulkhead = threadManager.getBulkhead(batchStep);
+        int lotSize = bulkhead.getMaxItemsInFlight();
 
         //Call pre process()
         batchStep.onStart(context);
 
+        val depth = threadManager.getBatchPipelineDepth();
+        val readQueue = new ArrayBlockingQueue<Slice<IN>>(depth);
+        val writeQueue = new ArrayBlockingQueue<ResultPage<OUT>>(depth);
+        val pagesWritten = new Semaphore(0);
+
+        //Result pages are reused. One may be queued in each place on the write queue, plus
+        //the one being written and the one being filled
+        val freePages = new ArrayBlockingQueue<ResultPage<OUT>>(depth + 2);
+        for(int i=0; i < depth + 2; i++) freePages.add(new ResultPage<>());
+
+        val chunkSize = batchStep.getChunkSize() > 0 ? batchStep.getChunkSize() : threadManager.getBatchChunkSize();
+        val tuner = new PageSizeTuner(config,
+                context.getBatchPageSize() != null ? context.getBatchPageSize() : threadManager.getBatchPageSize());
+
+        val dispatcher = new ItemDispatcher<IN, OUT>(bulkhead, lotSize,
+                item -> batchStep.processItem(item, context),
+                items -> batchStep.processChunk(items, context),
+                chunkSize,
+                config.isBatchAdaptiveConcurrency() ? new ConcurrencyLimiter(config, lotSize) : null);
+
+        val stageExecutor = threadManager.getPipelineExecutor();
+        val reader = stageExecutor.submit(() -> readPages(batchStep, context, tuner, readQueue, pagesWritten, progress));
+        val writer = stageExecutor.submit(() -> writePages(batchStep, context, tuner, writeQueue, freePages, pagesWritten));
+
         long itemsProcessed = 0;
-        int pgNum = 0;
-        int totalPages = -1;
-
-        //Make the first page request i.e. page num = 0
-        var pageRequest = PageRequest.of(pgNum, threadManager.getBatchPageSize());
-        var pgIn = batchStep.readPageOfItems(pageRequest, context);
-        while(true) {
-
-            //If total pages not initialised, get the value from the first page response
-            if(totalPages == -1) {
-                totalPages = pgIn.getTotalPages();
-                log.debug("Total pages = "+totalPages+", pageSize = "+threadManager.getBatchPageSize());
+        try {
+            while (true) {
+                val pgIn = takeFrom(readQueue, reader);
+                if(pgIn == END_OF_PAGES) break;
+
+                //Process the items into a free result page and hand it over to the writer
+                val pgOut = takeFrom(freePages, writer).reset(pgIn.getPageable());
+                val startedAt = System.nanoTime();
+                dispatcher.dispatch(pgIn.getContent(), pgOut.content());
+                tuner.record(PageSizeTuner.Stage.PROCESS, pgOut.getNumberOfElements(), System.nanoTime() - startedAt);
+                //Counted before the hand over, as the writer frees the page for reuse once written
+                itemsProcessed += pgOut.getNumberOfElements();
+                putInto(writeQueue, pgOut, writer);
+                context.setBatchConcurrencyLimit(dispatcher.getConcurrencyLimit());
             }
+            putInto(writeQueue, endOfResults(), writer);
+            writer.get();
+        }
+        catch (Exception e){
+            reader.cancel(true);
+            //The pages processed before the failure are still written, so a retry need not redo them
+            if(!(e instanceof InterruptedException)) finishWriting(writeQueue, writer);
+            writer.cancel(true);
+            if(e instanceof SysAgentException) throw (SysAgentException) e;
+            throw new SysAgentException("Error running batch", e);
+        }
 
-            var futures = new ArrayList<Future<OUT>>();
-            val results = new ArrayList<OUT>();
+        log.debug("Num items processed = "+itemsProcessed+", final page size = "+tuner.getPageSize()
+                +", final concurrency limit = "+dispatcher.getConcurrencyLimit());
+        context.setBatchItemsProcessed(itemsProcessed);
+        context.setBatchPageSize(tuner.getPageSize());
+        context.setBatchConcurrencyLimit(dispatcher.getConcurrencyLimit());
 
-            //For each input item in the page
-            for(val item : pgIn){
-                //Submit a future computation by calling process item()
-                val future = threadManager.getExecutor().submit(() -> batchStep.processItem(item, context));
-                futures.add(future);
+        //Call post process()
+        batchStep.onComplete(context);
+    }
 
-                //If futures submission limit reached
-                if(futures.size() == lotSize){
-                    //Wait for futures to finish and collect the results
-                    compileResults(futures, results);
-                    futures.clear();
+    //----------------------------------------------------------------------
+    // Reader stage. Reads pages ahead of the processing and puts them on the read queue
+    private <IN> Void readPages(Batched<IN, ?> batchStep, StepContext context,
+                                PageSizeTuner tuner,
+                                BlockingQueue<Slice<IN>> readQueue,
+                                Semaphore pagesWritten,
+                                UnaryOperator<Object> progress) throws InterruptedException {
+        try(val pageReader = newPageReader(batchStep, context, tuner, pagesWritten, progress)) {
+            while(true) {
+                if(context.isCancelRequested()) {
+                    log.info("Batch cancelled as another run of the partition finished first");
+                    break;
+                }
+                if(context.isYieldRequested()) {
+                    //Only the reader knows where it stopped, so only it records the yield
+                    if(batchStep.isKeysetPaginated()) context.setYieldedAfterKey(pageReader.getLastKey());
+                    context.setYielded(true);
+                    break;
                 }
+                val startedAt = System.nanoTime();
+                val pgIn = pageReader.readNextPage();
+                if(pgIn == null) break;
+                tuner.record(PageSizeTuner.Stage.READ, pgIn.getNumberOfElements(), System.nanoTime() - startedAt);
+                if(pgIn.hasContent()) tuner.recordItemBytes(batchStep.getItemBytes(pgIn.getContent().get(0)));
+                readQueue.put(pgIn);
             }
-            //Collect the remaining results
-            compileResults(futures, results);
+        }
+        finally {
+            context.setReadingEnded(true);
+        }
+        readQueue.put(endOfPages());
+        return null;
+    }
 
-            //Put the results in a page and call  write page ()
-            val pgOut = new PageImpl<>(results, pageRequest, results.size());
-            batchStep.writePageOfItems(pgOut, context);
-            itemsProcessed += results.size();
+    //----------------------------------------------------------------------
+    private <IN> PageReader<IN> newPageReader(Batched<IN, ?> batchStep, StepContext context,
+                                              PageSizeTuner tuner, Semaphore pagesWritten,
+                                              UnaryOperator<Object> progress){
+        IntSupplier pageSize = tuner::getPageSize;
+        if(batchStep instanceof Streamed) return new StreamPageReader<>((Streamed<IN, ?>) batchStep, context, pageSize);
+        else if(batchStep.isKeysetPaginated()) return new KeysetPageReader<>(batchStep, context, pageSize, progress);
+        else return new OffsetPageReader<>(batchStep, context, pageSize, pagesWritten);
+    }
 
-            //If this a fixed selection, then advance the page num
-            if(batchStep.isSelectionFixed()){
-                pgNum++;
-                //End the loop if this was the last page
-                if(pgNum == totalPages) break;
-            }
-            //else i.e. in case of dynamic selection, page num is left at 0
+    //----------------------------------------------------------------------
+    // Writer stage. Writes out the processed pages from the write queue and frees them for reuse
+    private <OUT> Void writePages(Batched<?, OUT> batchStep, StepContext context,
+                                  PageSizeTuner tuner,
+                                  BlockingQueue<ResultPage<OUT>> writeQueue,
+                                  BlockingQueue<ResultPage<OUT>> freePages,
+                                  Semaphore pagesWritten) throws InterruptedException {
+        while(true){
+            val pgOut = writeQueue.take();
+            if(pgOut == END_OF_RESULTS) return null;
+            val startedAt = System.nanoTime();
+            batchStep.writePageOfItems(pgOut, context);
+            tuner.record(PageSizeTuner.Stage.WRITE, pgOut.getNumberOfElements(), System.nanoTime() - startedAt);
+            freePages.put(pgOut.reset(Pageable.unpaged()));
+            pagesWritten.release();
+        }
+    }
 
-            //Make the next page request
-            pageRequest = PageRequest.of(pgNum, threadManager.getBatchPageSize());
-            pgIn = batchStep.readPageOfItems(pageRequest, context);
+    //----------------------------------------------------------------------
+    // Lets the writer write out the pages already handed to it when the batch fails. Errors are
+    // dropped, as the batch is already failing with the first one
+    private static <OUT> void finishWriting(BlockingQueue<ResultPage<OUT>> writeQueue, Future<?> writer){
+        try {
+            putInto(writeQueue, endOfResults(), writer);
+            writer.get();
+        }
+        catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+        catch (Exception e){
+            log.debug("Batch writer ended with an error after the batch failed", e);
+        }
+    }
 
-            //End the eloop if no more items to process
-            if(pgIn.getTotalElements() == 0) break;
+    //----------------------------------------------------------------------
+    // Marks the end of the pages handed between the stages
+    private static final Slice<?> END_OF_PAGES = new SliceImpl<>(List.of());
 
-        }
+    private static final ResultPage<?> END_OF_RESULTS = new ResultPage<>();
 
-        log.debug("Num items processed = "+itemsProcessed);
-        context.setBatchItemsProcessed(itemsProcessed);
+    @SuppressWarnings("unchecked")
+    private static <T> Slice<T> endOfPages(){
+        return (Slice<T>) END_OF_PAGES;
+    }
 
-        //Call post process()
-        batchStep.onComplete(context);
+    @SuppressWarnings("unchecked")
+    private static <T> ResultPage<T> endOfResults(){
+        return (ResultPage<T>) END_OF_RESULTS;
     }
 
-    //-----------------------------------------------------------------------
-    private <T> void compileResults(List<Future<T>> futures, List<T> results){
+    private static final long STAGE_POLL_MILLIS = 100;
 
-        try {
-            boolean done = false;
-            do {
-                val notDoneCount = futures.stream().filter(f -> !f.isDone()).count();
-                if(notDoneCount > 0) Utils.sleepFor(notDoneCount*20); //Wait 20 ms per item not done
-                else done = true;
-            } while (!done);
-            for (val future : futures) {
-                results.add(future.get());
+    //----------------------------------------------------------------------
+    // Puts a page on a stage queue. Gives up if the stage taking from the queue has ended
+    private static <T> void putInto(BlockingQueue<T> queue, T page, Future<?> consumer) throws Exception {
+        while(!queue.offer(page, STAGE_POLL_MILLIS, TimeUnit.MILLISECONDS)){
+            if(consumer.isDone()) {
+                consumer.get(); //Throws the stage's exception if it failed
+                throw new SysAgentException("Batch stage ended before all pages were handed over");
+            }
+        }
+    }
+
+    //----------------------------------------------------------------------
+    // Takes a page from a stage queue. Gives up if the stage putting on the queue has ended
+    private static <T> T takeFrom(BlockingQueue<T> queue, Future<?> producer) throws Exception {
+        while(true){
+            var page = queue.poll(STAGE_POLL_MILLIS, TimeUnit.MILLISECONDS);
+            if(page != null) return page;
+            if(producer.isDone()) {
+                producer.get(); //Throws the stage's exception if it failed
+                page = queue.poll(); //The last page may have been put just before the stage ended
+                if(page != null) return page;
+                throw new SysAgentException("Batch stage ended without marking the end of pages");
             }
-        } catch (Exception e) {
-            throw new RuntimeException(e);
         }
     }
 }
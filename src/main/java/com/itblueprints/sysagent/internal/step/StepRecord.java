@@ -27,6 +27,8 @@ import org.springframework.data.mongodb.core.index.Indexed;
 import org.springframework.data.mongodb.core.mapping.Document;
 
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
 
 @Getter
 @Setter
@@ -46,14 +48,77 @@ public class StepRecord {
 
     private Partition partition;
 
+    //Identifies the partition across runs of the job. See Partition.toKeyString()
+    private String partitionKey;
+
+    //The priority of the job. Records are claimed highest priority first, then highest cost first
+    private int priority;
+
+    //The weight of the job, i.e. its share of the cluster's slots against other jobs of the same priority
+    private int weight = 1;
+
+    //The permits the record must hold to run, one for each cap on its job and step. See PermitRecord
+    private List<String> permitKeys = new ArrayList<>();
+
+    //The estimated cost of the partition. Records are claimed highest cost first
+    private long cost;
+
+    //If the step is pipelined with the step before it, that step's name. This record is held
+    //until the partition of that step with the same number completes
+    private String upstreamStepName;
+
     private JobArguments jobArguments;
 
+    //The key range of the record for steps that can be split. rangeTo is null if open ended
+    private Object rangeFrom;
+
+    private Object rangeTo;
+
+    //The key of the last item read, published as the record runs so that other nodes can split it
+    private Object progressKey;
+
+    //If this record was split off another, that record's id. This record only has work to do if
+    //its id was added to the other record's splitIds
+    private String splitFromId;
+
+    private List<String> splitIds = new ArrayList<>();
+
+    //If this record is a backup run of a lagging record, that record's id. Backups are not counted
+    //towards the step. Of the two, the first to finish wins, and the other is cancelled
+    private String speculativeOf;
+
+    //The id of the backup run of this record, if there is one
+    private String backupId;
+
+    //The id of the record, this one or its backup, that completed first
+    private String winnerId;
+
+    //Set when this record failed while its backup was still running. The record is only failed,
+    //and so retried, once the backup has failed too
+    private boolean failurePending;
+
+    //Set when the backup run of this record failed
+    private boolean backupFailed;
+
+    private boolean cancelRequested;
+
     private boolean claimed;
 
+    //The node the record is placed on, as it last ran the partition's affinity key. Until
+    //preferredUntil, only that node may claim the record
+    private String preferredNodeId;
+
+    private LocalDateTime preferredUntil;
+
     private String nodeId;
 
+    //The node that issued the record, so that its records can be removed if it could not finish the issue
+    private String issuingNodeId;
+
     private String claimedAt;
 
+    private String claimToken;
+
     private LocalDateTime startedAt;
 
     private LocalDateTime completedAt;
@@ -62,6 +127,10 @@ public class StepRecord {
 
     private long batchItemsProcessed = -1;
 
+    private int batchPageSize = 0;
+
+    private int batchConcurrencyLimit = 0;
+
     private int retryCount = 0;
 
     @Indexed
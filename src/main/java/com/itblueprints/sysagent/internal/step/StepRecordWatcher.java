@@ -0,0 +1,79 @@
+/*
+ * Copyright 2023-2024 the original author or authors.
+ *
+ * Licensed under the Apache Software License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.itblueprints.sysagent.internal.step;
+
+import com.itblueprints.sysagent.internal.Config;
+import com.itblueprints.sysagent.internal.repository.RecordRepository;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+/**
+ * Wakes up the StepExecutionService as soon as step records are inserted or released for claiming,
+ * so that free step slots do not sit idle until the next heartbeat. The records are watched with a Mongo change
+ * stream on a thread of its own. If change streams are not available, e.g. on a standalone
+ * server, the watcher stops and steps are only picked up on the heartbeat as before
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class StepRecordWatcher {
+
+    private final RecordRepository repository;
+    private final StepExecutionService stepExecutionService;
+    private final Config config;
+
+    private Thread watcherThread;
+
+    //-------------------------------------------------------------
+    @PostConstruct
+    void init(){
+        if(!config.isStepWakeOnInsert()) return;
+        watcherThread = new Thread(this::watch, "sysagent-step-watcher");
+        watcherThread.setDaemon(true);
+        watcherThread.start();
+    }
+
+    //-------------------------------------------------------------
+    @PreDestroy
+    void shutdown(){
+        if(watcherThread != null) watcherThread.interrupt();
+    }
+
+    //-------------------------------------------------------------
+    // Keeps watching until shut down. A lost connection is retried after a heartbeat
+    private void watch(){
+        while(!Thread.currentThread().isInterrupted()) {
+            try {
+                if(!repository.watchClaimableStepRecords(stepExecutionService::onStepRecordsClaimable)) {
+                    log.info("Change streams not available. Steps will be picked up on the heartbeat only");
+                    return;
+                }
+            }
+            catch (Exception e) {
+                log.warn("Error watching for new step records. Retrying after a heartbeat", e);
+                try {
+                    Thread.sleep(config.getHeartBeatSecs() * 1000L);
+                }
+                catch (InterruptedException ie) {
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2023-2024 the original author or authors.
+ *
+ * Licensed under the Apache Software License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.itblueprints.sysagent.internal.step;
+
+import com.itblueprints.sysagent.internal.SysAgentException;
+import com.itblueprints.sysagent.step.StepContext;
+import lombok.val;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Slice;
+import org.springframework.data.domain.SliceImpl;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.function.IntSupplier;
+import java.util.stream.Stream;
+
+/**
+ * Reads pages from the single stream of items opened by openItemStream(). The stream is
+ * consumed a page at a time, so only the pages in the pipeline are held in memory
+ */
+class StreamPageReader<IN> implements PageReader<IN> {
+
+    private final Stream<IN> stream;
+    private final Iterator<IN> iterator;
+    private final IntSupplier pageSize;
+
+    private int pgNum = 0;
+
+    //--------------------------------------------------------------
+    StreamPageReader(Streamed<IN, ?> batchStep, StepContext context, IntSupplier pageSize){
+        stream = batchStep.openItemStream(context);
+        if(stream == null) throw new SysAgentException("openItemStream() returned null");
+        iterator = stream.iterator();
+        this.pageSize = pageSize;
+    }
+
+    //--------------------------------------------------------------
+    @Override
+    public Slice<IN> readNextPage() {
+        if(!iterator.hasNext()) return null;
+
+        val size = pageSize.getAsInt();
+        val items = new ArrayList<IN>(size);
+        while(items.size() < size && iterator.hasNext()) {
+            items.add(iterator.next());
+        }
+        return new SliceImpl<>(items, PageRequest.of(pgNum++, size), iterator.hasNext());
+    }
+
+    //--------------------------------------------------------------
+    @Override
+    public void close() {
+        stream.close();
+    }
+}
@@ -0,0 +1,32 @@
+/*
+ * Copyright 2023-2024 the original author or authors.
+ *
+ * Licensed under the Apache Software License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.itblueprints.sysagent.internal.step;
+
+import com.itblueprints.sysagent.step.StepContext;
+
+import java.util.stream.Stream;
+
+public interface Streamed<IN, OUT> extends Batched<IN, OUT> {
+
+    /*
+    Opens a stream over all the items to process, e.g. MongoTemplate.stream() which reads through a
+    single server side cursor. The stream is read once, from start to end, and its items are grouped
+    into pages of batchPageSize items for processing and writing. So only a few pages of items are held
+    in memory at a time. The stream is closed when the step completes or fails. This is used in place of
+    readPageOfItems() and readSliceOfItems(), so isSelectionFixed() and isKeysetPaginated() do not apply
+     */
+    Stream<IN> openItemStream(StepContext context);
+}
@@ -24,6 +24,27 @@ public interface Job {
 
     default void onComplete(JobArguments jobArguments){};
 
+    //-----------------------------------
+    // The step records of jobs with a higher priority are claimed first. A batch step of a lower priority
+    // job makes way for them at a page boundary if there is no free slot for them, and carries on later
+    default int getPriority(){
+        return 0;
+    }
+
+    //-----------------------------------
+    // When jobs of the same priority run at once, the cluster's slots are shared between them in proportion
+    // to their weights, however many step records each has. Must be 1 or more
+    default int getWeight(){
+        return 1;
+    }
+
+    //-----------------------------------
+    // The most step records of the job that may run at once across the cluster, over all its steps and
+    // runs. Records over the cap are left waiting until a running one is done. 0 for no cap
+    default int getMaxConcurrency(){
+        return 0;
+    }
+
     //-----------------------------------
     default String getName(){
         return this.getClass().getName();
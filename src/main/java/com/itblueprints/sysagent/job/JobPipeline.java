@@ -22,6 +22,21 @@ import com.itblueprints.sysagent.step.Step;
 import lombok.Getter;
 import lombok.val;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The steps of a job and the order they run in. Steps run one after the other by default.
+ * A step can be followed by several steps that run side by side, and a step can wait for
+ * several steps to complete before it runs. For example
+ * <pre>
+ * JobPipeline.create()
+ *   .firstStep(prepare)
+ *   .nextSteps(loadCustomers, loadProducts, loadRates) //run side by side
+ *   .nextStep(report); //runs once all 3 loads complete
+ * </pre>
+ */
 public class JobPipeline {
 
    private JobPipeline(){}
@@ -34,27 +49,80 @@ public class JobPipeline {
     @Getter
     private PipelineStep firstStep ;
 
-    private PipelineStep currentStep;
+    @Getter
+    private final List<PipelineStep> steps = new ArrayList<>();
+
+    private List<PipelineStep> currentSteps = List.of();
 
     public JobPipeline firstStep(Step step){
         if(firstStep!=null){
             throw new SysAgentException("Cannot add first step as the pipeline is not empty");
         }
-        firstStep = new PipelineStep();
-        firstStep.step = step;
-        currentStep = firstStep;
+        firstStep = addStep(step, List.of());
+        currentSteps = List.of(firstStep);
         return this;
     }
 
     //-------------------------------------------
+    /**
+     * Adds a step that runs once the last step added completes. If the last steps added were
+     * added together by nextSteps(), this step waits for all of them
+     */
     public JobPipeline nextStep(Step step){
-        if(currentStep==null){
+        if(currentSteps.isEmpty()){
             throw new SysAgentException("Cannot add next step as the pipeline is empty");
         }
+        currentSteps = List.of(addStep(step, currentSteps));
+        return this;
+    }
+
+    //-------------------------------------------
+    /**
+     * Adds steps that run side by side once the last step added completes
+     */
+    public JobPipeline nextSteps(Step... steps){
+        if(currentSteps.isEmpty()){
+            throw new SysAgentException("Cannot add next steps as the pipeline is empty");
+        }
+        val previous = currentSteps;
+        currentSteps = Arrays.stream(steps).map(s -> addStep(s, previous)).toList();
+        return this;
+    }
+
+    //-------------------------------------------
+    /**
+     * Adds a step that runs once all of the given steps complete. The given steps must
+     * already be in the pipeline. This allows branches of more than one step
+     */
+    public JobPipeline stepAfter(Step step, Step... previousSteps){
+        if(previousSteps.length == 0){
+            throw new SysAgentException("Step "+step.getName()+" must come after at least one step");
+        }
+        val previous = Arrays.stream(previousSteps).map(this::getPipelineStep).toList();
+        currentSteps = List.of(addStep(step, previous));
+        return this;
+    }
+
+    //-------------------------------------------
+    private PipelineStep addStep(Step step, List<PipelineStep> previousSteps){
+        if(steps.stream().anyMatch(ps -> ps.step.getName().equals(step.getName()))){
+            throw new SysAgentException("Step "+step.getName()+" is already in the pipeline");
+        }
         val pStep = new PipelineStep();
         pStep.step = step;
-        currentStep.nextPipelineStep = pStep;
-        currentStep = pStep;
-        return this;
+        for(val prev : previousSteps){
+            prev.nextPipelineSteps.add(pStep);
+            pStep.previousPipelineSteps.add(prev);
+        }
+        steps.add(pStep);
+        return pStep;
+    }
+
+    //-------------------------------------------
+    private PipelineStep getPipelineStep(Step step){
+        return steps.stream()
+                .filter(ps -> ps.step.getName().equals(step.getName()))
+                .findFirst()
+                .orElseThrow(() -> new SysAgentException("Step "+step.getName()+" is not in the pipeline"));
     }
 }
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2023-2024 the original author or authors.
+ *
+ * Licensed under the Apache Software License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.itblueprints.sysagent.step;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.ToString;
+
+/**
+ * The settings of a step's own executor. See {@link StepExecutor}
+ */
+@Getter
+@ToString
+@RequiredArgsConstructor(staticName = "of")
+public class ExecutorSettings {
+
+    private final int threads;
+
+    private final int queueDepth;
+
+    private final ThreadType threadType;
+
+    public static ExecutorSettings of(StepExecutor annotation){
+        return of(annotation.threads(), annotation.queueDepth(), annotation.threadType());
+    }
+}
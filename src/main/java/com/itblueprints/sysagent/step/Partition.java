@@ -23,6 +23,7 @@ import lombok.Setter;
 import lombok.val;
 
 import java.util.Map;
+import java.util.TreeMap;
 
 @Getter
 @Setter
@@ -32,11 +33,27 @@ public class Partition extends MapData {
 
     private Integer totalPartitions;
 
+    //Partitions with the same affinity key are placed on the same node where possible, e.g. the partitions
+    //of each step for a region, so that a node can keep what it has loaded for the region between them
+    private String affinityKey;
+
+    //An estimate of how long the partition takes to run. Partitions are claimed largest first, so the big ones
+    //do not end up running on their own at the end of the step. Any unit will do, as long as all partitions of
+    //the step use the same one. If not set, the millis the partition took in the last run of the job are used
+    private Long cost;
+
     @Override
     public String toString() {
         return super.toString();
     }
 
+    //---------------------------------------------------
+    // The data of the partition with its keys in order. This is the same for the same partition
+    // in every run of the job, so it is used to find the partition's earlier runs
+    public String toKeyString() {
+        return new TreeMap<>(data).toString();
+    }
+
     //---------------------------------------------------
     public static Partition from(Map<String, Object> map){
         val args = new Partition();
@@ -16,10 +16,34 @@
 
 package com.itblueprints.sysagent.step;
 
+import org.springframework.aop.support.AopUtils;
+import org.springframework.core.annotation.AnnotationUtils;
+
 public interface Step {
 
     default String getName(){
         return this.getClass().getName();
     }
 
+    /**
+     * The settings of the executor to process the step's items on. By default these are taken
+     * from the {@link StepExecutor} annotation on the step class, or on the class behind it if the
+     * step bean is a proxy
+     * @return The settings, or null to use the node's worker threads
+     */
+    default ExecutorSettings getExecutorSettings(){
+        StepExecutor annotation = AnnotationUtils.findAnnotation(AopUtils.getTargetClass(this), StepExecutor.class);
+        return annotation != null ? ExecutorSettings.of(annotation) : null;
+    }
+
+    /**
+     * The most records of the step that may run at once across the cluster, over all runs of the job,
+     * e.g. to spare a downstream system that only takes so many workers. Records over the cap are left
+     * waiting until a running one is done
+     * @return The cap, or 0 for no cap
+     */
+    default int getMaxConcurrency(){
+        return 0;
+    }
+
 }
@@ -30,5 +30,30 @@ public class StepContext extends MapData {
 
     private Integer totalPartitions;
 
+    //The key range of the record, for steps that can be split. rangeFrom is exclusive, rangeTo inclusive
+    private Object rangeFrom;
+
+    private Object rangeTo;
+
+    //Set when another run of the same partition has finished first. Long running steps can check it and stop early
+    private volatile boolean cancelRequested;
+
+    //Set when records of a higher priority job are waiting for a slot. A batch step stops at the next page,
+    //and the rest of its items are run once the record is claimed again
+    private volatile boolean yieldRequested;
+
+    //Set by the batch reader when it stopped for a yield request, with the key of the last item read
+    //if keyset paginated. The rest of the record is put back only if this is set
+    private volatile boolean yielded;
+
+    private Object yieldedAfterKey;
+
+    //Set by the batch reader once it has stopped reading. Yield requests are not made after that
+    private volatile boolean readingEnded;
+
     private Long batchItemsProcessed;
+
+    private Integer batchPageSize;
+
+    private Integer batchConcurrencyLimit;
 }
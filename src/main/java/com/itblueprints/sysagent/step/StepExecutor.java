@@ -0,0 +1,44 @@
+/*
+ * Copyright 2023-2024 the original author or authors.
+ *
+ * Licensed under the Apache Software License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.itblueprints.sysagent.step;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Gives a batch step its own executor to process items on, instead of sharing the node's
+ * worker threads with the other steps. The executor is created the first time the step runs
+ * on a node and is kept for later runs
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface StepExecutor {
+
+    /**
+     * The number of platform threads. Not used for virtual threads
+     */
+    int threads() default 4;
+
+    /**
+     * The number of items allowed in flight at a time. 0 means 10 per thread for platform
+     * threads, and maxItemsInFlight for virtual threads
+     */
+    int queueDepth() default 0;
+
+    ThreadType threadType() default ThreadType.PLATFORM;
+}
@@ -0,0 +1,32 @@
+/*
+ * Copyright 2023-2024 the original author or authors.
+ *
+ * Licensed under the Apache Software License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.itblueprints.sysagent.step;
+
+/**
+ * The kind of threads batch items are processed on
+ */
+public enum ThreadType {
+    /**
+     * A fixed pool of workerThreads platform threads. Suits CPU bound processing
+     */
+    PLATFORM,
+    /**
+     * A virtual thread per item, limited by maxItemsInFlight. Suits processing that mostly
+     * waits on I/O. Needs Java 21 or later, otherwise a cached pool of platform threads is used
+     */
+    VIRTUAL
+}
@@ -24,6 +24,11 @@ public class TestUtils {
     //------------------------------------------------------------
     private static MongoClient mongoClient;
     public static RecordRepository getRecordRepository(Class clazz){
+        return new MongoRecordRepository(getMongoTemplate(clazz));
+    }
+
+    //------------------------------------------------------------
+    public static MongoTemplate getMongoTemplate(Class clazz){
         if(mongoClient == null) {
             val mongoDBContainer = new MongoDBContainer(DockerImageName.parse("mongo:latest"));
             mongoDBContainer.start();
@@ -31,7 +36,6 @@ public class TestUtils {
             val port = mongoDBContainer.getMappedPort(27017);
             mongoClient = MongoClients.create("mongodb://" + host + ":" + port);
         }
-        val mongoTemplate = new MongoTemplate(mongoClient, clazz.getSimpleName());
-        return new MongoRecordRepository(mongoTemplate);
+        return new MongoTemplate(mongoClient, clazz.getSimpleName());
     }
 }
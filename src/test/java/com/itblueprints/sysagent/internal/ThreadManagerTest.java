@@ -0,0 +1,118 @@
+package com.itblueprints.sysagent.internal;
+
+import com.itblueprints.sysagent.step.SimpleStep;
+import com.itblueprints.sysagent.step.Step;
+import com.itblueprints.sysagent.step.StepContext;
+import com.itblueprints.sysagent.step.StepExecutor;
+import com.itblueprints.sysagent.step.ThreadType;
+import lombok.val;
+import org.junit.jupiter.api.Test;
+import org.springframework.aop.framework.ProxyFactory;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ThreadManagerTest {
+
+    //------------------------------------
+    @Test
+    void init_platformThreads() {
+        val config = new Config();
+        config.setWorkerThreads(3);
+        val threadManager = new ThreadManager(config);
+        threadManager.init();
+
+        //Heartbeat work does not queue behind the items
+        assertNotSame(threadManager.getExecutor(), threadManager.getItemExecutor());
+        assertEquals(30, threadManager.getTaskQueueSize());
+    }
+
+    //------------------------------------
+    @Test
+    void init_virtualThreads() throws Exception {
+        val config = new Config();
+        config.setWorkerThreadType(ThreadType.VIRTUAL);
+        config.setMaxItemsInFlight(500);
+        val threadManager = new ThreadManager(config);
+        threadManager.init();
+
+        assertNotSame(threadManager.getExecutor(), threadManager.getItemExecutor());
+        assertEquals(500, threadManager.getTaskQueueSize());
+        assertEquals("done", threadManager.getItemExecutor().submit(() -> "done").get());
+    }
+
+    //------------------------------------
+    @Test
+    void getBulkhead() {
+        val config = new Config();
+        config.setWorkerThreads(3);
+        val threadManager = new ThreadManager(config);
+        threadManager.init();
+
+        //No settings, so the shared worker threads
+        val shared = threadManager.getBulkhead(new SharedStep());
+        assertSame(threadManager.getItemExecutor(), shared.getExecutor());
+        assertEquals(30, shared.getMaxItemsInFlight());
+
+        //Own executor, created once
+        val own = threadManager.getBulkhead(new IsolatedStep());
+        assertNotSame(threadManager.getItemExecutor(), own.getExecutor());
+        assertEquals(16, own.getMaxItemsInFlight());
+        assertSame(own, threadManager.getBulkhead(new IsolatedStep()));
+    }
+
+    //------------------------------------
+    @Test
+    void getBulkhead_proxiedStep() {
+        val config = new Config();
+        config.setWorkerThreads(3);
+        val threadManager = new ThreadManager(config);
+        threadManager.init();
+
+        //The annotation is found on the class behind a proxy or a subclass of the step
+        val proxyFactory = new ProxyFactory(new IsolatedStep());
+        proxyFactory.setProxyTargetClass(true);
+        val proxied = (Step) proxyFactory.getProxy();
+        assertEquals(16, proxied.getExecutorSettings().getQueueDepth());
+        val subclassed = new IsolatedStep(){};
+        assertEquals(16, subclassed.getExecutorSettings().getQueueDepth());
+        assertNotSame(threadManager.getItemExecutor(), threadManager.getBulkhead(subclassed).getExecutor());
+    }
+
+    //------------------------------------
+    @Test
+    void stepSlots() {
+        val config = new Config();
+        config.setStepSlots(2);
+        val threadManager = new ThreadManager(config);
+        threadManager.init();
+
+        assertEquals(2, threadManager.getFreeStepSlots());
+        val slot1 = threadManager.tryAcquireStepSlot();
+        val slot2 = threadManager.tryAcquireStepSlot();
+        assertNotEquals(slot1, slot2);
+        assertEquals(-1, threadManager.tryAcquireStepSlot());
+        assertEquals(0, threadManager.getFreeStepSlots());
+
+        threadManager.setSlotStepRecordId(slot2, "SR1");
+        assertEquals(List.of("SR1"), threadManager.getRunningStepRecordIds());
+
+        threadManager.releaseStepSlot(slot2);
+        assertEquals(1, threadManager.getFreeStepSlots());
+        assertEquals(List.of(), threadManager.getRunningStepRecordIds());
+        assertEquals(slot2, threadManager.tryAcquireStepSlot());
+    }
+
+    //------------------------------------
+    static class SharedStep implements SimpleStep {
+        @Override
+        public void run(StepContext context) {}
+    }
+
+    @StepExecutor(threads = 2, queueDepth = 16)
+    static class IsolatedStep implements SimpleStep {
+        @Override
+        public void run(StepContext context) {}
+    }
+}
@@ -1,13 +1,17 @@
 package com.itblueprints.sysagent.internal.job;
 
+import com.itblueprints.sysagent.internal.Config;
 import com.itblueprints.sysagent.internal.ExecutionStatus;
 import com.itblueprints.sysagent.internal.SysAgentException;
 import com.itblueprints.sysagent.internal.ThreadManager;
 import com.itblueprints.sysagent.internal.cluster.NodeInfo;
 import com.itblueprints.sysagent.internal.repository.RecordRepository;
 import com.itblueprints.sysagent.internal.step.StepRecord;
+import com.itblueprints.sysagent.internal.step.StepStatusCounts;
 import com.itblueprints.sysagent.job.Job;
 import com.itblueprints.sysagent.job.JobArguments;
+import com.itblueprints.sysagent.job.JobPipeline;
+import com.itblueprints.sysagent.step.Partition;
 import lombok.val;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -22,14 +26,19 @@ import org.springframework.data.util.Pair;
 
 import java.time.LocalDateTime;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static com.itblueprints.sysagent.TestUtils.assertTrueForAll;
 import static com.mongodb.assertions.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.*;
 
 @ExtendWith(MockitoExtension.class)
@@ -41,6 +50,9 @@ class JobExecutionServiceTest {
     @Mock ConfigurableListableBeanFactory beanFactory;
 
     @Captor ArgumentCaptor<StepRecord> stepRecC;
+    @Captor ArgumentCaptor<List<StepRecord>> stepRecsC;
+
+    private Config config = new Config();
 
     private ExecutorService executor = Executors.newSingleThreadExecutor();
 
@@ -51,7 +63,7 @@ class JobExecutionServiceTest {
     @BeforeEach
     void beforeEach() {
 
-        jobExecutionService = new JobExecutionService(appContext, repository, threadManager);
+        jobExecutionService = new JobExecutionService(appContext, repository, threadManager, config);
         loadMockJobIntoService();
     }
 
@@ -59,27 +71,34 @@ class JobExecutionServiceTest {
     @Test
     void runJob() {
 
-        val jobRec = JobRecord.of("Job", new JobArguments(), now);
-        jobRec.setId("jrid1");
-        jobRec.setStatus(ExecutionStatus.RUNNING);
-
-        when(repository.save((JobRecord) any())).thenReturn(jobRec);
+        val jobRecC = ArgumentCaptor.forClass(JobRecord.class);
+        when(repository.save(jobRecC.capture())).thenAnswer(inv -> {
+            JobRecord jr = inv.getArgument(0);
+            jr.setId("jrid1");
+            return jr;
+        });
+        when(repository.trySetStepPartitionCount("jrid1", "Step1", 4, "N1")).thenReturn(true);
 
-        val jobArgs = jobRec.getJobArguments();
+        val jobArgs = new JobArguments();
         jobArgs.put("pmtProfile", "sp");
         jobExecutionService.runJob("Job", jobArgs);
 
-        assertEquals("Step1", jobRec.getCurrentStepName());
-        assertEquals(4, jobRec.getCurrentStepPartitionCount());
+        val jobRec = jobRecC.getValue();
+        assertEquals(List.of("Step1"), currentStepNames(jobRec));
+        assertEquals(4, jobRec.getCurrentStep("Step1").getPartitionCount());
+        assertEquals("N1", jobRec.getCurrentStep("Step1").getIssuingNodeId());
 
-        verify(repository, times(4)).save(stepRecC.capture());
+        verify(repository, times(1)).insertStepRecords(stepRecsC.capture());
+        verify(repository, times(1)).releaseIssuedStepRecords("jrid1", "Step1", 4);
+        verify(repository, times(1)).clearStepIssuingNode("jrid1", List.of("Step1"), "N1");
 
-        val stepRecs = stepRecC.getAllValues();
+        val stepRecs = stepRecsC.getValue();
 
         assertTrueForAll(stepRecs, sr -> sr.getJobName().equals("Job"));
         assertTrueForAll(stepRecs, sr -> sr.getJobRecordId().equals("jrid1"));
         assertTrueForAll(stepRecs, sr -> sr.getStepName().equals("Step1"));
         assertTrueForAll(stepRecs, sr -> sr.getJobArguments().getString("pmtProfile").equals("sp"));
+        assertTrueForAll(stepRecs, sr -> "N1".equals(sr.getIssuingNodeId()));
 
         val partnArgs = stepRecs.stream()
                 .map(sr -> {
@@ -99,17 +118,40 @@ class JobExecutionServiceTest {
         val jobRec = JobRecord.of("Job", new JobArguments(), now);
         jobRec.setId("jrid1");
         jobRec.setStatus(ExecutionStatus.RUNNING);
-        jobRec.setCurrentStepName("Step");
+        jobRec.getCurrentSteps().add(CurrentStep.of("Step1", 2));
 
-        val stepRec = StepRecord.of("1","Job", "Step", new JobArguments());
+        when(repository.getRunningJobRecords()).thenReturn(List.of(jobRec));
+        when(repository.getCurrentStepStatusCounts(List.of(jobRec))).thenReturn(List.of(counts("jrid1", 2, 2, 0)));
+        when(threadManager.getManagerExecutor()).thenReturn(executor);
+        when(repository.tryUpdateJobRecord(jobRec)).thenReturn(true);
+        when(repository.trySetStepPartitionCount("jrid1", "Step2", 0, "N1")).thenReturn(true);
+
+        jobExecutionService.processExecutingJobs(now);
+
+        //All partitions of Step1 are complete, so the job moves on to Step2
+        verify(repository, timeout(5000).times(1)).trySetStepPartitionCount("jrid1", "Step2", 0, "N1");
+        verify(repository, times(1)).save(stepRecC.capture());
+        assertEquals("Step2", stepRecC.getValue().getStepName());
+        assertEquals(List.of("Step2"), currentStepNames(jobRec));
+        assertEquals(List.of("Step1"), jobRec.getCompletedStepNames());
+    }
+
+    //------------------------------------
+    @Test
+    void processExecutingJobs_failedStep() {
+        val jobRec = JobRecord.of("Job", new JobArguments(), now);
+        jobRec.setId("jrid1");
+        jobRec.getCurrentSteps().add(CurrentStep.of("Step1", 2));
 
         when(repository.getRunningJobRecords()).thenReturn(List.of(jobRec));
-        lenient().when(repository.getStepsRecordsForStepOfJob(any(), any())).thenReturn(List.of(stepRec));
-        when(threadManager.getExecutor()).thenReturn(executor);
+        when(repository.getCurrentStepStatusCounts(List.of(jobRec))).thenReturn(List.of(counts("jrid1", 2, 1, 1)));
+        when(threadManager.getManagerExecutor()).thenReturn(executor);
+        when(repository.tryUpdateJobRecord(jobRec)).thenReturn(true);
 
         jobExecutionService.processExecutingJobs(now);
 
-        //TODO
+        verify(repository, timeout(5000).times(1)).tryUpdateJobRecord(jobRec);
+        assertEquals(ExecutionStatus.FAILED, jobRec.getStatus());
     }
 
     //------------------------------------
@@ -117,33 +159,39 @@ class JobExecutionServiceTest {
     void isCurrentStepComplete() {
 
         //***** Test partitioned step *******
-        val testData = createTestJobAndStepRecords();
-        val jobRec = testData.getFirst();
-        val stepRecs = testData.getSecond();
+        val currentStep = createTestJobAndStepRecords().getFirst().getCurrentStep("Step1");
 
         //2 steps ccomplete, one not yet
-        stepRecs.get(0).setStatus(ExecutionStatus.COMPLETE);
-        stepRecs.get(1).setStatus(ExecutionStatus.COMPLETE);
-        val result1 = jobExecutionService.isCurrentStepComplete(jobRec, stepRecs);
+        val result1 = jobExecutionService.isCurrentStepComplete(currentStep, counts("jrid1", 3, 2, 0));
         assertFalse(result1);
+        assertEquals(2, currentStep.getPartitionsCompletedCount());
 
         //all steps now complete
-        stepRecs.get(2).setStatus(ExecutionStatus.COMPLETE);
-        val result2 = jobExecutionService.isCurrentStepComplete(jobRec, stepRecs);
+        val result2 = jobExecutionService.isCurrentStepComplete(currentStep, counts("jrid1", 3, 3, 0));
         assertTrue(result2);
 
         //***** Test single step *****
-        jobRec.setCurrentStepPartitionCount(0);
-        val onlyStepRec = List.of(stepRecs.get(0));
-        onlyStepRec.get(0).setStatus(ExecutionStatus.COMPLETE);
-        val result3 = jobExecutionService.isCurrentStepComplete(jobRec, onlyStepRec);
+        currentStep.setPartitionCount(0);
+        val result3 = jobExecutionService.isCurrentStepComplete(currentStep, counts("jrid1", 1, 1, 0));
         assertTrue(result3);
 
-        //***** Test with empty step recs ****
-        jobRec.setCurrentStepPartitionCount(2);
-        List<StepRecord> noStepRecs = List.of();
+        //***** Test single step split in 2 *****
+        assertFalse(jobExecutionService.isCurrentStepComplete(currentStep, counts("jrid1", 2, 1, 0)));
+        assertTrue(jobExecutionService.isCurrentStepComplete(currentStep, counts("jrid1", 2, 2, 0)));
+
+        //***** Test partitioned step with a record split off another *****
+        currentStep.setPartitionCount(4);
+        assertFalse(jobExecutionService.isCurrentStepComplete(currentStep, counts("jrid1", 4, 3, 0)));
+        assertTrue(jobExecutionService.isCurrentStepComplete(currentStep, counts("jrid1", 4, 4, 0)));
+
+        //***** Test step still being issued *****
+        currentStep.setPartitionCount(JobRecord.PARTITIONS_ISSUING);
+        assertFalse(jobExecutionService.isCurrentStepComplete(currentStep, null));
+
+        //***** Test with no step recs ****
+        currentStep.setPartitionCount(2);
         assertThrows(SysAgentException.class, () -> {
-            jobExecutionService.isCurrentStepComplete(jobRec, noStepRecs);
+            jobExecutionService.isCurrentStepComplete(currentStep, null);
         });
     }
 
@@ -152,29 +200,28 @@ class JobExecutionServiceTest {
     void hasCurrentStepFailed() {
 
         //***** Test partitioned step *******
-        val testData = createTestJobAndStepRecords();
-        val jobRec = testData.getFirst();
-        val stepRecs = testData.getSecond();
+        val currentStep = createTestJobAndStepRecords().getFirst().getCurrentStep("Step1");
 
         //2 steps ccomplete, 1 failed
-        stepRecs.get(0).setStatus(ExecutionStatus.COMPLETE);
-        stepRecs.get(1).setStatus(ExecutionStatus.COMPLETE);
-        stepRecs.get(2).setStatus(ExecutionStatus.FAILED);
-        val result1 = jobExecutionService.hasCurrentStepFailed(jobRec, stepRecs);
+        val result1 = jobExecutionService.hasCurrentStepFailed(currentStep, counts("jrid1", 3, 2, 1));
         assertTrue(result1);
 
+        //2 steps ccomplete, 1 still running
+        val result2 = jobExecutionService.hasCurrentStepFailed(currentStep, counts("jrid1", 3, 2, 0));
+        assertFalse(result2);
+
+        //A record split off another is still running
+        assertFalse(jobExecutionService.hasCurrentStepFailed(currentStep, counts("jrid1", 4, 2, 1)));
+
         //***** Test single step *****
-        jobRec.setCurrentStepPartitionCount(0);
-        val onlyStepRec = List.of(stepRecs.get(0));
-        onlyStepRec.get(0).setStatus(ExecutionStatus.FAILED);
-        val result2 = jobExecutionService.hasCurrentStepFailed(jobRec, onlyStepRec);
-        assertTrue(result2);
+        currentStep.setPartitionCount(0);
+        val result3 = jobExecutionService.hasCurrentStepFailed(currentStep, counts("jrid1", 1, 0, 1));
+        assertTrue(result3);
 
-        //***** Test with empty step recs ****
-        jobRec.setCurrentStepPartitionCount(2);
-        List<StepRecord> noStepRecs = List.of();
+        //***** Test with no step recs ****
+        currentStep.setPartitionCount(2);
         assertThrows(SysAgentException.class, () -> {
-            jobExecutionService.hasCurrentStepFailed(jobRec, noStepRecs);
+            jobExecutionService.hasCurrentStepFailed(currentStep, counts("jrid1", 0, 0, 0));
         });
 
     }
@@ -189,13 +236,19 @@ class JobExecutionServiceTest {
         val stepRecs = testData.getSecond();
 
         val step = new MockStep1();
+        jobRec.getCurrentStep("Step1").setPartitionCount(JobRecord.PARTITIONS_ISSUING);
+        when(repository.trySetStepPartitionCount("jrid1", "Step1", 4, "N1")).thenReturn(true);
 
+        //Inserted in batches of 3
+        config.setStepRecordInsertBatchSize(3);
         jobExecutionService.sendStepExecutionInstruction(step, new JobArguments(), jobRec);
 
-        assertEquals(4, jobRec.getCurrentStepPartitionCount());
-        verify(repository, times(4)).save(stepRecC.capture());
+        assertEquals(4, jobRec.getCurrentStep("Step1").getPartitionCount());
+        verify(repository, times(2)).insertStepRecords(stepRecsC.capture());
+        assertEquals(List.of(3, 1), stepRecsC.getAllValues().stream().map(List::size).toList());
+        verify(repository, times(1)).releaseIssuedStepRecords("jrid1", "Step1", 4);
 
-        val savedStepRecs = stepRecC.getAllValues();
+        val savedStepRecs = stepRecsC.getAllValues().stream().flatMap(List::stream).toList();
         assertEquals("{k1=k1v1, k2=k2v1}", savedStepRecs.get(0).getPartition().toString());
         assertEquals("{k1=k1v2, k2=k2v1}", savedStepRecs.get(1).getPartition().toString());
         assertEquals("{k1=k1v3, k2=k2v2}", savedStepRecs.get(2).getPartition().toString());
@@ -206,9 +259,428 @@ class JobExecutionServiceTest {
         assertTrueForAll(savedStepRecs, sr -> sr.getJobName().equals("Job"));
         assertTrueForAll(savedStepRecs, sr -> sr.getStepName().equals("Step1"));
         assertTrueForAll(savedStepRecs, sr -> sr.getStatus() == ExecutionStatus.NEW);
+        assertEquals(List.of(0, 1, 2, 3), savedStepRecs.stream().map(sr -> sr.getPartition().getPartitionNum()).toList());
+    }
+
+    //------------------------------------
+    @Test
+    void sendStepExecutionInstruction_affinity() {
+        val jobRec = createTestJobAndStepRecords().getFirst();
+        jobRec.getCurrentStep("Step1").setPartitionCount(JobRecord.PARTITIONS_ISSUING);
+        val step = new MockStep1(){
+            @Override
+            public Stream<Partition> getPartitionStream(JobArguments jobArguments) {
+                val north = Partition.from(Map.of("region", "north"));
+                north.setAffinityKey("north");
+                val south = Partition.from(Map.of("region", "south"));
+                south.setAffinityKey("south");
+                return Stream.of(north, south, Partition.from(Map.of("region", "none")));
+            }
+        };
+        when(repository.trySetStepPartitionCount("jrid1", "Step1", 3, "N1")).thenReturn(true);
+        //Only north was last run by a node that is still alive
+        when(repository.getLiveAffinityNodeIds(eq(List.of("north", "south")), anyLong())).thenReturn(Map.of("north", "N1"));
+
+        jobExecutionService.sendStepExecutionInstruction(step, new JobArguments(), jobRec);
+
+        verify(repository).insertStepRecords(stepRecsC.capture());
+        val stepRecs = stepRecsC.getValue();
+        assertEquals("N1", stepRecs.get(0).getPreferredNodeId());
+        assertTrue(stepRecs.get(0).getPreferredUntil().isAfter(LocalDateTime.now()));
+        assertNull(stepRecs.get(1).getPreferredNodeId());
+        assertNull(stepRecs.get(2).getPreferredNodeId());
+    }
+
+    //------------------------------------
+    @Test
+    void sendStepExecutionInstruction_costs() {
+        val jobRec = createTestJobAndStepRecords().getFirst();
+        jobRec.getCurrentStep("Step1").setPartitionCount(JobRecord.PARTITIONS_ISSUING);
+        val step = new MockStep1(){
+            @Override
+            public Stream<Partition> getPartitionStream(JobArguments jobArguments) {
+                val estimated = Partition.from(Map.of("k1", "v1"));
+                estimated.setCost(500L);
+                return Stream.of(estimated, Partition.from(Map.of("k1", "v2", "k2", "x")), Partition.from(Map.of("k1", "v3")));
+            }
+        };
+        when(repository.trySetStepPartitionCount("jrid1", "Step1", 3, "N1")).thenReturn(true);
+        //Only the partition with no estimate is looked up, and only one of those ran before
+        when(repository.getLastPartitionMillis("Job", "Step1", List.of("{k1=v2, k2=x}", "{k1=v3}")))
+                .thenReturn(Map.of("{k1=v2, k2=x}", 9000L));
+
+        jobExecutionService.sendStepExecutionInstruction(step, new JobArguments(), jobRec);
+
+        verify(repository).insertStepRecords(stepRecsC.capture());
+        assertEquals(List.of(500L, 9000L, 0L), stepRecsC.getValue().stream().map(StepRecord::getCost).toList());
+    }
+
+    //------------------------------------
+    @Test
+    void sendStepExecutionInstruction_onePartition() {
+        val jobRec = createTestJobAndStepRecords().getFirst();
+        val step = new MockStep1(){
+            @Override
+            public Stream<Partition> getPartitionStream(JobArguments jobArguments) {
+                return Stream.of(Partition.from(Map.of("k1", "k1v1")));
+            }
+        };
+
+        assertThrows(SysAgentException.class,
+                () -> jobExecutionService.sendStepExecutionInstruction(step, new JobArguments(), jobRec));
+        verify(repository, never()).insertStepRecords(any());
+        verify(repository, never()).trySetStepPartitionCount(any(), any(), anyInt(), any());
+    }
+
+    //------------------------------------
+    @Test
+    void sendStepExecutionInstruction_noPartitions() {
+        val jobRec = createTestJobAndStepRecords().getFirst();
+        when(repository.trySetStepPartitionCount("jrid1", "Step1", 0, "N1")).thenReturn(true);
+        val step = new MockStep1(){
+            @Override
+            public Stream<Partition> getPartitionStream(JobArguments jobArguments) {
+                return Stream.empty();
+            }
+        };
+
+        jobExecutionService.sendStepExecutionInstruction(step, new JobArguments(), jobRec);
+
+        //Run as a single step
+        assertEquals(0, jobRec.getCurrentStep("Step1").getPartitionCount());
+        verify(repository, times(1)).save(stepRecC.capture());
+        assertEquals(null, stepRecC.getValue().getPartition());
+        verify(repository, never()).insertStepRecords(any());
+    }
+
+
+
+    //------------------------------------
+    @Test
+    void sendStepExecutionInstruction_jobMovedOnElsewhere() {
+        val jobRec = createTestJobAndStepRecords().getFirst();
+        when(repository.trySetStepPartitionCount("jrid1", "Step1", 4, "N1")).thenReturn(false);
+
+        val sent = jobExecutionService.sendStepExecutionInstruction(new MockStep1(), new JobArguments(), jobRec);
+
+        //The records are removed, as the job is no longer waiting on them
+        assertFalse(sent);
+        verify(repository, never()).releaseIssuedStepRecords(any(), any(), anyInt());
+        verify(repository, times(1)).deleteIssuedStepRecords("jrid1", "Step1", "N1");
+    }
+
+    //------------------------------------
+    @Test
+    void onStepRecordComplete() {
+        val testData = createTestJobAndStepRecords();
+        val jobRec = testData.getFirst();
+        val stepRecs = testData.getSecond();
+
+        //Not the last record of the step
+        jobRec.getCurrentStep("Step1").setPartitionsCompletedCount(2);
+        when(repository.incrementStepCompletedCount("jrid1", "Step1")).thenReturn(jobRec);
+        jobExecutionService.onStepRecordComplete(stepRecs.get(0));
+        verify(repository, never()).tryUpdateJobRecord(any());
+
+        //The last record, so the job moves on to Step2
+        jobRec.getCurrentStep("Step1").setPartitionsCompletedCount(3);
+        when(repository.getCurrentStepStatusCounts(List.of(jobRec))).thenReturn(List.of(counts("jrid1", 3, 3, 0)));
+        when(repository.tryUpdateJobRecord(jobRec)).thenReturn(true);
+        when(repository.trySetStepPartitionCount("jrid1", "Step2", 0, "N1")).thenReturn(true);
+        jobExecutionService.onStepRecordComplete(stepRecs.get(0));
+
+        assertEquals(List.of("Step2"), currentStepNames(jobRec));
+        assertEquals(0, jobRec.getCurrentStep("Step2").getPartitionCount());
+        verify(repository, times(1)).save(stepRecC.capture());
+        assertEquals("Step2", stepRecC.getValue().getStepName());
+    }
+
+    //------------------------------------
+    @Test
+    void onStepRecordComplete_jobMovedOn() {
+        val stepRec = StepRecord.of("jrid1", "Job", "Step1", new JobArguments());
+        when(repository.incrementStepCompletedCount("jrid1", "Step1")).thenReturn(null);
+
+        jobExecutionService.onStepRecordComplete(stepRec);
+
+        verify(repository, never()).getCurrentStepStatusCounts(any());
+        verify(repository, never()).tryUpdateJobRecord(any());
+    }
+
+    //------------------------------------
+    @Test
+    void advanceJob_fanOut() {
+        loadDagJobIntoService();
+        val jobRec = dagJobRecord(List.of("A"));
+        when(repository.tryUpdateJobRecord(jobRec)).thenReturn(true);
+        when(repository.trySetStepPartitionCount(eq("jrid2"), any(), eq(0), eq("N1"))).thenReturn(true);
+
+        jobExecutionService.advanceJob(jobRec, List.of("A"), now);
+
+        //Both branches are issued at once
+        assertEquals(List.of("B1", "C"), currentStepNames(jobRec));
+        assertEquals(List.of("A"), jobRec.getCompletedStepNames());
+        verify(repository, times(2)).save(stepRecC.capture());
+        assertEquals(List.of("B1", "C"), stepRecC.getAllValues().stream().map(StepRecord::getStepName).toList());
+    }
+
+    //------------------------------------
+    @Test
+    void advanceJob_fanIn() {
+        loadDagJobIntoService();
+        val jobRec = dagJobRecord(List.of("B2", "C"), "A", "B1");
+        when(repository.tryUpdateJobRecord(jobRec)).thenReturn(true);
+
+        //D waits for C
+        jobExecutionService.advanceJob(jobRec, List.of("B2"), now);
+        assertEquals(List.of("C"), currentStepNames(jobRec));
+        verify(repository, never()).save((StepRecord) any());
+
+        when(repository.trySetStepPartitionCount("jrid2", "D", 0, "N1")).thenReturn(true);
+        jobExecutionService.advanceJob(jobRec, List.of("C"), now);
+        assertEquals(List.of("D"), currentStepNames(jobRec));
+        verify(repository, times(1)).save(stepRecC.capture());
+        assertEquals("D", stepRecC.getValue().getStepName());
+
+        //Nothing left to run after D
+        jobExecutionService.advanceJob(jobRec, List.of("D"), now);
+        assertEquals(ExecutionStatus.COMPLETE, jobRec.getStatus());
+        assertEquals(List.of("A", "B1", "B2", "C", "D"), jobRec.getCompletedStepNames());
+    }
+
+    //------------------------------------
+    @Test
+    void advanceJob_changedElsewhere() {
+        loadDagJobIntoService();
+        val jobRec = dagJobRecord(List.of("B2", "C"), "A", "B1");
+        when(repository.tryUpdateJobRecord(jobRec)).thenReturn(false);
+
+        //In the meantime another node moved on from C
+        val latestJobRec = dagJobRecord(List.of("B2"), "A", "B1", "C");
+        when(repository.getJobRecordById("jrid2")).thenReturn(latestJobRec);
+        when(repository.tryUpdateJobRecord(latestJobRec)).thenReturn(true);
+        when(repository.trySetStepPartitionCount("jrid2", "D", 0, "N1")).thenReturn(true);
+
+        jobExecutionService.advanceJob(jobRec, List.of("B2"), now);
+
+        //So the move is made again on the latest, which makes D ready
+        assertEquals(List.of("D"), currentStepNames(latestJobRec));
+        verify(repository, times(1)).save(stepRecC.capture());
+        assertEquals("D", stepRecC.getValue().getStepName());
+    }
+
+    //------------------------------------
+    @Test
+    void processExecutingJobs_branches() {
+        loadDagJobIntoService();
+        val jobRec = dagJobRecord(List.of("B2", "C"), "A", "B1");
+        when(repository.getRunningJobRecords()).thenReturn(List.of(jobRec));
+        when(repository.getCurrentStepStatusCounts(List.of(jobRec))).thenReturn(List.of(
+                counts("jrid2", "B2", 1, 1, 0),
+                counts("jrid2", "C", 1, 1, 0)));
+        when(threadManager.getManagerExecutor()).thenReturn(executor);
+        when(repository.tryUpdateJobRecord(jobRec)).thenReturn(true);
+        when(repository.trySetStepPartitionCount("jrid2", "D", 0, "N1")).thenReturn(true);
+
+        jobExecutionService.processExecutingJobs(now);
+
+        //Both branches completed, so the job moves on to D in one go
+        verify(repository, timeout(5000).times(1)).save(stepRecC.capture());
+        assertEquals("D", stepRecC.getValue().getStepName());
+        verify(repository, times(1)).tryUpdateJobRecord(jobRec);
+    }
+
+    //------------------------------------
+    @Test
+    void runJob_priority() {
+        loadJobIntoService(new Job() {
+            @Override
+            public JobPipeline getPipeline() {
+                return JobPipeline.create().firstStep(new MockStep1());
+            }
+
+            @Override
+            public String getName() {
+                return "UrgentJob";
+            }
+
+            @Override
+            public int getPriority() {
+                return 3;
+            }
+
+            @Override
+            public int getWeight() {
+                return 2;
+            }
+        });
+        val jobRecC = ArgumentCaptor.forClass(JobRecord.class);
+        when(repository.save(jobRecC.capture())).thenAnswer(inv -> {
+            JobRecord jr = inv.getArgument(0);
+            jr.setId("jrid1");
+            return jr;
+        });
+        when(repository.trySetStepPartitionCount("jrid1", "Step1", 4, "N1")).thenReturn(true);
+
+        jobExecutionService.runJob("UrgentJob", new JobArguments());
+
+        //The job's records are claimed ahead of those of lower priority jobs
+        assertEquals(3, jobRecC.getValue().getPriority());
+        verify(repository, times(1)).insertStepRecords(stepRecsC.capture());
+        assertTrueForAll(stepRecsC.getValue(), sr -> sr.getPriority() == 3);
+
+        //And its share against jobs of the same priority goes by its weight
+        assertEquals(2, jobRecC.getValue().getWeight());
+        assertTrueForAll(stepRecsC.getValue(), sr -> sr.getWeight() == 2);
     }
 
+    //------------------------------------
+    @Test
+    void runJob_maxConcurrency() {
+        loadJobIntoService(new Job() {
+            @Override
+            public JobPipeline getPipeline() {
+                return JobPipeline.create().firstStep(new MockStep1() {
+                    @Override
+                    public int getMaxConcurrency() {
+                        return 8;
+                    }
+                });
+            }
+
+            @Override
+            public String getName() {
+                return "CappedJob";
+            }
+
+            @Override
+            public int getMaxConcurrency() {
+                return 10;
+            }
+        });
+        verify(repository).setPermitLimit("job:CappedJob", 10);
+        verify(repository).setPermitLimit("step:CappedJob/Step1", 8);
+
+        when(repository.save(any(JobRecord.class))).thenAnswer(inv -> {
+            JobRecord jr = inv.getArgument(0);
+            jr.setId("jrid1");
+            return jr;
+        });
+        when(repository.trySetStepPartitionCount("jrid1", "Step1", 4, "N1")).thenReturn(true);
 
+        jobExecutionService.runJob("CappedJob", new JobArguments());
+
+        //Each record must hold a permit of both caps to run
+        verify(repository, times(1)).insertStepRecords(stepRecsC.capture());
+        assertTrueForAll(stepRecsC.getValue(), sr -> sr.getPermitKeys().equals(List.of("job:CappedJob", "step:CappedJob/Step1")));
+    }
+
+    //------------------------------------
+    @Test
+    void initialise_invalidWeight() {
+        val job = new Job() {
+            @Override
+            public JobPipeline getPipeline() {
+                return JobPipeline.create().firstStep(new MockStep1());
+            }
+
+            @Override
+            public int getWeight() {
+                return 0;
+            }
+        };
+        when(beanFactory.getBeanNamesForType(Job.class)).thenReturn(new String[]{"otherJob"});
+        when(beanFactory.getBean("otherJob", Job.class)).thenReturn(job);
+        assertThrows(SysAgentException.class, () -> jobExecutionService.initialise(new NodeInfo()));
+    }
+
+    //------------------------------------
+    @Test
+    void runJob_partitionPipelined() {
+        loadJobIntoService(pipelinedJob());
+        val jobRecC = ArgumentCaptor.forClass(JobRecord.class);
+        when(repository.save(jobRecC.capture())).thenAnswer(inv -> {
+            JobRecord jr = inv.getArgument(0);
+            jr.setId("jrid1");
+            return jr;
+        });
+        when(repository.trySetStepPartitionCount(eq("jrid1"), any(), eq(4), eq("N1"))).thenReturn(true);
+
+        jobExecutionService.runJob("PipelinedJob", new JobArguments());
+
+        //Both steps run at the same time
+        val jobRec = jobRecC.getValue();
+        assertEquals(List.of("Step1", "Step1P"), currentStepNames(jobRec));
+
+        //The pipelined step's records are all issued before Step1's are released, and stay held
+        val inOrder = inOrder(repository);
+        inOrder.verify(repository, times(2)).insertStepRecords(stepRecsC.capture());
+        inOrder.verify(repository).releaseIssuedStepRecords("jrid1", "Step1", 4);
+        verify(repository, never()).releaseIssuedStepRecords(eq("jrid1"), eq("Step1P"), anyInt());
+        val pipelinedRecs = stepRecsC.getAllValues().get(1);
+        assertTrueForAll(pipelinedRecs, sr -> sr.getStepName().equals("Step1P"));
+        assertTrueForAll(pipelinedRecs, sr -> "Step1".equals(sr.getUpstreamStepName()));
+        assertTrueForAll(pipelinedRecs, StepRecord::isClaimed);
+        verify(repository, times(1)).clearStepIssuingNode("jrid1", List.of("Step1", "Step1P"), "N1");
+    }
+
+    //------------------------------------
+    @Test
+    void onStepRecordComplete_partitionPipelined() {
+        loadJobIntoService(pipelinedJob());
+        val jobRec = JobRecord.of("PipelinedJob", new JobArguments(), now);
+        jobRec.setId("jrid1");
+        jobRec.getCurrentSteps().add(CurrentStep.of("Step1", 4));
+        jobRec.getCurrentSteps().add(CurrentStep.of("Step1P", 4));
+        jobRec.getCurrentStep("Step1").setPartitionsCompletedCount(1);
+        when(repository.incrementStepCompletedCount("jrid1", "Step1")).thenReturn(jobRec);
+
+        val stepRec = StepRecord.of("jrid1", "PipelinedJob", "Step1", new JobArguments());
+        stepRec.setPartition(Partition.from(Map.of("k1", "k1v3")));
+        stepRec.getPartition().setPartitionNum(2);
+        jobExecutionService.onStepRecordComplete(stepRec);
+
+        //Partition 2 of the pipelined step can now run
+        verify(repository, times(1)).releasePipelinedStepRecord("jrid1", "Step1P", "Step1", 2, 4, null, null);
+
+        //A partition with an affinity key is placed on the node that ran it in Step1
+        stepRec.getPartition().setPartitionNum(3);
+        stepRec.getPartition().setAffinityKey("north");
+        stepRec.setNodeId("N1");
+        jobExecutionService.onStepRecordComplete(stepRec);
+        verify(repository, times(1)).releasePipelinedStepRecord(eq("jrid1"), eq("Step1P"), eq("Step1"), eq(3), eq(4), eq("N1"), any());
+    }
+
+    //------------------------------------
+    @Test
+    void advanceJob_partitionPipelined() {
+        loadJobIntoService(pipelinedJob());
+        val jobRec = JobRecord.of("PipelinedJob", new JobArguments(), now);
+        jobRec.setId("jrid1");
+        jobRec.getCurrentSteps().add(CurrentStep.of("Step1", 4));
+        jobRec.getCurrentSteps().add(CurrentStep.of("Step1P", 4));
+        when(repository.tryUpdateJobRecord(jobRec)).thenReturn(true);
+
+        jobExecutionService.advanceJob(jobRec, List.of("Step1"), now);
+
+        //The pipelined step is already running, so nothing new is issued. Any of its records
+        //still held are released
+        assertEquals(List.of("Step1P"), currentStepNames(jobRec));
+        verify(repository, never()).save((StepRecord) any());
+        verify(repository, never()).insertStepRecords(any());
+        verify(repository, times(1)).releaseIssuedStepRecords("jrid1", "Step1P", 4);
+    }
+
+    //------------------------------------
+    @Test
+    void pipelineValidation() {
+        assertThrows(SysAgentException.class, () -> JobPipeline.create()
+                .firstStep(new MockDagJob.NamedStep("A"))
+                .nextStep(new MockDagJob.NamedStep("A")));
+        assertThrows(SysAgentException.class, () -> JobPipeline.create()
+                .firstStep(new MockDagJob.NamedStep("A"))
+                .stepAfter(new MockDagJob.NamedStep("B"), new MockDagJob.NamedStep("X")));
+    }
 
     //------------------------------------
     @Test
@@ -216,24 +688,44 @@ class JobExecutionServiceTest {
         val clInfo = new NodeInfo();
         clInfo.deadNodeIds = List.of("node1_id", "node2_id");
 
-        val sr1 = StepRecord.of("jobrecid1", "Job", "Step1", new JobArguments());
-        sr1.setClaimed(true);
-        sr1.setNodeId("node1_id");
-        when(repository.getStepRecordsClaimedByNode("node1_id")).thenReturn(List.of(sr1));
-
-        val sr2 = StepRecord.of("jobrecid1", "Job", "Step2", new JobArguments());
-        sr2.setClaimed(true);
-        sr2.setNodeId("node2_id");
-        when(repository.getStepRecordsClaimedByNode("node2_id")).thenReturn(List.of(sr2));
+        when(repository.releaseStepRecordClaimsOfNodes(clInfo.deadNodeIds)).thenReturn(2L);
 
         jobExecutionService.releaseDeadClaims(clInfo);
 
-        verify(repository, times(2)).save((StepRecord) any());
+        //Released in one go, nothing saved one by one
+        verify(repository, times(1)).releaseStepRecordClaimsOfNodes(List.of("node1_id", "node2_id"));
+        verify(repository, never()).save((StepRecord) any());
 
-        val stepRecs = List.of(sr1, sr2);
-        assertTrueForAll(stepRecs, sr -> sr.isClaimed() == false);
-        assertTrueForAll(stepRecs, sr -> sr.getNodeId() == null);
+    }
+
+    //------------------------------------
+    @Test
+    void releaseDeadClaims_issuingNodeDied() {
+        loadJobIntoService(pipelinedJob());
+        val jobRec = JobRecord.of("PipelinedJob", new JobArguments(), now);
+        jobRec.setId("jrid1");
+        jobRec.getCurrentSteps().add(CurrentStep.of("Step1", JobRecord.PARTITIONS_ISSUING));
+        jobRec.getCurrentSteps().add(CurrentStep.of("Step1P", JobRecord.PARTITIONS_ISSUING));
+        jobRec.getCurrentSteps().forEach(cs -> cs.setIssuingNodeId("node1_id"));
+        val clInfo = new NodeInfo();
+        clInfo.deadNodeIds = List.of("node1_id");
+
+        when(repository.getJobRecordsIssuedByNodes(clInfo.deadNodeIds)).thenReturn(List.of(jobRec));
+        when(repository.tryUpdateJobRecord(jobRec)).thenReturn(true);
+        when(repository.trySetStepPartitionCount(eq("jrid1"), any(), eq(4), eq("N1"))).thenReturn(true);
 
+        jobExecutionService.releaseDeadClaims(clInfo);
+
+        //The records the dead node issued are removed, and both steps issued again by this node
+        val inOrder = inOrder(repository);
+        inOrder.verify(repository).deleteStepRecordsOfStep("jrid1", "Step1");
+        inOrder.verify(repository).deleteStepRecordsOfStep("jrid1", "Step1P");
+        inOrder.verify(repository, times(2)).insertStepRecords(stepRecsC.capture());
+        inOrder.verify(repository).releaseIssuedStepRecords("jrid1", "Step1", 4);
+        inOrder.verify(repository).clearStepIssuingNode("jrid1", List.of("Step1", "Step1P"), "N1");
+        assertTrueForAll(stepRecsC.getAllValues().get(0), sr -> "N1".equals(sr.getIssuingNodeId()));
+        assertEquals(4, jobRec.getCurrentStep("Step1").getPartitionCount());
+        assertEquals("N1", jobRec.getCurrentStep("Step1P").getIssuingNodeId());
     }
 
     //------------------------------------
@@ -256,26 +748,99 @@ class JobExecutionServiceTest {
         assertEquals(now, sr.getLastUpdateAt());
     }
 
+    //-----------------------------------------------------------
+    private NodeInfo thisNode(){
+        val nodeInfo = new NodeInfo();
+        nodeInfo.nodeId = "N1";
+        return nodeInfo;
+    }
+
     //-----------------------------------------------------------
     private void loadMockJobIntoService(){
         val job = new MockJob();
         when(appContext.getBeanFactory()).thenReturn(beanFactory);
         when(beanFactory.getBeanNamesForType(Job.class)).thenReturn(new String[]{"job"});
         when(beanFactory.getBean("job", Job.class)).thenReturn(job);
-        jobExecutionService.initialise(new NodeInfo());
+        jobExecutionService.initialise(thisNode());
+
+    }
+
+    //-----------------------------------------------------------
+    private void loadDagJobIntoService(){
+        loadJobIntoService(new MockDagJob());
+    }
+
+    private void loadJobIntoService(Job job){
+        when(beanFactory.getBeanNamesForType(Job.class)).thenReturn(new String[]{"otherJob"});
+        when(beanFactory.getBean("otherJob", Job.class)).thenReturn(job);
+        jobExecutionService.initialise(thisNode());
+    }
+
+    //-----------------------------------------------------------
+    // Step1 followed by Step1P, which is pipelined with it partition by partition
+    private Job pipelinedJob(){
+        return new Job() {
+            @Override
+            public JobPipeline getPipeline() {
+                return JobPipeline.create()
+                        .firstStep(new MockStep1())
+                        .nextStep(new MockStep1() {
+                            @Override
+                            public String getName() {
+                                return "Step1P";
+                            }
+
+                            @Override
+                            public boolean isPartitionPipelined() {
+                                return true;
+                            }
+                        });
+            }
+
+            @Override
+            public String getName() {
+                return "PipelinedJob";
+            }
+        };
+    }
 
+    //----------------------------------------------------------------
+    private JobRecord dagJobRecord(List<String> currentStepNames, String... completedStepNames){
+        val jobRec = JobRecord.of("DagJob", new JobArguments(), now);
+        jobRec.setId("jrid2");
+        for(val stepName : currentStepNames) jobRec.getCurrentSteps().add(CurrentStep.of(stepName, 0));
+        jobRec.getCompletedStepNames().addAll(List.of(completedStepNames));
+        return jobRec;
     }
 
     //----------------------------------------------------------------
     private Pair<JobRecord, List<StepRecord>> createTestJobAndStepRecords(){
         val jobRec = JobRecord.of("Job", new JobArguments(), now);
         jobRec.setId("jrid1");
-        jobRec.setCurrentStepName("Step1");
-        jobRec.setCurrentStepPartitionCount(3);
+        jobRec.getCurrentSteps().add(CurrentStep.of("Step1", 3));
         val stepRec1 =StepRecord.of("jrid1", "Job", "Step1", new JobArguments());
         val stepRec2 =StepRecord.of("jrid1", "Job", "Step1", new JobArguments());
         val stepRec3 =StepRecord.of("jrid1", "Job", "Step1", new JobArguments());
         return Pair.of(jobRec, List.of(stepRec1, stepRec2, stepRec3));
     }
 
-}
\ No newline at end of file
+    //----------------------------------------------------------------
+    private List<String> currentStepNames(JobRecord jobRec){
+        return jobRec.getCurrentSteps().stream().map(CurrentStep::getStepName).toList();
+    }
+
+    //----------------------------------------------------------------
+    private StepStatusCounts counts(String jobRecordId, int total, int completed, int failed){
+        return counts(jobRecordId, "Step1", total, completed, failed);
+    }
+
+    private StepStatusCounts counts(String jobRecordId, String stepName, int total, int completed, int failed){
+        val counts = new StepStatusCounts();
+        counts.setJobRecordId(jobRecordId);
+        counts.setStepName(stepName);
+        counts.setTotal(total);
+        counts.setCompleted(completed);
+        counts.setFailed(failed);
+        return counts;
+    }
+}
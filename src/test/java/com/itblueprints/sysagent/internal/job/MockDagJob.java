@@ -0,0 +1,43 @@
+package com.itblueprints.sysagent.internal.job;
+
+import com.itblueprints.sysagent.job.Job;
+import com.itblueprints.sysagent.job.JobPipeline;
+import com.itblueprints.sysagent.step.SimpleStep;
+import com.itblueprints.sysagent.step.StepContext;
+
+// A -> (B1 -> B2) and C side by side -> D
+public class MockDagJob implements Job {
+
+    @Override
+    public JobPipeline getPipeline() {
+        return JobPipeline.create()
+                .firstStep(new NamedStep("A"))
+                .nextSteps(new NamedStep("B1"), new NamedStep("C"))
+                .stepAfter(new NamedStep("B2"), new NamedStep("B1"))
+                .stepAfter(new NamedStep("D"), new NamedStep("B2"), new NamedStep("C"));
+    }
+
+    @Override
+    public String getName() {
+        return "DagJob";
+    }
+
+    //-------------------------------------
+    static class NamedStep implements SimpleStep {
+        private final String name;
+
+        NamedStep(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public void run(StepContext context) {
+
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+    }
+}
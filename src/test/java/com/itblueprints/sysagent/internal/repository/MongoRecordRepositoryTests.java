@@ -1,11 +1,36 @@
 package com.itblueprints.sysagent.internal.repository;
 
 import com.itblueprints.sysagent.TestUtils;
+import com.itblueprints.sysagent.internal.ExecutionStatus;
+import com.itblueprints.sysagent.internal.SysAgentException;
 import com.itblueprints.sysagent.internal.cluster.ManagerNodeRecord;
+import com.itblueprints.sysagent.internal.cluster.NodeRecord;
+import com.itblueprints.sysagent.internal.job.CurrentStep;
+import com.itblueprints.sysagent.internal.job.JobRecord;
+import com.itblueprints.sysagent.internal.step.PermitRecord;
+import com.itblueprints.sysagent.internal.step.StepRecord;
+import com.itblueprints.sysagent.internal.step.StepStatusCounts;
+import com.itblueprints.sysagent.job.JobArguments;
+import com.itblueprints.sysagent.step.Partition;
 import lombok.val;
+import org.bson.Document;
+import org.bson.types.ObjectId;
 import org.junit.jupiter.api.Test;
 
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class MongoRecordRepositoryTests {
 
@@ -34,4 +59,559 @@ public class MongoRecordRepositoryTests {
         assertEquals("N1", mgrNr.getManagerNodeId());
 
     }
+
+    //------------------------------------
+    @Test
+    void testClaimStepRecords(){
+
+        val repository = TestUtils.getRecordRepository(this.getClass());
+        repository.clearAll();
+        for(int i=0; i<5; i++) repository.save(StepRecord.of("J1", "Job", "Step", new JobArguments()));
+
+        //Node 1 claims 3 in one go, node 2 gets what is left
+        val claimed1 = repository.tryClaimStepRecords("N1", 3);
+        val claimed2 = repository.tryClaimStepRecords("N2", 3);
+        assertEquals(3, claimed1.size());
+        assertEquals(2, claimed2.size());
+        TestUtils.assertTrueForAll(claimed1, sr -> sr.isClaimed() && sr.getNodeId().equals("N1"));
+        assertEquals(0, repository.tryClaimStepRecords("N3", 3).size());
+
+        //Node 1 gives up 2 unstarted claims, which node 3 can then claim
+        repository.releaseStepRecordClaims(List.of(claimed1.get(0).getId(), claimed1.get(1).getId()), "N1");
+        val claimed3 = repository.tryClaimStepRecords("N3", 3);
+        assertEquals(2, claimed3.size());
+        TestUtils.assertTrueForAll(claimed3, sr -> sr.getNodeId().equals("N3"));
+    }
+
+    //------------------------------------
+    @Test
+    void testReleaseClaimsOfDeadNodes(){
+
+        val repository = TestUtils.getRecordRepository(this.getClass());
+        repository.clearAll();
+        repository.initialise();
+
+        val liveNode = new NodeRecord();
+        liveNode.setLifeLeaseTill(2000);
+        repository.save(liveNode);
+        val deadNode = new NodeRecord();
+        deadNode.setLifeLeaseTill(500);
+        repository.save(deadNode);
+        val thisNode = new NodeRecord();
+        thisNode.setLifeLeaseTill(500);
+        repository.save(thisNode);
+
+        //This node is never reported as dead
+        val deadNodeIds = repository.getDeadNodeIds(thisNode.getId(), 1000);
+        assertEquals(List.of(deadNode.getId()), deadNodeIds);
+
+        for(int i=0; i<3; i++) repository.save(StepRecord.of("J1", "Job", "Step", new JobArguments()));
+        val deadClaimed = repository.tryClaimStepRecords(deadNode.getId(), 2);
+        repository.tryClaimStepRecords(liveNode.getId(), 1);
+
+        //One was running on the dead node, so would look like it could be split or backed up
+        val running = deadClaimed.get(0);
+        running.setStatus(ExecutionStatus.RUNNING);
+        running.setStartedAt(LocalDateTime.now().minusMinutes(10));
+        running.setProgressKey("k5");
+        repository.save(running);
+
+        assertEquals(2, repository.releaseStepRecordClaimsOfNodes(deadNodeIds));
+        val released = repository.getStepRecordById(running.getId());
+        assertEquals(ExecutionStatus.NEW, released.getStatus());
+        assertNull(released.getStartedAt());
+        assertNull(released.getProgressKey());
+        assertEquals(0, repository.getSplittableStepRecords(thisNode.getId(), LocalDateTime.now(), 10).size());
+
+        val claimed = repository.tryClaimStepRecords(thisNode.getId(), 3);
+        assertEquals(2, claimed.size());
+    }
+
+    //------------------------------------
+    @Test
+    void testInsertAndReleaseStepRecords(){
+
+        val repository = TestUtils.getRecordRepository(this.getClass());
+        repository.clearAll();
+        val stepRecs = new ArrayList<StepRecord>();
+        for(int i=0; i<3; i++) {
+            val stepRec = StepRecord.of("J1", "Job", "Step", new JobArguments());
+            stepRec.setPartition(Partition.from(Map.of("k", "v"+i)));
+            stepRec.getPartition().setPartitionNum(i);
+            stepRec.setClaimed(true);
+            stepRecs.add(stepRec);
+        }
+        repository.insertStepRecords(stepRecs);
+
+        //Held until released
+        assertEquals(3, repository.getStepsRecordsForStepOfJob("J1", "Step").size());
+        assertEquals(0, repository.tryClaimStepRecords("N1", 3).size());
+
+        repository.releaseIssuedStepRecords("J1", "Step", 3);
+        val claimed = repository.tryClaimStepRecords("N1", 3);
+        assertEquals(3, claimed.size());
+        TestUtils.assertTrueForAll(claimed, sr -> sr.getPartition().getTotalPartitions() == 3);
+    }
+
+    //------------------------------------
+    @Test
+    void testReleasePipelinedStepRecord(){
+
+        val repository = TestUtils.getRecordRepository(this.getClass());
+        repository.clearAll();
+        val stepRecs = new ArrayList<StepRecord>();
+        for(int i=0; i<3; i++) {
+            val stepRec = StepRecord.of("J1", "Job", "Step2", new JobArguments());
+            stepRec.setPartition(Partition.from(Map.of("k", "v"+i)));
+            stepRec.getPartition().setPartitionNum(i);
+            stepRec.setUpstreamStepName("Step1");
+            stepRec.setClaimed(true);
+            stepRecs.add(stepRec);
+        }
+        repository.insertStepRecords(stepRecs);
+
+        //Partition 1 of Step1 completes, so only partition 1 of Step2 can run
+        repository.releasePipelinedStepRecord("J1", "Step2", "Step1", 1, 3, null, null);
+        val claimed = repository.tryClaimStepRecords("N1", 3);
+        assertEquals(1, claimed.size());
+        assertEquals(1, claimed.get(0).getPartition().getPartitionNum());
+        assertEquals(3, claimed.get(0).getPartition().getTotalPartitions());
+    }
+
+    //------------------------------------
+    @Test
+    void testSplitStepRecord(){
+
+        val repository = TestUtils.getRecordRepository(this.getClass());
+        repository.clearAll();
+        val stepRec = StepRecord.of("J1", "Job", "Step", new JobArguments());
+        stepRec.setStatus(ExecutionStatus.RUNNING);
+        stepRec.setNodeId("N1");
+        stepRec.setStartedAt(LocalDateTime.now().minusMinutes(5));
+        repository.save(stepRec);
+        repository.publishStepProgress(stepRec.getId(), "D");
+
+        val running = repository.getSplittableStepRecords("N2", LocalDateTime.now().minusMinutes(1), 10);
+        assertEquals(1, running.size());
+        assertEquals(0, repository.getSplittableStepRecords("N1", LocalDateTime.now().minusMinutes(1), 10).size());
+
+        //Split at M, then a second split from the same read of the record fails
+        assertTrue(repository.trySplitStepRecord(running.get(0), "M", "SR2"));
+        assertFalse(repository.trySplitStepRecord(running.get(0), "K", "SR3"));
+
+        //The running record sees the split when it next publishes its progress
+        val latest = repository.publishStepProgress(stepRec.getId(), "H");
+        assertEquals("M", latest.getRangeTo());
+        assertEquals(List.of("SR2"), latest.getSplitIds());
+
+        //Cannot split behind the progress made
+        assertFalse(repository.trySplitStepRecord(latest, "F", "SR4"));
+    }
+
+    //------------------------------------
+    @Test
+    void testSpeculativeStepRecord(){
+
+        val repository = TestUtils.getRecordRepository(this.getClass());
+        repository.clearAll();
+        val stepRec = StepRecord.of("J1", "Job", "Step", new JobArguments());
+        stepRec.setPartition(Partition.from(Map.of("k", "v")));
+        stepRec.setStatus(ExecutionStatus.RUNNING);
+        stepRec.setNodeId("N1");
+        stepRec.setStartedAt(LocalDateTime.now().minusMinutes(5));
+        repository.save(stepRec);
+
+        val lagging = repository.getBackupCandidateStepRecords("N2", LocalDateTime.now().minusMinutes(1), 10);
+        assertEquals(1, lagging.size());
+
+        //Only one node gets to back up the record
+        val backupRec = StepRecord.of("J1", "Job", "Step", new JobArguments());
+        backupRec.setPartition(stepRec.getPartition());
+        backupRec.setSpeculativeOf(stepRec.getId());
+        backupRec.setStatus(ExecutionStatus.RUNNING);
+        repository.save(backupRec);
+        assertTrue(repository.trySetStepRecordBackup(stepRec.getId(), backupRec.getId()));
+        assertFalse(repository.trySetStepRecordBackup(stepRec.getId(), "SR3"));
+        assertEquals(0, repository.getBackupCandidateStepRecords("N2", LocalDateTime.now().minusMinutes(1), 10).size());
+
+        //The backup is not counted towards the step
+        val jobRec = new JobRecord();
+        jobRec.setId("J1");
+        jobRec.getCurrentSteps().add(CurrentStep.of("Step", 1));
+        assertEquals(1, repository.getCurrentStepStatusCounts(List.of(jobRec)).get(0).getTotal());
+
+        //The backup finishes first and its outcome is set on the record
+        backupRec.setStatus(ExecutionStatus.COMPLETE);
+        backupRec.setCompletedAt(LocalDateTime.now());
+        val original = repository.tryWinSpeculation(stepRec.getId(), backupRec);
+        assertEquals(ExecutionStatus.COMPLETE, original.getStatus());
+        assertEquals(backupRec.getId(), original.getWinnerId());
+        //The original completing after it cannot win
+        stepRec.setStatus(ExecutionStatus.COMPLETE);
+        assertEquals(null, repository.tryWinSpeculation(stepRec.getId(), stepRec));
+        assertTrue(repository.getAverageStepRecordMillis("J1", "Step") >= 5 * 60 * 1000);
+
+        repository.requestStepRecordCancel(stepRec.getId());
+        assertEquals(List.of(stepRec.getId()), repository.getCancelRequestedStepRecordIds(List.of(stepRec.getId(), backupRec.getId())));
+    }
+
+    //------------------------------------
+    @Test
+    void testSpeculativeStepRecordFailed(){
+
+        val repository = TestUtils.getRecordRepository(this.getClass());
+        repository.clearAll();
+        val stepRec = StepRecord.of("J1", "Job", "Step", new JobArguments());
+        stepRec.setPartition(Partition.from(Map.of("k", "v")));
+        stepRec.setStatus(ExecutionStatus.RUNNING);
+        stepRec.setBackupId("SR2");
+        repository.save(stepRec);
+
+        //A failed run cannot win
+        val failedRec = StepRecord.of("J1", "Job", "Step", new JobArguments());
+        failedRec.setStatus(ExecutionStatus.FAILED);
+        assertThrows(SysAgentException.class, () -> repository.tryWinSpeculation(stepRec.getId(), failedRec));
+
+        //The record fails first and waits for its backup
+        val pending = repository.trySetStepRecordFailurePending(stepRec.getId());
+        assertTrue(pending.isFailurePending());
+        assertFalse(pending.isBackupFailed());
+        assertEquals(ExecutionStatus.RUNNING, pending.getStatus());
+
+        //The backup fails too and the record is failed
+        val original = repository.trySetStepRecordBackupFailed(stepRec.getId());
+        assertTrue(original.isFailurePending());
+        assertTrue(repository.tryFailPendingStepRecord(stepRec.getId()));
+        assertEquals(ExecutionStatus.FAILED, repository.getStepRecordById(stepRec.getId()).getStatus());
+        assertFalse(repository.tryFailPendingStepRecord(stepRec.getId()));
+    }
+
+    //------------------------------------
+    @Test
+    void testAffinity(){
+
+        val repository = TestUtils.getRecordRepository(this.getClass());
+        repository.clearAll();
+
+        val liveNode = new NodeRecord();
+        liveNode.setLifeLeaseTill(2000);
+        repository.save(liveNode);
+        val deadNode = new NodeRecord();
+        deadNode.setLifeLeaseTill(500);
+        repository.save(deadNode);
+        repository.saveAffinity("north", liveNode.getId());
+        repository.saveAffinity("south", deadNode.getId());
+        assertEquals(Map.of("north", liveNode.getId()), repository.getLiveAffinityNodeIds(List.of("north", "south", "east"), 1000));
+
+        //A record placed on the live node can only be claimed by it until preferredUntil
+        val placedRec = StepRecord.of("J1", "Job", "Step", new JobArguments());
+        placedRec.setPreferredNodeId(liveNode.getId());
+        placedRec.setPreferredUntil(LocalDateTime.now().plusMinutes(5));
+        repository.save(placedRec);
+        val waitedRec = StepRecord.of("J1", "Job", "Step", new JobArguments());
+        waitedRec.setPreferredNodeId(deadNode.getId());
+        waitedRec.setPreferredUntil(LocalDateTime.now().minusMinutes(5));
+        repository.save(waitedRec);
+
+        val otherClaimed = repository.tryClaimStepRecords("N3", 2);
+        assertEquals(List.of(waitedRec.getId()), otherClaimed.stream().map(StepRecord::getId).toList());
+        val placedClaimed = repository.tryClaimPreferredStepRecords(liveNode.getId(), 2);
+        assertEquals(List.of(placedRec.getId()), placedClaimed.stream().map(StepRecord::getId).toList());
+    }
+
+    //------------------------------------
+    @Test
+    void testClaimCostliestFirst(){
+
+        val repository = TestUtils.getRecordRepository(this.getClass());
+        repository.clearAll();
+        repository.initialise();
+        val now = LocalDateTime.now();
+        for(val cost : List.of(5L, 50L, 20L, 0L)) {
+            val stepRec = StepRecord.of("J1", "Job", "Step", new JobArguments());
+            stepRec.setPartitionKey("{k=v"+cost+"}");
+            stepRec.setCost(cost);
+            repository.save(stepRec);
+        }
+
+        assertEquals(50L, repository.tryClaimNextStepRecord("N1").getCost());
+        val claimed = repository.tryClaimStepRecords("N1", 2);
+        assertEquals(List.of(20L, 5L), claimed.stream().map(StepRecord::getCost).sorted(Comparator.reverseOrder()).toList());
+
+        //The millis a partition took the last time it completed
+        for(int run=1; run<=2; run++) {
+            val stepRec = StepRecord.of("J"+run, "Job", "Step", new JobArguments());
+            stepRec.setPartitionKey("{k=v}");
+            stepRec.setStatus(ExecutionStatus.COMPLETE);
+            stepRec.setStartedAt(now.minusHours(run));
+            stepRec.setCompletedAt(now.minusHours(run).plusSeconds(run * 10));
+            repository.save(stepRec);
+        }
+        assertEquals(Map.of("{k=v}", 10_000L), repository.getLastPartitionMillis("Job", "Step", List.of("{k=v}", "{k=w}")));
+    }
+
+    //------------------------------------
+    @Test
+    void testClaimHighestPriorityFirst(){
+
+        val repository = TestUtils.getRecordRepository(this.getClass());
+        repository.clearAll();
+        repository.initialise();
+        assertNull(repository.getHighestWaitingPriority("N1"));
+        for(val priority : List.of(0, 2, 1)) {
+            val stepRec = StepRecord.of("J"+priority, "Job", "Step", new JobArguments());
+            stepRec.setPriority(priority);
+            stepRec.setCost(100 - priority);
+            repository.save(stepRec);
+        }
+
+        //Priority goes before cost
+        assertEquals(2, repository.getHighestWaitingPriority("N1"));
+        assertEquals(2, repository.tryClaimNextStepRecord("N1").getPriority());
+        assertEquals(1, repository.getHighestWaitingPriority("N1"));
+        assertEquals(List.of(1, 0), repository.tryClaimStepRecords("N1", 2).stream().map(StepRecord::getPriority).sorted(Comparator.reverseOrder()).toList());
+    }
+
+    //------------------------------------
+    @Test
+    void testClaimFairShare(){
+
+        val repository = TestUtils.getRecordRepository(this.getClass());
+        repository.clearAll();
+        repository.initialise();
+        for(int i=0; i<20; i++) {
+            val stepRec = StepRecord.of("J1", "BigJob", "Step", new JobArguments());
+            stepRec.setWeight(2);
+            repository.save(stepRec);
+        }
+        for(int i=0; i<3; i++) repository.save(StepRecord.of("J2", "SmallJob", "Step", new JobArguments()));
+
+        //Only the job names are read to see whether there is anything to share
+        assertEquals(List.of("BigJob", "SmallJob"), repository.getWaitingJobNames().stream().sorted().toList());
+
+        //Each job's share is claimed
+        val claimed = repository.tryClaimStepRecordsOfJobs("N1", Map.of("BigJob", 4, "SmallJob", 2));
+        assertEquals(4, claimed.stream().filter(sr -> sr.getJobName().equals("BigJob")).count());
+        assertEquals(2, claimed.stream().filter(sr -> sr.getJobName().equals("SmallJob")).count());
+
+        //Records claimed by a node count as running
+        assertEquals(Map.of("BigJob", 4, "SmallJob", 2), repository.getRunningStepRecordCounts(List.of("BigJob", "SmallJob")));
+
+        //A share larger than the records waiting claims what there is
+        assertEquals(1, repository.tryClaimStepRecordsOfJobs("N2", Map.of("SmallJob", 3)).size());
+        assertEquals(List.of("BigJob"), repository.getWaitingJobNames());
+    }
+
+    //------------------------------------
+    @Test
+    void testPermits(){
+
+        val repository = TestUtils.getRecordRepository(this.getClass());
+        repository.clearAll();
+        repository.initialise();
+        val stepKey = PermitRecord.stepKey("Job", "Step");
+        repository.setPermitLimit(stepKey, 2);
+        for(int i=0; i<4; i++) {
+            val stepRec = StepRecord.of("J1", "Job", "Step", new JobArguments());
+            stepRec.setPermitKeys(List.of(stepKey));
+            repository.save(stepRec);
+        }
+        val leaseTill = System.currentTimeMillis() + 60_000;
+
+        val claimed = repository.tryClaimStepRecords("N1", 4);
+        assertTrue(repository.tryAcquirePermits(claimed.get(0).getId(), "N1", List.of(stepKey), leaseTill));
+        assertTrue(repository.tryAcquirePermits(claimed.get(1).getId(), "N2", List.of(stepKey), leaseTill));
+        assertFalse(repository.tryAcquirePermits(claimed.get(2).getId(), "N1", List.of(stepKey), leaseTill));
+
+        //Records of a step at its cap are not claimed
+        repository.releaseStepRecordClaims(List.of(claimed.get(2).getId(), claimed.get(3).getId()), "N1");
+        assertTrue(repository.tryClaimStepRecords("N1", 4).isEmpty());
+
+        //Permits are given back when a record is done, and when its node dies
+        repository.releasePermits(List.of(claimed.get(0).getId()));
+        assertEquals(1, repository.releasePermitsOfNodes(List.of("N2")));
+        assertEquals(2, repository.tryClaimStepRecords("N1", 4).size());
+
+        //Or when the node stops renewing its lease
+        assertTrue(repository.tryAcquirePermits(claimed.get(2).getId(), "N1", List.of(stepKey), leaseTill));
+        repository.renewPermits("N1", leaseTill + 60_000);
+        assertEquals(0, repository.releaseExpiredPermits(leaseTill + 1));
+        assertEquals(1, repository.releaseExpiredPermits(leaseTill + 60_001));
+    }
+
+    //------------------------------------
+    @Test
+    void testWatchClaimableStepRecords() throws Exception {
+
+        //The test container runs as a single node replica set, so change streams are available
+        val repository = TestUtils.getRecordRepository(this.getClass());
+        repository.clearAll();
+        repository.save(StepRecord.of("J1", "Job", "Step", new JobArguments()));
+
+        val inserted = new CountDownLatch(2);
+        val watcher = new Thread(() -> repository.watchClaimableStepRecords(inserted::countDown));
+        watcher.start();
+        Thread.sleep(1000);
+
+        repository.save(StepRecord.of("J1", "Job", "Step", new JobArguments()));
+        repository.save(StepRecord.of("J1", "Job", "Step", new JobArguments()));
+        assertTrue(inserted.await(10, TimeUnit.SECONDS));
+
+        watcher.interrupt();
+        watcher.join(5000);
+    }
+
+    //------------------------------------
+    @Test
+    void testJobRecordCurrentSteps(){
+
+        val repository = TestUtils.getRecordRepository(this.getClass());
+        repository.clearAll();
+
+        val jobRec = JobRecord.of("Job", new JobArguments(), LocalDateTime.now());
+        jobRec.getCurrentSteps().add(CurrentStep.of("B", JobRecord.PARTITIONS_ISSUING));
+        jobRec.getCurrentSteps().add(CurrentStep.of("C", 0));
+        repository.save(jobRec);
+
+        //Only a step being issued can have its count set, and only by the node issuing it
+        assertFalse(repository.trySetStepPartitionCount(jobRec.getId(), "B", 2, "N1"));
+        assertTrue(repository.trySetStepPartitionCount(jobRec.getId(), "B", 2, null));
+        assertFalse(repository.trySetStepPartitionCount(jobRec.getId(), "B", 3, null));
+        assertFalse(repository.trySetStepPartitionCount(jobRec.getId(), "C", 3, null));
+
+        val updated = repository.incrementStepCompletedCount(jobRec.getId(), "B");
+        assertEquals(2, updated.getCurrentStep("B").getPartitionCount());
+        assertEquals(1, updated.getCurrentStep("B").getPartitionsCompletedCount());
+        assertEquals(0, updated.getCurrentStep("C").getPartitionsCompletedCount());
+        assertEquals(2, updated.getVersion());
+
+        //The copy saved first is out of date, so it cannot move the job on
+        jobRec.getCurrentSteps().remove(0);
+        assertFalse(repository.tryUpdateJobRecord(jobRec));
+        updated.getCurrentSteps().remove(0);
+        updated.getCompletedStepNames().add("B");
+        assertTrue(repository.tryUpdateJobRecord(updated));
+        val latest = repository.getJobRecordById(jobRec.getId());
+        assertEquals(List.of("B"), latest.getCompletedStepNames());
+        assertEquals(null, latest.getCurrentStep("B"));
+    }
+
+    //------------------------------------
+    @Test
+    void testUpgradeJobRecords(){
+
+        val repository = TestUtils.getRecordRepository(this.getClass());
+        repository.clearAll();
+
+        //A running job saved before jobs had more than one current step
+        val mongoTemplate = TestUtils.getMongoTemplate(this.getClass());
+        val legacyId = new ObjectId();
+        mongoTemplate.insert(new Document()
+                .append("_id", legacyId)
+                .append("jobName", "Job")
+                .append("status", "RUNNING")
+                .append("currentStepName", "Step2")
+                .append("currentStepPartitionCount", 4)
+                .append("currentStepPartitionsCompletedCount", 3)
+                .append("currentStepIssuingNodeId", "N1"),
+                mongoTemplate.getCollectionName(JobRecord.class));
+
+        repository.initialise();
+
+        val jobRec = repository.getRunningJobRecords().get(0);
+        assertEquals(1, jobRec.getCurrentSteps().size());
+        val currentStep = jobRec.getCurrentStep("Step2");
+        assertEquals(4, currentStep.getPartitionCount());
+        assertEquals(3, currentStep.getPartitionsCompletedCount());
+        assertEquals("N1", currentStep.getIssuingNodeId());
+
+        //The old fields are gone, so a second upgrade does nothing
+        val raw = mongoTemplate.findById(legacyId, Document.class, mongoTemplate.getCollectionName(JobRecord.class));
+        assertFalse(raw.containsKey("currentStepName"));
+        assertEquals(0L, raw.get("version"));
+        repository.initialise();
+        assertEquals(1, repository.getJobRecordById(jobRec.getId()).getCurrentSteps().size());
+
+        //It carries on like any other job
+        assertTrue(repository.tryUpdateJobRecord(jobRec));
+    }
+
+    //------------------------------------
+    @Test
+    void testStepIssuingNode(){
+
+        val repository = TestUtils.getRecordRepository(this.getClass());
+        repository.clearAll();
+
+        val jobRec = JobRecord.of("Job", new JobArguments(), LocalDateTime.now());
+        val currentStep = CurrentStep.of("B", JobRecord.PARTITIONS_ISSUING);
+        currentStep.setIssuingNodeId("N1");
+        jobRec.getCurrentSteps().add(currentStep);
+        repository.save(jobRec);
+
+        val held = StepRecord.of(jobRec.getId(), "Job", "B", new JobArguments());
+        held.setIssuingNodeId("N1");
+        held.setClaimed(true);
+        val other = StepRecord.of(jobRec.getId(), "Job", "B", new JobArguments());
+        other.setIssuingNodeId("N2");
+        repository.insertStepRecords(List.of(held, other));
+
+        //A node that died part way through the issue is found
+        assertEquals(1, repository.getJobRecordsIssuedByNodes(List.of("N1")).size());
+        assertEquals(0, repository.getJobRecordsIssuedByNodes(List.of("N2")).size());
+
+        //Only its own records are removed
+        repository.deleteIssuedStepRecords(jobRec.getId(), "B", "N1");
+        assertEquals(1, repository.getStepsRecordsForStepOfJob(jobRec.getId(), "B").size());
+
+        //Once issued the step no longer has an issuing node
+        assertTrue(repository.trySetStepPartitionCount(jobRec.getId(), "B", 2, "N1"));
+        repository.clearStepIssuingNode(jobRec.getId(), List.of("B"), "N1");
+        assertEquals(0, repository.getJobRecordsIssuedByNodes(List.of("N1")).size());
+        assertEquals(null, repository.getJobRecordById(jobRec.getId()).getCurrentStep("B").getIssuingNodeId());
+
+        repository.deleteStepRecordsOfStep(jobRec.getId(), "B");
+        assertEquals(0, repository.getStepsRecordsForStepOfJob(jobRec.getId(), "B").size());
+    }
+
+    //------------------------------------
+    @Test
+    void testGetCurrentStepStatusCounts(){
+
+        val repository = TestUtils.getRecordRepository(this.getClass());
+        repository.clearAll();
+
+        val jobRec1 = new JobRecord();
+        jobRec1.setId("J1");
+        jobRec1.getCurrentSteps().add(CurrentStep.of("Step2", 3));
+        val jobRec2 = new JobRecord();
+        jobRec2.setId("J2");
+        jobRec2.getCurrentSteps().add(CurrentStep.of("Step1", 0));
+
+        //Records of an earlier step of job 1 are not counted
+        saveStepRecord("J1", "Step1", ExecutionStatus.COMPLETE);
+        saveStepRecord("J1", "Step2", ExecutionStatus.COMPLETE);
+        saveStepRecord("J1", "Step2", ExecutionStatus.COMPLETE);
+        saveStepRecord("J1", "Step2", ExecutionStatus.FAILED);
+        saveStepRecord("J1", "Step2", ExecutionStatus.RUNNING);
+        saveStepRecord("J2", "Step1", ExecutionStatus.NEW);
+
+        val counts = repository.getCurrentStepStatusCounts(List.of(jobRec1, jobRec2)).stream()
+                .collect(Collectors.toMap(StepStatusCounts::getJobRecordId, c -> c));
+        assertEquals(2, counts.size());
+        val counts1 = counts.get("J1");
+        assertEquals("Step2", counts1.getStepName());
+        assertEquals(4, counts1.getTotal());
+        assertEquals(2, counts1.getCompleted());
+        assertEquals(1, counts1.getFailed());
+        val counts2 = counts.get("J2");
+        assertEquals(1, counts2.getTotal());
+        assertEquals(0, counts2.getCompleted());
+    }
+
+    private void saveStepRecord(String jobRecordId, String stepName, ExecutionStatus status){
+        val stepRec = StepRecord.of(jobRecordId, "Job", stepName, new JobArguments());
+        stepRec.setStatus(status);
+        TestUtils.getRecordRepository(this.getClass()).save(stepRec);
+    }
 }
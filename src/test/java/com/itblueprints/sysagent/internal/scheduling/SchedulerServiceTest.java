@@ -53,7 +53,7 @@ class SchedulerServiceTest {
         jsi.setLastRunAt(MIN_TIME);
         when(mongoTemplate.findById(jobName, JobScheduleRecord.class)).thenReturn(jsi);
 
-        when(threadManager.getExecutor()).thenReturn(executor);
+        when(threadManager.getManagerExecutor()).thenReturn(executor);
 
     }
 
@@ -72,31 +72,31 @@ class SchedulerServiceTest {
         val clusterInfo = new NodeInfo();
         val now1 = LocalDateTime.of(2024, 1, 10, 23,0,0);
         schedulerService.onHeartBeat(clusterInfo, now1);
-        verify(threadManager, times(totalInvocations)).getExecutor();
+        verify(threadManager, times(totalInvocations)).getManagerExecutor();
 
         //20 secs before schedule
         val now2 = LocalDateTime.of(2024, 1, 10, 23,59,40);
         schedulerService.onHeartBeat(clusterInfo, now2);
         totalInvocations++;
-        verify(threadManager, times(totalInvocations)).getExecutor();
+        verify(threadManager, times(totalInvocations)).getManagerExecutor();
         jsi.setLastRunAt(LocalDateTime.of(2024, 1, 11, 0,0,0));
 
         //Next day 31 secs before schedule
         val now3 = LocalDateTime.of(2024, 1, 11, 23,59,29);
         schedulerService.onHeartBeat(clusterInfo, now3);
-        verify(threadManager, times(totalInvocations)).getExecutor();
+        verify(threadManager, times(totalInvocations)).getManagerExecutor();
 
         //Next day 9 secs after schedule
         val now4 = LocalDateTime.of(2024, 1, 11, 0,0,9);
         schedulerService.onHeartBeat(clusterInfo, now4);
         totalInvocations++;
-        verify(threadManager, times(totalInvocations)).getExecutor();
+        verify(threadManager, times(totalInvocations)).getManagerExecutor();
         jsi.setLastRunAt(LocalDateTime.of(2024, 1, 12, 0,0,0));
 
         //19 secs after schedule
         val now5 = LocalDateTime.of(2024, 1, 12, 0,0,19);
         schedulerService.onHeartBeat(clusterInfo, now5);
-        verify(threadManager, times(totalInvocations)).getExecutor();
+        verify(threadManager, times(totalInvocations)).getManagerExecutor();
     }
 
     private static final LocalDateTime MIN_TIME = LocalDateTime.of(1900,1,1,0,0,0);
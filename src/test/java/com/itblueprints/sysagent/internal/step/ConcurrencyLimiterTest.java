@@ -0,0 +1,76 @@
+package com.itblueprints.sysagent.internal.step;
+
+import com.itblueprints.sysagent.internal.Config;
+import lombok.val;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+class ConcurrencyLimiterTest {
+
+    //------------------------------------
+    @Test
+    void slowStartThenBackOff() throws Exception {
+        val limiter = new ConcurrencyLimiter(new Config(), 8);
+        assertEquals(1, limiter.getLimit());
+
+        //Doubles while the limit is reached and latency stays flat
+        runWindow(limiter, 1, 1000, true);
+        assertEquals(2, limiter.getLimit());
+        runWindow(limiter, 2, 1000, true);
+        assertEquals(4, limiter.getLimit());
+        runWindow(limiter, 4, 1000, true);
+        assertEquals(8, limiter.getLimit());
+        runWindow(limiter, 8, 1000, true);
+        assertEquals(8, limiter.getLimit());
+
+        //Latency rises 5 times over the baseline
+        runWindow(limiter, 8, 5000, true);
+        assertEquals(6, limiter.getLimit());
+    }
+
+    //------------------------------------
+    @Test
+    void additiveIncreaseAfterFailure() throws Exception {
+        val limiter = new ConcurrencyLimiter(new Config(), 100);
+        runWindow(limiter, 1, 1000, true);
+        runWindow(limiter, 2, 1000, true);
+        assertEquals(4, limiter.getLimit());
+
+        runWindow(limiter, 4, 1000, false);
+        assertEquals(3, limiter.getLimit());
+        runWindow(limiter, 3, 1000, true);
+        assertEquals(4, limiter.getLimit());
+
+        //Not raised when the limit is not reached
+        for(int i=0; i<4; i++) runWindow(limiter, 1, 1000, true);
+        assertEquals(4, limiter.getLimit());
+    }
+
+    //------------------------------------
+    @Test
+    void acquireWaitsForRoom() throws Exception {
+        val limiter = new ConcurrencyLimiter(new Config(), 8);
+        limiter.acquire();
+        val second = CompletableFuture.runAsync(() -> {
+            try { limiter.acquire(); }
+            catch (InterruptedException e) { throw new RuntimeException(e); }
+        });
+        Thread.sleep(100);
+        assertFalse(second.isDone());
+
+        limiter.release(1, 1000, true);
+        second.get(5, TimeUnit.SECONDS);
+    }
+
+    //------------------------------------
+    // Puts the given number of items in flight together, then completes them
+    private void runWindow(ConcurrencyLimiter limiter, int items, long nanos, boolean succeeded) throws Exception {
+        for(int i=0; i<items; i++) limiter.acquire();
+        for(int i=0; i<items; i++) limiter.release(1, nanos, succeeded);
+    }
+}
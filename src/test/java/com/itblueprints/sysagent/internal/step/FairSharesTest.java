@@ -0,0 +1,43 @@
+package com.itblueprints.sysagent.internal.step;
+
+import com.itblueprints.sysagent.job.JobArguments;
+import lombok.val;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class FairSharesTest {
+
+    //------------------------------------
+    @Test
+    void allocate_byWeight() {
+        val shares = new FairShares();
+        shares.addJob("BigJob", 0, 2, 0);
+        shares.addJob("SmallJob", 0, 1, 0);
+
+        //The slots are shared by weight
+        assertEquals(Map.of("BigJob", 4, "SmallJob", 2), shares.allocate(6));
+
+        //Records running count towards the share, including those this node claimed since
+        val claimed = new ArrayList<StepRecord>();
+        for(int i=0; i<4; i++) claimed.add(StepRecord.of("J1", "BigJob", "Step", new JobArguments()));
+        for(int i=0; i<2; i++) claimed.add(StepRecord.of("J2", "SmallJob", "Step", new JobArguments()));
+        shares.onClaimed(claimed);
+        assertEquals(Map.of("BigJob", 2, "SmallJob", 1), shares.allocate(3));
+    }
+
+    //------------------------------------
+    @Test
+    void allocate_byPriority() {
+        val shares = new FairShares();
+        shares.addJob("Urgent", 5, 1, 10);
+        shares.addJob("Routine", 0, 4, 0);
+
+        //A higher priority job gets all the slots, however many it has running
+        assertEquals(Map.of("Urgent", 3), shares.allocate(3));
+        assertEquals(Map.of(), new FairShares().allocate(3));
+    }
+}
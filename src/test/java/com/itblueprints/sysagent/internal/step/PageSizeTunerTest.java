@@ -0,0 +1,58 @@
+package com.itblueprints.sysagent.internal.step;
+
+import com.itblueprints.sysagent.internal.Config;
+import lombok.val;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class PageSizeTunerTest {
+
+    //------------------------------------
+    @Test
+    void notAdaptive() {
+        val tuner = new PageSizeTuner(new Config(), 200);
+        tuner.record(PageSizeTuner.Stage.PROCESS, 200, 60_000_000_000L);
+        assertEquals(200, tuner.getPageSize());
+    }
+
+    //------------------------------------
+    @Test
+    void adaptive() {
+        val config = adaptiveConfig();
+        val tuner = new PageSizeTuner(config, 100);
+
+        //10ms per item in the slowest stage, so 200 items make the 2s target
+        tuner.record(PageSizeTuner.Stage.PROCESS, 100, 1_000_000_000L);
+        assertEquals(150, tuner.getPageSize());
+        tuner.record(PageSizeTuner.Stage.READ, 150, 150_000_000L);
+        assertEquals(175, tuner.getPageSize());
+
+        //Items of 100KB with a 1MB page limit
+        tuner.recordItemBytes(100 * 1024);
+        assertEquals(92, tuner.getPageSize());
+    }
+
+    //------------------------------------
+    @Test
+    void adaptive_limits() {
+        val config = adaptiveConfig();
+        val tuner = new PageSizeTuner(config, 5000);
+        assertEquals(1000, tuner.getPageSize());
+
+        //Very slow items
+        for(int i=0; i<20; i++) tuner.record(PageSizeTuner.Stage.WRITE, 10, 10_000_000_000L);
+        assertEquals(10, tuner.getPageSize());
+    }
+
+    //------------------------------------
+    private Config adaptiveConfig(){
+        val config = new Config();
+        config.setBatchAdaptivePageSize(true);
+        config.setBatchPageSizeMin(10);
+        config.setBatchPageSizeMax(1000);
+        config.setBatchTargetPageMillis(2000);
+        config.setBatchMaxPageBytes(1024 * 1024);
+        return config;
+    }
+}
@@ -1,13 +1,19 @@
 package com.itblueprints.sysagent.internal.step;
 
+import com.itblueprints.sysagent.internal.Bulkhead;
 import com.itblueprints.sysagent.internal.Config;
 import com.itblueprints.sysagent.internal.ExecutionStatus;
+import com.itblueprints.sysagent.internal.SysAgentException;
 import com.itblueprints.sysagent.internal.ThreadManager;
+import com.itblueprints.sysagent.internal.Utils;
 import com.itblueprints.sysagent.internal.cluster.NodeInfo;
+import com.itblueprints.sysagent.job.Job;
 import com.itblueprints.sysagent.job.JobArguments;
+import com.itblueprints.sysagent.job.JobPipeline;
 import com.itblueprints.sysagent.internal.job.JobExecutionService;
 import com.itblueprints.sysagent.internal.repository.RecordRepository;
 import com.itblueprints.sysagent.step.StepContext;
+import com.itblueprints.sysagent.step.StreamBatchStep;
 import com.itblueprints.sysagent.step.Partition;
 import lombok.val;
 import org.junit.jupiter.api.BeforeEach;
@@ -15,16 +21,35 @@ import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Slice;
+import org.springframework.data.domain.SliceImpl;
 
 import java.time.LocalDate;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.*;
 
 @ExtendWith(MockitoExtension.class)
@@ -39,27 +64,185 @@ class StepExecutionServiceTest {
 
     private ExecutorService executor = Executors.newSingleThreadExecutor();
 
+    private ExecutorService pipelineExecutor = Executors.newCachedThreadPool();
+
     private LocalDateTime now = LocalDateTime.now();
 
     //-------------------------------------
     @BeforeEach
     void beforeEach() {
-        stepExecutionService = new StepExecutionService(jobExecutionService, threadManager, repository);
+        stepExecutionService = new StepExecutionService(jobExecutionService, threadManager, repository, config);
     }
 
     //-------------------------------------
     @Test
-    void processStepIfAvailable() {
-        val clusterInfo = new NodeInfo();
-        val stepRec = createStepRecord();
-        when(repository.tryClaimNextStepRecord(any())).thenReturn(stepRec);
+    void onHeartBeat() {
+        val nodeInfo = new NodeInfo();
+        nodeInfo.freeStepSlots = 2;
+        when(threadManager.tryAcquireStepSlot()).thenReturn(0, 1, -1);
+        when(threadManager.getStepExecutor()).thenReturn(Executors.newFixedThreadPool(2));
+        //2 claimed together for the free slots, then 1 more when a slot is done
+        when(repository.tryClaimStepRecords(any(), anyInt()))
+                .thenReturn(List.of(createStepRecord(), createStepRecord()), List.of(createStepRecord()), List.of());
 
-        val step = new MockPartitionedStep();
+        //The steps wait until both slots are started, else a slot could take the second claimed record first
+        val slotsStarted = new CountDownLatch(1);
+        val step = new MockPartitionedStep(){
+            @Override
+            public void run(StepContext context) {
+                try {
+                    slotsStarted.await(5, TimeUnit.SECONDS);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
         when(jobExecutionService.getStep("Job", "Step")).thenReturn(step);
 
-        val stepProcessed = stepExecutionService.processStepIfAvailable(clusterInfo, now);
+        stepExecutionService.onHeartBeat(nodeInfo, now);
+        slotsStarted.countDown();
+
+        //Both slots are freed once all 3 step records have run
+        verify(threadManager, timeout(5000).times(2)).releaseStepSlot(anyInt());
+        verify(repository, times(6)).save(any(StepRecord.class));
+        verify(repository, times(1)).tryClaimStepRecords(any(), eq(2));
+        verify(repository, atLeast(3)).tryClaimStepRecords(any(), anyInt());
+    }
+
+    //-------------------------------------
+    @Test
+    void onStepRecordsClaimable() {
+        //Nothing to claim for until there has been a heartbeat
+        stepExecutionService.onStepRecordsClaimable();
+        verify(threadManager, never()).getScheduler();
+
+        val nodeInfo = new NodeInfo();
+        nodeInfo.nodeId = "N1";
+        stepExecutionService.onHeartBeat(nodeInfo, now);
+
+        when(config.getStepWakeDebounceMillis()).thenReturn(50L);
+        when(threadManager.getScheduler()).thenReturn(Executors.newSingleThreadScheduledExecutor());
+        when(threadManager.getFreeStepSlots()).thenReturn(1);
+        when(threadManager.tryAcquireStepSlot()).thenReturn(0, -1);
+        when(threadManager.getStepExecutor()).thenReturn(Executors.newSingleThreadExecutor());
+        when(repository.tryClaimStepRecords("N1", 1)).thenReturn(List.of(createStepRecord()), List.of());
+        when(jobExecutionService.getStep("Job", "Step")).thenReturn(new MockPartitionedStep());
+
+        //A burst of inserts wakes the node once
+        stepExecutionService.onStepRecordsClaimable();
+        stepExecutionService.onStepRecordsClaimable();
+
+        verify(threadManager, timeout(5000).times(1)).releaseStepSlot(0);
+        verify(threadManager, times(1)).getScheduler();
+        verify(threadManager, never()).getExecutor();
+        verify(repository, times(2)).save(any(StepRecord.class));
+    }
+
+    //-------------------------------------
+    @Test
+    void releaseUnstartedClaims() {
+        when(config.getStepClaimBatchSize()).thenReturn(3);
+        val stepRecs = List.of(createStepRecord(), createStepRecord(), createStepRecord());
+        for(int i=0; i<3; i++) stepRecs.get(i).setId("SR"+i);
+        when(repository.tryClaimStepRecords("N1", 3)).thenReturn(stepRecs);
+
+        assertEquals("SR0", stepExecutionService.nextStepRecord("N1", 1).getId());
+        stepExecutionService.releaseUnstartedClaims("N1");
+
+        verify(repository).releaseStepRecordClaims(List.of("SR1", "SR2"), "N1");
+    }
+
+    //-------------------------------------
+    @Test
+    void nextStepRecord_fairShares() {
+        when(config.getStepClaimBatchSize()).thenReturn(3);
+        when(repository.getWaitingJobNames()).thenReturn(List.of("BigJob", "SmallJob"));
+        when(repository.getRunningStepRecordCounts(List.of("BigJob", "SmallJob"))).thenReturn(Map.of("BigJob", 3));
+        when(jobExecutionService.getJob("BigJob")).thenReturn(weightedJob(2));
+        when(jobExecutionService.getJob("SmallJob")).thenReturn(weightedJob(1));
+
+        //The shares are made once for the heartbeat. What they leave unclaimed is claimed as usual
+        stepExecutionService.refreshFairShares();
+        when(repository.tryClaimStepRecordsOfJobs("N1", Map.of("BigJob", 1, "SmallJob", 2)))
+                .thenReturn(List.of(createStepRecord(), createStepRecord()));
+        when(repository.tryClaimStepRecords("N1", 1)).thenReturn(List.of(createStepRecord()));
+        assertNotNull(stepExecutionService.nextStepRecord("N1", 1));
+
+        //Nothing to share with only one job waiting
+        when(repository.getWaitingJobNames()).thenReturn(List.of("BigJob"));
+        stepExecutionService.refreshFairShares();
+        verify(repository, times(1)).getRunningStepRecordCounts(any());
+    }
+
+    private Job weightedJob(int weight){
+        return new Job() {
+            @Override
+            public JobPipeline getPipeline() {
+                return null;
+            }
+
+            @Override
+            public int getWeight() {
+                return weight;
+            }
+        };
+    }
+
+    //-------------------------------------
+    @Test
+    void nextStepRecord_affinity() {
+        val stepRec = createStepRecord();
+        stepRec.setNodeId("N1");
+        stepRec.getPartition().setAffinityKey("north");
+        when(jobExecutionService.getStep("Job", "Step")).thenReturn(new MockPartitionedStep());
+
+        //Records placed on this node are only looked for once it has run a partition with an affinity key
+        when(repository.tryClaimStepRecords("N1", 1)).thenReturn(List.of());
+        assertEquals(null, stepExecutionService.nextStepRecord("N1", 1));
+        verify(repository, never()).tryClaimPreferredStepRecords(any(), anyInt());
+
+        stepExecutionService.processStep(stepRec, now);
+        verify(repository).saveAffinity("north", "N1");
+
+        val placedRec = createStepRecord();
+        when(repository.tryClaimPreferredStepRecords("N1", 1)).thenReturn(List.of(placedRec));
+        assertEquals(placedRec, stepExecutionService.nextStepRecord("N1", 1));
+        verify(repository, times(1)).tryClaimStepRecords(any(), anyInt());
+    }
+
+    //-------------------------------------
+    @Test
+    void nextStepRecord_capped() {
+        val fullRec = createStepRecord();
+        fullRec.setId("SR1");
+        fullRec.setPermitKeys(List.of(PermitRecord.stepKey("Job", "Step")));
+        val freeRec = createStepRecord();
+        freeRec.setId("SR2");
+        freeRec.setPermitKeys(List.of(PermitRecord.jobKey("Job")));
+        when(repository.tryClaimStepRecords("N1", 2)).thenReturn(List.of(fullRec, freeRec));
+        when(repository.tryAcquirePermits(eq("SR1"), eq("N1"), any(), anyLong())).thenReturn(false);
+        when(repository.tryAcquirePermits(eq("SR2"), eq("N1"), any(), anyLong())).thenReturn(true);
+
+        //The record whose step is at its cap is given up again
+        assertEquals(freeRec, stepExecutionService.nextStepRecord("N1", 2));
+        verify(repository).releaseStepRecordClaims(List.of("SR1"), "N1");
+
+        //And the permit is given back once the record is done
+        when(jobExecutionService.getStep("Job", "Step")).thenReturn(new MockPartitionedStep());
+        stepExecutionService.processStep(freeRec, now);
+        verify(repository).releasePermits(List.of("SR2"));
+    }
+
+    //-------------------------------------
+    @Test
+    void onHeartBeat_noFreeSlots() {
+        val nodeInfo = new NodeInfo();
+        nodeInfo.freeStepSlots = 0;
+
+        stepExecutionService.onHeartBeat(nodeInfo, now);
 
-        assertTrue(stepProcessed);
+        verify(repository, never()).tryClaimStepRecords(any(), anyInt());
     }
 
     //-------------------------------------
@@ -77,9 +260,8 @@ class StepExecutionServiceTest {
 
         assertEquals(ExecutionStatus.COMPLETE, stepRec.getStatus());
         assertEquals(now, stepRec.getStartedAt());
-        verify(threadManager, times(1)).setNodeBusy(true);
-        verify(threadManager, times(1)).setNodeBusy(false);
         verify(repository,times(2)).save(stepRec);
+        verify(jobExecutionService, times(1)).onStepRecordComplete(stepRec);
         assertTrue(step.runCalled);
         val ctx = step.stepContext;
         assertEquals(stepRec.getPartition().getTotalPartitions(), ctx.getTotalPartitions());
@@ -90,8 +272,9 @@ class StepExecutionServiceTest {
     @Test
     void runBatched() {
         when(threadManager.getBatchPageSize()).thenReturn(4);
-        when(threadManager.getExecutor()).thenReturn(executor);
-        when(threadManager.getTaskQueueSize()).thenReturn(2);
+        when(threadManager.getBulkhead(any())).thenReturn(new Bulkhead(executor, 2));
+        when(threadManager.getBatchPipelineDepth()).thenReturn(2);
+        when(threadManager.getPipelineExecutor()).thenReturn(pipelineExecutor);
 
         val step = new MockBatchPartitionedStep();
         val ctx = new StepContext();
@@ -107,6 +290,600 @@ class StepExecutionServiceTest {
         assertEquals(List.of("A_X", "B_X", "C_X", "D_X", "E_X", "F_X", "G_X", "H_X", "I_X", "J_X", "K_X"), step.result);
     }
 
+    //------------------------------------
+    @Test
+    void runBatched_writeFails() {
+        lenient().when(threadManager.getBatchPageSize()).thenReturn(4);
+        lenient().when(threadManager.getBulkhead(any())).thenReturn(new Bulkhead(executor, 2));
+        when(threadManager.getBatchPipelineDepth()).thenReturn(1);
+        when(threadManager.getPipelineExecutor()).thenReturn(pipelineExecutor);
+
+        val step = new MockBatchPartitionedStep(){
+            @Override
+            public void writePageOfItems(Page<String> page, StepContext context) {
+                throw new IllegalStateException("Write failed");
+            }
+        };
+        val ctx = new StepContext();
+        val ex = assertThrows(SysAgentException.class, () -> stepExecutionService.runBatched(step, ctx));
+
+        assertEquals(IllegalStateException.class, ex.getCause().getCause().getClass());
+        assertEquals(false, step.onCompleteCalled);
+    }
+
+    //------------------------------------
+    @Test
+    void runBatched_multipleWorkerThreads() {
+        when(threadManager.getBatchPageSize()).thenReturn(4);
+        when(threadManager.getBulkhead(any())).thenReturn(new Bulkhead(Executors.newFixedThreadPool(4), 3));
+        when(threadManager.getBatchPipelineDepth()).thenReturn(1);
+        when(threadManager.getPipelineExecutor()).thenReturn(pipelineExecutor);
+
+        val step = new MockBatchPartitionedStep(){
+            @Override
+            public String processItem(String item, StepContext context) {
+                //Later items finish first
+                Utils.sleepFor(('L' - item.charAt(0)) * 2L);
+                return item+"_X";
+            }
+        };
+        val ctx = new StepContext();
+        stepExecutionService.runBatched(step, ctx);
+
+        assertEquals(11, ctx.getBatchItemsProcessed());
+        assertEquals(List.of("A_X", "B_X", "C_X", "D_X", "E_X", "F_X", "G_X", "H_X", "I_X", "J_X", "K_X"), step.result);
+    }
+
+    //------------------------------------
+    @Test
+    void runBatched_sharedBulkhead() throws Exception {
+        when(threadManager.getBatchPageSize()).thenReturn(4);
+        when(threadManager.getBatchPipelineDepth()).thenReturn(1);
+        when(threadManager.getPipelineExecutor()).thenReturn(pipelineExecutor);
+        //The executor can only queue as many items as the bulkhead allows in flight
+        val itemExecutor = new ThreadPoolExecutor(2, 2, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(3));
+        when(threadManager.getBulkhead(any())).thenReturn(new Bulkhead(itemExecutor, 3));
+
+        val step1 = new MockBatchPartitionedStep(){
+            @Override
+            public String processItem(String item, StepContext context) {
+                Utils.sleepFor(5);
+                return item+"_X";
+            }
+        };
+        val step2 = new MockBatchPartitionedStep(){
+            @Override
+            public String processItem(String item, StepContext context) {
+                Utils.sleepFor(5);
+                return item+"_Y";
+            }
+        };
+
+        //Two batches running at once, as in two step slots
+        val ctx1 = new StepContext();
+        val ctx2 = new StepContext();
+        val slots = Executors.newFixedThreadPool(2);
+        val run1 = slots.submit(() -> stepExecutionService.runBatched(step1, ctx1));
+        val run2 = slots.submit(() -> stepExecutionService.runBatched(step2, ctx2));
+        run1.get(10, TimeUnit.SECONDS);
+        run2.get(10, TimeUnit.SECONDS);
+
+        assertEquals(11, ctx1.getBatchItemsProcessed());
+        assertEquals(11, ctx2.getBatchItemsProcessed());
+        assertEquals(List.of("A_X", "B_X", "C_X", "D_X", "E_X", "F_X", "G_X", "H_X", "I_X", "J_X", "K_X"), step1.result);
+        assertEquals(List.of("A_Y", "B_Y", "C_Y", "D_Y", "E_Y", "F_Y", "G_Y", "H_Y", "I_Y", "J_Y", "K_Y"), step2.result);
+    }
+
+    //------------------------------------
+    @Test
+    void runBatched_processFails() {
+        lenient().when(threadManager.getBatchPageSize()).thenReturn(4);
+        when(threadManager.getBulkhead(any())).thenReturn(new Bulkhead(executor, 2));
+        when(threadManager.getBatchPipelineDepth()).thenReturn(2);
+        when(threadManager.getPipelineExecutor()).thenReturn(pipelineExecutor);
+
+        val step = new MockBatchPartitionedStep(){
+            @Override
+            public String processItem(String item, StepContext context) {
+                if(item.equals("F")) throw new IllegalStateException("Process failed");
+                return item+"_X";
+            }
+        };
+        val ctx = new StepContext();
+        val ex = assertThrows(SysAgentException.class, () -> stepExecutionService.runBatched(step, ctx));
+
+        assertEquals(IllegalStateException.class, ex.getCause().getClass());
+        assertEquals(List.of("A_X", "B_X", "C_X", "D_X"), step.result);
+        assertEquals(false, step.onCompleteCalled);
+    }
+
+    //------------------------------------
+    @Test
+    void runBatched_chunks() {
+        when(threadManager.getBatchPageSize()).thenReturn(4);
+        when(threadManager.getBulkhead(any())).thenReturn(new Bulkhead(Executors.newFixedThreadPool(2), 2));
+        when(threadManager.getBatchPipelineDepth()).thenReturn(2);
+        when(threadManager.getPipelineExecutor()).thenReturn(pipelineExecutor);
+
+        val chunks = new ConcurrentLinkedQueue<List<String>>();
+        val step = new MockBatchPartitionedStep(){
+            @Override
+            public List<String> processChunk(List<String> items, StepContext context) {
+                chunks.add(List.copyOf(items));
+                return items.stream().map(i -> i+"_C").toList();
+            }
+
+            @Override
+            public int getChunkSize() {
+                return 3;
+            }
+        };
+        val ctx = new StepContext();
+        stepExecutionService.runBatched(step, ctx);
+
+        assertEquals(11, ctx.getBatchItemsProcessed());
+        assertEquals(0, step.processItem_TimesCalled);
+        assertEquals(List.of("A_C", "B_C", "C_C", "D_C", "E_C", "F_C", "G_C", "H_C", "I_C", "J_C", "K_C"), step.result);
+        //Pages of 4, 4 and 3 items are sliced into chunks of 3 and 1, 3 and 1, and 3
+        assertEquals(List.of(1, 1, 3, 3, 3), chunks.stream().map(List::size).sorted().toList());
+    }
+
+    //------------------------------------
+    @Test
+    void runBatched_adaptiveConcurrency() {
+        when(config.isBatchAdaptiveConcurrency()).thenReturn(true);
+        when(config.getBatchConcurrencyMin()).thenReturn(1);
+        when(config.getBatchLatencyTolerance()).thenReturn(2.0);
+        when(threadManager.getBatchPageSize()).thenReturn(4);
+        when(threadManager.getBulkhead(any())).thenReturn(new Bulkhead(Executors.newFixedThreadPool(4), 4));
+        when(threadManager.getBatchPipelineDepth()).thenReturn(2);
+        when(threadManager.getPipelineExecutor()).thenReturn(pipelineExecutor);
+
+        val step = new MockBatchPartitionedStep();
+        val ctx = new StepContext();
+        stepExecutionService.runBatched(step, ctx);
+
+        assertEquals(11, ctx.getBatchItemsProcessed());
+        assertEquals(List.of("A_X", "B_X", "C_X", "D_X", "E_X", "F_X", "G_X", "H_X", "I_X", "J_X", "K_X"), step.result);
+        assertTrue(ctx.getBatchConcurrencyLimit() >= 1 && ctx.getBatchConcurrencyLimit() <= 4);
+    }
+
+    //------------------------------------
+    @Test
+    void runBatched_keysetPagination() {
+        when(threadManager.getBatchPageSize()).thenReturn(4);
+        when(threadManager.getBulkhead(any())).thenReturn(new Bulkhead(executor, 2));
+        when(threadManager.getBatchPipelineDepth()).thenReturn(2);
+        when(threadManager.getPipelineExecutor()).thenReturn(pipelineExecutor);
+
+        val allItems = List.of("A", "B", "C", "D", "E", "F", "G", "H", "I", "J", "K");
+        val lastKeys = new ArrayList<Object>();
+        val step = new MockBatchPartitionedStep(){
+            @Override
+            public boolean isKeysetPaginated() {
+                return true;
+            }
+
+            @Override
+            public Slice<String> readSliceOfItems(Object lastKey, Pageable pageRequest, StepContext context) {
+                lastKeys.add(lastKey);
+                val items = allItems.stream()
+                        .filter(i -> lastKey == null || i.compareTo((String) lastKey) > 0)
+                        .limit(pageRequest.getPageSize())
+                        .toList();
+                return new SliceImpl<>(items, pageRequest, items.size() == pageRequest.getPageSize());
+            }
+
+            @Override
+            public Object getItemKey(String item) {
+                return item;
+            }
+        };
+        val ctx = new StepContext();
+        stepExecutionService.runBatched(step, ctx);
+
+        assertEquals(11, ctx.getBatchItemsProcessed());
+        assertEquals(0, step.readPageOfItems_TimesCalled);
+        assertEquals(Arrays.asList(null, "D", "H"), lastKeys);
+        assertEquals(3, step.writePageOfItems_TimesCalled);
+        assertEquals(List.of("A_X", "B_X", "C_X", "D_X", "E_X", "F_X", "G_X", "H_X", "I_X", "J_X", "K_X"), step.result);
+    }
+
+    //------------------------------------
+    @Test
+    void runBatched_keysetRangeSplit() {
+        when(threadManager.getBatchPageSize()).thenReturn(4);
+        when(threadManager.getBulkhead(any())).thenReturn(new Bulkhead(executor, 2));
+        when(threadManager.getBatchPipelineDepth()).thenReturn(2);
+        when(threadManager.getPipelineExecutor()).thenReturn(pipelineExecutor);
+
+        val allItems = List.of("A", "B", "C", "D", "E", "F", "G", "H", "I", "J", "K");
+        val lastKeys = new ArrayList<Object>();
+        val step = new MockBatchPartitionedStep(){
+            @Override
+            public boolean isKeysetPaginated() {
+                return true;
+            }
+
+            @Override
+            public Slice<String> readSliceOfItems(Object lastKey, Pageable pageRequest, StepContext context) {
+                lastKeys.add(lastKey);
+                val items = allItems.stream()
+                        .filter(i -> lastKey == null || i.compareTo((String) lastKey) > 0)
+                        .limit(pageRequest.getPageSize())
+                        .toList();
+                return new SliceImpl<>(items, pageRequest, items.size() == pageRequest.getPageSize());
+            }
+
+            @Override
+            public Object getItemKey(String item) {
+                return item;
+            }
+        };
+
+        //The range starts after B, and is split at E by another node once the first page is read
+        val ctx = new StepContext();
+        ctx.setRangeFrom("B");
+        val publishedKeys = new ArrayList<Object>();
+        stepExecutionService.runBatched(step, ctx, key -> {
+            publishedKeys.add(key);
+            return "E";
+        });
+
+        assertEquals(List.of("B"), lastKeys);
+        assertEquals(List.of("F"), publishedKeys);
+        assertEquals(3, ctx.getBatchItemsProcessed());
+        assertEquals(List.of("C_X", "D_X", "E_X"), step.result);
+    }
+
+    //------------------------------------
+    @Test
+    void trySplitStepRecord() {
+        when(config.getStepSplitAfterSecs()).thenReturn(60L);
+        val runningRec = createStepRecord();
+        runningRec.setId("SR1");
+        runningRec.setJobRecordId("JR1");
+        runningRec.setNodeId("N2");
+        runningRec.setStatus(ExecutionStatus.RUNNING);
+        runningRec.setProgressKey("D");
+        when(repository.getSplittableStepRecords("N1", now.minusSeconds(60), 10)).thenReturn(List.of(runningRec));
+        val step = new MockBatchPartitionedStep(){
+            @Override
+            public boolean isSplittable() {
+                return true;
+            }
+
+            @Override
+            public Object getSplitKey(Object fromKey, Object rangeTo, StepContext context) {
+                return fromKey.equals("D") && rangeTo == null ? "M" : null;
+            }
+        };
+        when(jobExecutionService.getStep("Job", "Step")).thenReturn(step);
+        when(repository.trySplitStepRecord(eq(runningRec), eq("M"), any())).thenReturn(true);
+
+        val splitRec = stepExecutionService.trySplitStepRecord("N1", now);
+
+        assertEquals("M", splitRec.getRangeFrom());
+        assertEquals(null, splitRec.getRangeTo());
+        assertEquals("SR1", splitRec.getSplitFromId());
+        assertEquals("N1", splitRec.getNodeId());
+        assertEquals("JR1", splitRec.getJobRecordId());
+        assertEquals(runningRec.getPartition(), splitRec.getPartition());
+        verify(repository).save(splitRec);
+        verify(jobExecutionService).onStepRecordSplit(splitRec);
+
+        //The record moved past the split key in the meantime
+        when(repository.trySplitStepRecord(eq(runningRec), eq("M"), any())).thenReturn(false);
+        assertEquals(null, stepExecutionService.trySplitStepRecord("N1", now));
+        verify(repository).deleteStepRecord(any());
+    }
+
+    //------------------------------------
+    @Test
+    void processStep_splitNotTakenOn() {
+        val stepRec = createStepRecord();
+        stepRec.setId("SR2");
+        stepRec.setSplitFromId("SR1");
+        stepRec.setRangeFrom("M");
+        when(repository.getStepRecordById("SR1")).thenReturn(createStepRecord());
+        val step = new MockBatchPartitionedStep();
+        when(jobExecutionService.getStep("Job", "Step")).thenReturn(step);
+
+        stepExecutionService.processStep(stepRec, now);
+
+        assertEquals(ExecutionStatus.COMPLETE, stepRec.getStatus());
+        assertEquals(0, stepRec.getBatchItemsProcessed());
+        assertEquals(0, step.readPageOfItems_TimesCalled);
+        verify(jobExecutionService).onStepRecordComplete(stepRec);
+    }
+
+    //------------------------------------
+    @Test
+    void tryBackUpStepRecord() {
+        when(config.isStepSpeculativeExecution()).thenReturn(true);
+        when(config.getStepSpeculateAfterSecs()).thenReturn(60L);
+        when(config.getStepSpeculationFactor()).thenReturn(2.0);
+        val slowRec = createStepRecord();
+        slowRec.setId("SR1");
+        slowRec.setJobRecordId("JR1");
+        slowRec.setStartedAt(now.minusMinutes(10));
+        val fastRec = createStepRecord();
+        fastRec.setId("SR2");
+        fastRec.setJobRecordId("JR1");
+        fastRec.setStartedAt(now.minusMinutes(3));
+        when(repository.getBackupCandidateStepRecords("N1", now.minusSeconds(60), 10)).thenReturn(List.of(fastRec, slowRec));
+        //Partitions take 2 minutes on average, so only the one running for 10 minutes is lagging
+        when(repository.getAverageStepRecordMillis("JR1", "Step")).thenReturn(120_000L);
+        when(repository.trySetStepRecordBackup(eq("SR1"), any())).thenReturn(true);
+
+        val backupRec = stepExecutionService.tryBackUpStepRecord("N1", now);
+
+        assertEquals("SR1", backupRec.getSpeculativeOf());
+        assertEquals("N1", backupRec.getNodeId());
+        assertEquals(slowRec.getPartition(), backupRec.getPartition());
+        verify(repository, never()).trySetStepRecordBackup(eq("SR2"), any());
+        verify(repository, never()).deleteStepRecord(any());
+    }
+
+    //------------------------------------
+    @Test
+    void processStep_backupFinishedFirst() {
+        when(config.isStepSpeculativeExecution()).thenReturn(true);
+        val stepRec = createStepRecord();
+        stepRec.setId("SR1");
+        val step = new MockPartitionedStep();
+        when(jobExecutionService.getStep("Job", "Step")).thenReturn(step);
+
+        //The backup run has won, so this record is not saved again and does not move the job on
+        when(repository.tryWinSpeculation("SR1", stepRec)).thenReturn(null);
+        stepExecutionService.processStep(stepRec, now);
+
+        verify(repository, times(1)).save(stepRec);
+        verify(jobExecutionService, never()).onStepRecordComplete(any());
+
+        //The backup run wins, so the record is cancelled
+        val backupRec = createStepRecord();
+        backupRec.setId("SR2");
+        backupRec.setSpeculativeOf("SR1");
+        val original = createStepRecord();
+        original.setId("SR1");
+        original.setWinnerId("SR2");
+        when(repository.tryWinSpeculation("SR1", backupRec)).thenReturn(original);
+        stepExecutionService.processStep(backupRec, now);
+
+        verify(repository).requestStepRecordCancel("SR1");
+        verify(repository, times(2)).save(backupRec);
+        verify(jobExecutionService).onStepRecordComplete(backupRec);
+    }
+
+    //------------------------------------
+    @Test
+    void processStep_failedWhileBackupRuns() {
+        when(config.isStepSpeculativeExecution()).thenReturn(true);
+        val step = new MockPartitionedStep(){
+            @Override
+            public void run(StepContext context) {
+                throw new IllegalStateException("Run failed");
+            }
+        };
+        when(jobExecutionService.getStep("Job", "Step")).thenReturn(step);
+
+        //The record fails while its backup is running, so it is left to the backup
+        val stepRec = createStepRecord();
+        stepRec.setId("SR1");
+        val pending = createStepRecord();
+        pending.setId("SR1");
+        pending.setBackupId("SR2");
+        pending.setFailurePending(true);
+        when(repository.trySetStepRecordFailurePending("SR1")).thenReturn(pending);
+        assertThrows(SysAgentException.class, () -> stepExecutionService.processStep(stepRec, now));
+
+        verify(repository, times(1)).save(stepRec);
+        verify(repository, never()).tryWinSpeculation(any(), any());
+
+        //The backup fails too, so it is dropped and the record is failed
+        val backupRec = createStepRecord();
+        backupRec.setId("SR2");
+        backupRec.setSpeculativeOf("SR1");
+        when(repository.trySetStepRecordBackupFailed("SR1")).thenReturn(pending);
+        assertThrows(SysAgentException.class, () -> stepExecutionService.processStep(backupRec, now));
+
+        verify(repository, times(2)).save(backupRec);
+        verify(repository).tryFailPendingStepRecord("SR1");
+        verify(repository, never()).tryWinSpeculation(any(), any());
+        verify(jobExecutionService, never()).onStepRecordComplete(any());
+    }
+
+    //------------------------------------
+    @Test
+    void processStep_failedAfterBackup() {
+        when(config.isStepSpeculativeExecution()).thenReturn(true);
+        val step = new MockPartitionedStep(){
+            @Override
+            public void run(StepContext context) {
+                throw new IllegalStateException("Run failed");
+            }
+        };
+        when(jobExecutionService.getStep("Job", "Step")).thenReturn(step);
+
+        //The backup failed first, so the record fails as it would without one
+        val stepRec = createStepRecord();
+        stepRec.setId("SR1");
+        val latest = createStepRecord();
+        latest.setId("SR1");
+        latest.setBackupId("SR2");
+        latest.setBackupFailed(true);
+        when(repository.trySetStepRecordFailurePending("SR1")).thenReturn(latest);
+        assertThrows(SysAgentException.class, () -> stepExecutionService.processStep(stepRec, now));
+
+        assertEquals(ExecutionStatus.FAILED, stepRec.getStatus());
+        verify(repository, times(2)).save(stepRec);
+        verify(repository, never()).tryWinSpeculation(any(), any());
+    }
+
+    //------------------------------------
+    @Test
+    void processStep_yieldToHigherPriority() {
+        when(threadManager.getBatchPageSize()).thenReturn(4);
+        when(threadManager.getBulkhead(any())).thenReturn(new Bulkhead(executor, 2));
+        when(threadManager.getBatchPipelineDepth()).thenReturn(2);
+        when(threadManager.getPipelineExecutor()).thenReturn(pipelineExecutor);
+
+        val stepRec = createStepRecord();
+        stepRec.setId("SR1");
+        stepRec.setNodeId("N1");
+        stepRec.setPriority(1);
+        val allItems = List.of("A", "B", "C", "D", "E", "F", "G", "H");
+        val step = new MockBatchPartitionedStep(){
+            @Override
+            public boolean isKeysetPaginated() {
+                return true;
+            }
+
+            @Override
+            public Slice<String> readSliceOfItems(Object lastKey, Pageable pageRequest, StepContext context) {
+                //Higher priority work turns up while the first page is read
+                if(lastKey == null) stepExecutionService.yieldToHigherPriority("N1", 0);
+                val items = allItems.stream()
+                        .filter(i -> lastKey == null || i.compareTo((String) lastKey) > 0)
+                        .limit(pageRequest.getPageSize())
+                        .toList();
+                return new SliceImpl<>(items, pageRequest, items.size() == pageRequest.getPageSize());
+            }
+
+            @Override
+            public Object getItemKey(String item) {
+                return item;
+            }
+        };
+        when(jobExecutionService.getStep("Job", "Step")).thenReturn(step);
+        when(repository.getHighestWaitingPriority("N1")).thenReturn(5);
+
+        stepExecutionService.processStep(stepRec, now);
+
+        //The rest of the record is put back to carry on after the last key written
+        assertEquals(List.of("A_X", "B_X", "C_X", "D_X"), step.result);
+        assertEquals(ExecutionStatus.NEW, stepRec.getStatus());
+        assertEquals(false, stepRec.isClaimed());
+        assertEquals(null, stepRec.getNodeId());
+        assertEquals("D", stepRec.getRangeFrom());
+        verify(repository, times(2)).save(stepRec);
+        verify(jobExecutionService, never()).onStepRecordComplete(any());
+    }
+
+    //------------------------------------
+    @Test
+    void processStep_yieldAfterLastPage() {
+        when(threadManager.getBatchPageSize()).thenReturn(4);
+        when(threadManager.getBulkhead(any())).thenReturn(new Bulkhead(executor, 2));
+        when(threadManager.getBatchPipelineDepth()).thenReturn(2);
+        when(threadManager.getPipelineExecutor()).thenReturn(pipelineExecutor);
+
+        val stepRec = createStepRecord();
+        stepRec.setId("SR1");
+        stepRec.setNodeId("N1");
+        stepRec.setPriority(1);
+        val allItems = List.of("A", "B", "C", "D", "E");
+        val step = new MockBatchPartitionedStep(){
+            @Override
+            public boolean isKeysetPaginated() {
+                return true;
+            }
+
+            @Override
+            public Slice<String> readSliceOfItems(Object lastKey, Pageable pageRequest, StepContext context) {
+                val items = allItems.stream()
+                        .filter(i -> lastKey == null || i.compareTo((String) lastKey) > 0)
+                        .limit(pageRequest.getPageSize())
+                        .toList();
+                return new SliceImpl<>(items, pageRequest, items.size() == pageRequest.getPageSize());
+            }
+
+            @Override
+            public Object getItemKey(String item) {
+                return item;
+            }
+
+            @Override
+            public void onComplete(StepContext context) {
+                super.onComplete(context);
+                //Higher priority work turns up after all the items were read
+                stepExecutionService.yieldToHigherPriority("N1", 0);
+                context.setYieldRequested(true);
+            }
+        };
+        when(jobExecutionService.getStep("Job", "Step")).thenReturn(step);
+
+        stepExecutionService.processStep(stepRec, now);
+
+        //Reading had ended, so the record is complete rather than put back
+        assertEquals(List.of("A_X", "B_X", "C_X", "D_X", "E_X"), step.result);
+        assertEquals(ExecutionStatus.COMPLETE, stepRec.getStatus());
+        assertEquals(null, stepRec.getRangeFrom());
+        verify(repository, never()).getHighestWaitingPriority(any());
+        verify(jobExecutionService).onStepRecordComplete(stepRec);
+    }
+
+    //------------------------------------
+    @Test
+    void yieldToHigherPriority_nothingRunning() {
+        //Nothing running
+        stepExecutionService.yieldToHigherPriority("N1", 0);
+        verify(repository, never()).getHighestWaitingPriority(any());
+    }
+
+    //------------------------------------
+    @Test
+    void runBatched_cancelled() {
+        when(threadManager.getBatchPageSize()).thenReturn(4);
+        when(threadManager.getBulkhead(any())).thenReturn(new Bulkhead(executor, 2));
+        when(threadManager.getBatchPipelineDepth()).thenReturn(2);
+        when(threadManager.getPipelineExecutor()).thenReturn(pipelineExecutor);
+
+        val step = new MockBatchPartitionedStep();
+        val ctx = new StepContext();
+        ctx.setCancelRequested(true);
+        stepExecutionService.runBatched(step, ctx);
+
+        assertEquals(0, step.readPageOfItems_TimesCalled);
+        assertEquals(0, ctx.getBatchItemsProcessed());
+    }
+
+    //------------------------------------
+    @Test
+    void runBatched_stream() {
+        when(threadManager.getBatchPageSize()).thenReturn(4);
+        when(threadManager.getBulkhead(any())).thenReturn(new Bulkhead(executor, 2));
+        when(threadManager.getBatchPipelineDepth()).thenReturn(2);
+        when(threadManager.getPipelineExecutor()).thenReturn(pipelineExecutor);
+
+        val streamClosed = new AtomicBoolean(false);
+        val pageSizes = new ConcurrentLinkedQueue<Integer>();
+        val step = new StreamBatchStep<String, String>(){
+            @Override
+            public Stream<String> openItemStream(StepContext context) {
+                return Stream.of("A", "B", "C", "D", "E", "F", "G", "H", "I", "J", "K")
+                        .onClose(() -> streamClosed.set(true));
+            }
+
+            @Override
+            public String processItem(String item, StepContext context) {
+                return item+"_X";
+            }
+
+            @Override
+            public void writePageOfItems(Page<String> page, StepContext context) {
+                pageSizes.add(page.getNumberOfElements());
+            }
+        };
+        val ctx = new StepContext();
+        stepExecutionService.runBatched(step, ctx);
+
+        assertEquals(11, ctx.getBatchItemsProcessed());
+        assertEquals(List.of(4, 4, 3), List.copyOf(pageSizes));
+        assertTrue(streamClosed.get());
+    }
+
     //------------------------------------
     private StepRecord createStepRecord(){
         val stepRec = new StepRecord();